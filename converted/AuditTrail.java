@@ -0,0 +1,470 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Simulates the TMF audit trail: a write-ahead log of transactional file changes.
+ *
+ * Every change appends an UPDATE record holding the record's before-image (undo) and
+ * after-image (redo); ENDTRANSACTION appends a COMMIT record and waits until it is on disk.
+ * Appends only copy into an in-memory buffer. One writer thread writes whatever has
+ * accumulated and forces it with a single fsync, so all commits that arrive while one
+ * fsync is in progress are made durable together by the next (group commit). Batches
+ * without a forced record (a COMMIT or PREPARE that is waited for) are written but not forced.
+ *
+ * The log is a series of segment files AA000001, AA000002, ... in one directory; a new
+ * segment is started once the current one passes segmentBytes. Records are
+ *
+ *   [length 4][crc32c 4][type 1][transaction id 8][payload]
+ *
+ * where length covers type..payload and the CRC covers the same bytes. The LSN of a record
+ * is the byte offset of its end in the whole trail. Records never span segments. Reading
+ * stops at the first record that is incomplete or fails its CRC, the tail a crash leaves;
+ * reopening a trail cuts that tail off before appending.
+ */
+class AuditTrail implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(AuditTrail.class);
+
+    public static final byte UPDATE = 1;
+    public static final byte COMMIT = 2;
+    public static final byte ABORT = 3;
+    public static final byte PREPARE = 4; // Participant of a two-phase commit voted to commit
+    public static final byte END = 5; // Coordinator: every participant has the outcome
+    public static final byte CHECKPOINT = 6; // See RecoveryManager
+
+    /** A record read back from a trail; lsn is where it starts. */
+    record LogRecord(byte type, long txId, long lsn, ByteBuffer payload) {}
+
+    /** Payload of an UPDATE record; a null image means the record did not exist. */
+    record Update(String fileName, byte[] key, byte[] before, byte[] after) {
+        static Update parse(ByteBuffer payload) {
+            byte[] name = new byte[payload.getShort()];
+            payload.get(name);
+            byte[] key = new byte[payload.getShort()];
+            payload.get(key);
+            return new Update(new String(name, StandardCharsets.ISO_8859_1), key, getImage(payload), getImage(payload));
+        }
+    }
+
+    /** Where a checkpoint starts: the end of the trail, and where replay must start for the transactions then active. */
+    record CheckpointPoint(long lsn, long redoStart, Map<Long, Long> active) {}
+
+    static final int HEADER_LENGTH = 8; // length + crc
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final Thread writer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition durableAdvanced = lock.newCondition();
+
+    // Guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER);
+    private boolean pendingNeedsForce = false;
+    private int pendingCommits = 0;
+    private long appendedLsn;
+    private long durableLsn;
+    private long forcingLsn; // End of the batch the writer is forcing now
+    private boolean closed = false;
+    private IOException failure;
+    private final Map<Long, Long> active = new HashMap<>(); // Transaction -> LSN its first record starts at, until its outcome
+
+    // Writer thread only
+    private FileChannel segment;
+    private int segmentNumber;
+
+    // Statistics; guarded by lock
+    private long records = 0;
+    private long commits = 0;
+    private long forces = 0;
+    private long forcedCommits = 0;
+
+    /** Opens the trail in the directory, appending after any existing segments. */
+    AuditTrail(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        long existing = 0;
+        int last = 0;
+        for (int n = 1; Files.exists(segmentPath(directory, n)); n++) {
+            existing += Files.size(segmentPath(directory, n));
+            last = n;
+        }
+        this.segmentNumber = Math.max(1, last);
+        this.segment = FileChannel.open(segmentPath(directory, segmentNumber), StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        long size = segment.size();
+        long valid = validLength(segmentPath(directory, segmentNumber));
+        if (valid < size) {
+            logger.warn("Cutting {} bytes of incomplete records off {}", size - valid, segmentPath(directory, segmentNumber));
+            segment.truncate(valid);
+            existing -= size - valid;
+        }
+        this.appendedLsn = existing;
+        this.durableLsn = existing;
+        this.forcingLsn = existing;
+        this.writer = Thread.ofPlatform().daemon().name("audit-writer").start(this::writeLoop);
+    }
+
+    static Path segmentPath(Path directory, int number) {
+        return directory.resolve(String.format("AA%06d", number));
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    /** Logs a change of one record; a null image means the record did not exist. Returns the record's LSN. */
+    public long appendUpdate(long txId, String fileName, byte[] key, byte[] before, byte[] after) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer payload = ByteBuffer.allocate(2 + name.length + 2 + key.length + 8
+                                                 + (before == null ? 0 : before.length) + (after == null ? 0 : after.length));
+        payload.putShort((short) name.length).put(name).putShort((short) key.length).put(key);
+        putImage(payload, before);
+        putImage(payload, after);
+        return append(UPDATE, txId, payload.array(), false);
+    }
+
+    /** Logs and forces the commit of a transaction; returns once it is durable. */
+    public void commit(long txId) throws IOException {
+        awaitDurable(append(COMMIT, txId, new byte[0], true));
+    }
+
+    /** Logs that a transaction was rolled back; not forced (an unlogged abort is presumed anyway). */
+    public void abort(long txId) throws IOException {
+        append(ABORT, txId, new byte[0], false);
+    }
+
+    /** Appends a record; forced records wake the writer for a durable batch. Returns the record's LSN. */
+    long append(byte type, long txId, byte[] payload, boolean force) throws IOException {
+        int length = 1 + 8 + payload.length;
+        lock.lock();
+        try {
+            checkFailure();
+            if (closed) throw new IOException("Audit trail is closed");
+            ensureCapacity(HEADER_LENGTH + length);
+            int start = pending.position();
+            if (type == UPDATE) {
+                active.putIfAbsent(txId, appendedLsn);
+            } else if (type == ABORT) {
+                active.remove(txId); // Already rolled back; a commit is forgotten only once its versions are stamped
+            }
+            pending.putInt(length).putInt(0).put(type).putLong(txId).put(payload);
+            CRC32C crc = new CRC32C();
+            crc.update(pending.array(), start + HEADER_LENGTH, length);
+            pending.putInt(start + 4, (int) crc.getValue());
+            appendedLsn += HEADER_LENGTH + length;
+            records++;
+            if (type == COMMIT) {
+                commits++;
+                pendingCommits++;
+            }
+            if (force) pendingNeedsForce = true;
+            workAvailable.signal();
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits until everything up to the LSN is on disk. */
+    public void awaitDurable(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                checkFailure();
+                if (!pendingNeedsForce && forcingLsn < lsn) {
+                    pendingNeedsForce = true; // Written unforced: have the writer force it
+                    workAvailable.signal();
+                }
+                durableAdvanced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The committed transaction's changes are visible to checkpoints; it no longer holds back replay. */
+    public void forget(long txId) {
+        lock.lock();
+        try {
+            active.remove(txId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** LSN of the end of the last record appended. */
+    public long appendedLsn() {
+        lock.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The current end of the trail and the transactions with records in it but no outcome yet. */
+    public CheckpointPoint checkpointPoint() {
+        lock.lock();
+        try {
+            long redoStart = appendedLsn;
+            for (long first : active.values()) {
+                redoStart = Math.min(redoStart, first);
+            }
+            return new CheckpointPoint(appendedLsn, redoStart, Map.copyOf(active));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Passes every complete record from the LSN on (a record boundary) to the visitor, in order.
+     * Reads what is on disk, so it is meant for a trail nobody is appending to.
+     */
+    static void read(Path directory, long fromLsn, Consumer<LogRecord> visitor) throws IOException {
+        long segmentStart = 0;
+        for (int n = 1; Files.exists(segmentPath(directory, n)); n++) {
+            Path path = segmentPath(directory, n);
+            long size = Files.size(path);
+            if (segmentStart + size > fromLsn) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    data.position((int) Math.max(0, fromLsn - segmentStart));
+                    while (true) {
+                        int start = data.position();
+                        int length = recordLength(data);
+                        if (length < 0) {
+                            if (data.hasRemaining()) return; // Torn tail: nothing valid follows
+                            break;
+                        }
+                        byte type = data.get(start + HEADER_LENGTH);
+                        long txId = data.getLong(start + HEADER_LENGTH + 1);
+                        ByteBuffer payload = data.slice(start + HEADER_LENGTH + 9, length - 9);
+                        data.position(start + HEADER_LENGTH + length);
+                        visitor.accept(new LogRecord(type, txId, segmentStart + start, payload));
+                    }
+                }
+            }
+            segmentStart += size;
+        }
+    }
+
+    // Length of the complete, intact record at the buffer's position, or -1
+    private static int recordLength(ByteBuffer data) {
+        int start = data.position();
+        if (data.remaining() < HEADER_LENGTH + 9) return -1;
+        int length = data.getInt(start);
+        if (length < 9 || length > data.remaining() - HEADER_LENGTH) return -1;
+        CRC32C crc = new CRC32C();
+        crc.update(data.slice(start + HEADER_LENGTH, length));
+        return (int) crc.getValue() == data.getInt(start + 4) ? length : -1;
+    }
+
+    // Bytes of the segment up to the end of its last intact record
+    private static long validLength(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int length;
+            while ((length = recordLength(data)) >= 0) {
+                data.position(data.position() + HEADER_LENGTH + length);
+            }
+            return data.position();
+        }
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return String.format("%d records, %d commits, %d fsyncs (%.1f commits per fsync), %d bytes",
+                                 records, commits, forces, forces == 0 ? 0.0 : (double) forcedCommits / forces, appendedLsn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long commitCount() {
+        lock.lock();
+        try { return commits; } finally { lock.unlock(); }
+    }
+
+    public long forceCount() {
+        lock.lock();
+        try { return forces; } finally { lock.unlock(); }
+    }
+
+    /** Writes and forces everything appended, then stops the writer. */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            pendingNeedsForce = true;
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+        lock.lock();
+        try {
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchEnd;
+            boolean force;
+            int batchCommits;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !pendingNeedsForce && !closed) {
+                    workAvailable.awaitUninterruptibly();
+                }
+                if (pending.position() == 0 && !pendingNeedsForce) {
+                    return; // Closed and drained
+                }
+                batch = pending.flip();
+                pending = spare;
+                batchEnd = appendedLsn;
+                force = pendingNeedsForce || closed;
+                batchCommits = pendingCommits;
+                pendingNeedsForce = false;
+                pendingCommits = 0;
+                if (force) forcingLsn = batchEnd;
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                if (segment.size() >= segmentBytes) {
+                    roll();
+                }
+                while (batch.hasRemaining()) {
+                    segment.write(batch);
+                }
+                if (force) {
+                    segment.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            lock.lock();
+            try {
+                spare = batch.clear();
+                if (error != null) {
+                    failure = error;
+                    logger.error("Audit trail write failed in {}", directory, error);
+                } else if (force) {
+                    durableLsn = batchEnd;
+                    forces++;
+                    forcedCommits += batchCommits;
+                }
+                durableAdvanced.signalAll();
+                if (error != null) return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Writer thread: force the full segment and start the next one
+    private void roll() throws IOException {
+        segment.force(false);
+        segment.close();
+        segmentNumber++;
+        segment = FileChannel.open(segmentPath(directory, segmentNumber), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Caller holds lock
+    private void ensureCapacity(int needed) {
+        if (pending.remaining() >= needed) return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+        pending.flip();
+        bigger.put(pending);
+        pending = bigger;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Audit trail write failed", failure);
+        }
+    }
+
+    /**
+     * Measures commits per second against the group-commit batch size: for each number of
+     * concurrent committers, runs short transactions (one UPDATE and a COMMIT) against a fresh
+     * trail and reports throughput and commits per fsync.
+     * Usage: AuditTrail [directory] [commits per committer]
+     */
+    public static void main(String[] args) throws Exception {
+        Path base = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("tal2j-audit");
+        int perCommitter = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        byte[] image = new byte[100];
+        for (int committers : new int[] {1, 2, 4, 8, 16, 32, 64}) {
+            Path dir = base.resolve("run" + committers);
+            try (AuditTrail trail = new AuditTrail(dir, 64L << 20)) {
+                Thread[] threads = new Thread[committers];
+                long start = System.nanoTime();
+                for (int t = 0; t < committers; t++) {
+                    long first = (long) t * perCommitter;
+                    threads[t] = Thread.ofVirtual().start(() -> {
+                        try {
+                            for (long tx = first; tx < first + perCommitter; tx++) {
+                                trail.appendUpdate(tx, "$DATA.BENCH", new byte[] {(byte) tx}, image, image);
+                                trail.commit(tx);
+                            }
+                        } catch (IOException e) {
+                            logger.error("Benchmark committer failed", e);
+                        }
+                    });
+                }
+                for (Thread t : threads) t.join();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                logger.info("{} committers: {} commits/s, {} commits per fsync",
+                            committers, String.format("%.0f", trail.commitCount() / seconds),
+                            String.format("%.1f", (double) trail.commitCount() / Math.max(1, trail.forceCount())));
+            }
+        }
+    }
+
+    private static byte[] getImage(ByteBuffer payload) {
+        int length = payload.getInt();
+        if (length < 0) return null;
+        byte[] image = new byte[length];
+        payload.get(image);
+        return image;
+    }
+
+    private static void putImage(ByteBuffer payload, byte[] image) {
+        payload.putInt(image == null ? -1 : image.length);
+        if (image != null) payload.put(image);
+    }
+}
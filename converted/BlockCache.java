@@ -0,0 +1,484 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Process-wide cache of fixed-size file blocks, modeled on the DP2 disk cache.
+ *
+ * Pages are keyed by (file, block number) and held in a fixed pool of frames sized from a
+ * memory budget. Every open registers its own device under the file's identity, and opens
+ * with the same identity share one set of pages, so they see each other's writes. A hit is
+ * a map lookup plus a CAS on the frame's pin count; no lock is taken. Misses pick a victim
+ * with the CLOCK (second-chance) policy: a frame used since the hand last passed gets its
+ * reference bit cleared and is skipped once. Only the choice of victim is serialized; a
+ * dirty victim is written back to its file by the thread that chose it, outside that lock.
+ * A file's dirty pages are also written back when it is flushed or released at CLOSE, and
+ * its pages are dropped when the last registration for it is released.
+ */
+class BlockCache {
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    private static final BlockCache shared = new BlockCache(DEFAULT_PAGE_SIZE,
+            Long.getLong("tal2j.cache.bytes", DEFAULT_BUDGET_BYTES));
+
+    /** Backing store of one registered file. */
+    interface BlockDevice {
+        /** Fills dest from the block; returns the bytes read (fewer at end of file). */
+        int readBlock(long blockNo, ByteBuffer dest) throws IOException;
+
+        void writeBlock(long blockNo, ByteBuffer src) throws IOException;
+
+        /** Forces written blocks to the storage device. */
+        void force() throws IOException;
+    }
+
+    private record PageKey(int fileId, long blockNo) {}
+
+    // A file with cached pages and the devices of the opens registered for it; any of them can write a page back
+    private static final class CachedFile {
+        final int fileId;
+        final Object identity;
+        final List<BlockDevice> devices = new CopyOnWriteArrayList<>(); // Changed under registrationLock
+
+        CachedFile(int fileId, Object identity) {
+            this.fileId = fileId;
+            this.identity = identity;
+        }
+    }
+
+    // One open's registration: the file whose pages it uses and its own device
+    private record Registration(CachedFile file, BlockDevice device) {}
+
+    // One cache frame; pinCount -1 means the frame is being evicted or loaded
+    private static final class Frame {
+        final byte[] data;
+        final AtomicInteger pinCount = new AtomicInteger(0);
+        final StampedLock contentLock = new StampedLock();
+        volatile PageKey key; // null while free
+        volatile boolean referenced;
+        volatile boolean dirty;
+        volatile int length; // Valid bytes in data
+
+        Frame(int pageSize) {
+            this.data = new byte[pageSize];
+        }
+    }
+
+    private final int pageSize;
+    private final Frame[] frames;
+    private final ConcurrentHashMap<PageKey, Frame> pageTable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Object, CachedFile> filesByIdentity = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CachedFile> files = new ConcurrentHashMap<>(); // By fileId
+    private final ConcurrentHashMap<Integer, Registration> registrations = new ConcurrentHashMap<>();
+    private final ReentrantLock registrationLock = new ReentrantLock();
+    private final AtomicInteger nextFileId = new AtomicInteger(1);
+    private final AtomicInteger nextRegistrationId = new AtomicInteger(1);
+    private final ReentrantLock clockLock = new ReentrantLock(); // Serializes victim selection only
+    private int clockHand = 0; // Guarded by clockLock
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writeBacks = new LongAdder();
+    private final LongAdder bypasses = new LongAdder(); // Misses served without a frame: cache bypass, or every frame pinned
+
+    BlockCache(int pageSize, long budgetBytes) {
+        this.pageSize = pageSize;
+        int count = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / pageSize));
+        this.frames = new Frame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new Frame(pageSize);
+        }
+    }
+
+    /** The cache shared by all open files; budget from the tal2j.cache.bytes system property. */
+    public static BlockCache shared() {
+        return shared;
+    }
+
+    /** Adapter reading and writing pages of a file channel. */
+    public static BlockDevice channelDevice(FileChannel channel, int pageSize) {
+        return new BlockDevice() {
+            @Override
+            public int readBlock(long blockNo, ByteBuffer dest) throws IOException {
+                long position = blockNo * pageSize;
+                int total = 0;
+                while (dest.hasRemaining()) {
+                    int n = channel.read(dest, position + total);
+                    if (n < 0) break;
+                    total += n;
+                }
+                return total;
+            }
+
+            @Override
+            public void writeBlock(long blockNo, ByteBuffer src) throws IOException {
+                long position = blockNo * pageSize;
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+            }
+
+            @Override
+            public void force() throws IOException {
+                channel.force(false);
+            }
+        };
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /** Registers a file of its own (sharing pages with no other open) and returns the registration id. */
+    public int register(BlockDevice device) {
+        return register(new Object(), device);
+    }
+
+    /**
+     * Registers an open of the file with the given identity and returns the registration id
+     * the open reads and writes through. Opens registered under equal identities share pages.
+     */
+    public int register(Object identity, BlockDevice device) {
+        registrationLock.lock();
+        try {
+            CachedFile file = filesByIdentity.computeIfAbsent(identity, id -> {
+                CachedFile created = new CachedFile(nextFileId.getAndIncrement(), id);
+                files.put(created.fileId, created);
+                return created;
+            });
+            file.devices.add(device);
+            int registrationId = nextRegistrationId.getAndIncrement();
+            registrations.put(registrationId, new Registration(file, device));
+            return registrationId;
+        } finally {
+            registrationLock.unlock();
+        }
+    }
+
+    /**
+     * Writes back the file's dirty pages and unregisters the open; the file's pages are dropped
+     * once no other open is registered for it.
+     */
+    public void release(int registrationId) throws IOException {
+        Registration reg = registrations.remove(registrationId);
+        if (reg == null) return;
+        try {
+            flush(reg);
+        } finally {
+            registrationLock.lock();
+            try {
+                reg.file().devices.remove(reg.device());
+                if (reg.file().devices.isEmpty()) {
+                    filesByIdentity.remove(reg.file().identity, reg.file());
+                    files.remove(reg.file().fileId, reg.file());
+                    dropPages(reg.file().fileId, true);
+                }
+            } finally {
+                registrationLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops the file's clean pages, after it was truncated or changed outside the cache.
+     * Dirty pages are newer than the file and are kept.
+     */
+    public void invalidate(int registrationId) {
+        Registration reg = registrations.get(registrationId);
+        if (reg != null) dropPages(reg.file().fileId, false);
+    }
+
+    /** Writes back every dirty page of the file. */
+    public void flush(int registrationId) throws IOException {
+        Registration reg = registrations.get(registrationId);
+        if (reg != null) flush(reg);
+    }
+
+    private void flush(Registration reg) throws IOException {
+        int fileId = reg.file().fileId;
+        for (Frame frame : frames) {
+            PageKey key = frame.key;
+            if (key != null && key.fileId() == fileId && frame.dirty && pin(frame, key)) {
+                try {
+                    writeBack(frame, key, reg.device());
+                } finally {
+                    frame.pinCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Free the file's unpinned pages (dirty ones too only if includeDirty)
+    private void dropPages(int fileId, boolean includeDirty) {
+        for (Frame frame : frames) {
+            PageKey key = frame.key;
+            if (key != null && key.fileId() == fileId && (includeDirty || !frame.dirty)
+                    && frame.pinCount.compareAndSet(0, -1)) {
+                if (frame.key == key && (includeDirty || !frame.dirty)) {
+                    pageTable.remove(key, frame);
+                    frame.key = null;
+                    frame.dirty = false;
+                }
+                frame.pinCount.set(0);
+            }
+        }
+    }
+
+    /** Copies up to length bytes at the file position into dest; returns the count (0 at end of file). */
+    public int read(int registrationId, long position, byte[] dest, int offset, int length) throws IOException {
+        return read(registrationId, position, dest, offset, length, false);
+    }
+
+    /**
+     * As read; with bypass set, pages already cached are used but missed pages are read
+     * directly and not cached, so a sequential scan does not push out other files' pages.
+     */
+    public int read(int registrationId, long position, byte[] dest, int offset, int length, boolean bypass) throws IOException {
+        Registration reg = registration(registrationId);
+        int done = 0;
+        while (done < length) {
+            long blockNo = (position + done) / pageSize;
+            int inPage = (int) ((position + done) % pageSize);
+            Frame frame = acquire(reg, blockNo, true, !bypass);
+            int n;
+            if (frame == null) {
+                n = readUncached(reg.device(), blockNo, inPage, dest, offset + done, length - done);
+            } else {
+                try {
+                    n = copyOut(frame, inPage, dest, offset + done, length - done);
+                } finally {
+                    frame.pinCount.decrementAndGet();
+                }
+            }
+            if (n <= 0) break;
+            done += n;
+            if (inPage + n < pageSize) break; // Short page: end of file
+        }
+        return done;
+    }
+
+    /** Writes the bytes at the file position into cached pages, marking them dirty. */
+    public void write(int registrationId, long position, byte[] src, int offset, int length) throws IOException {
+        write(registrationId, position, src, offset, length, false);
+    }
+
+    /** As write; with writeThrough set, the pages are also written to the file and forced before returning. */
+    public void write(int registrationId, long position, byte[] src, int offset, int length, boolean writeThrough) throws IOException {
+        Registration reg = registration(registrationId);
+        int done = 0;
+        while (done < length) {
+            long blockNo = (position + done) / pageSize;
+            int inPage = (int) ((position + done) % pageSize);
+            int n = Math.min(length - done, pageSize - inPage);
+            // A page that is overwritten completely need not be read first
+            Frame frame = acquire(reg, blockNo, inPage != 0 || n != pageSize, true);
+            if (frame == null) {
+                writeUncached(reg.device(), blockNo, inPage, src, offset + done, n);
+            } else {
+                try {
+                    long stamp = frame.contentLock.writeLock();
+                    try {
+                        System.arraycopy(src, offset + done, frame.data, inPage, n);
+                        frame.length = Math.max(frame.length, inPage + n);
+                        frame.dirty = true;
+                    } finally {
+                        frame.contentLock.unlockWrite(stamp);
+                    }
+                    if (writeThrough) {
+                        writeBack(frame, frame.key, reg.device()); // Pinned, so the page cannot change owner
+                    }
+                } finally {
+                    frame.pinCount.decrementAndGet();
+                }
+            }
+            done += n;
+        }
+        if (writeThrough) {
+            reg.device().force();
+        }
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long evictions() { return evictions.sum(); }
+    public long writeBacks() { return writeBacks.sum(); }
+    public long bypasses() { return bypasses.sum(); }
+
+    public double hitRatio() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public String stats() {
+        return String.format("%d frames of %d bytes: %d hits, %d misses (%.1f%% hit), %d evictions, %d write-backs, %d bypasses",
+                             frames.length, pageSize, hits(), misses(), hitRatio() * 100, evictions(), writeBacks(), bypasses());
+    }
+
+    private Registration registration(int registrationId) throws IOException {
+        Registration reg = registrations.get(registrationId);
+        if (reg == null) throw new IOException("File " + registrationId + " is not registered with the block cache");
+        return reg;
+    }
+
+    // Returns the pinned frame for the page, loading it on a miss; null on a miss without fill or if no frame could be freed
+    private Frame acquire(Registration reg, long blockNo, boolean load, boolean fill) throws IOException {
+        PageKey key = new PageKey(reg.file().fileId, blockNo);
+        while (true) {
+            Frame frame = pageTable.get(key);
+            if (frame != null) {
+                if (pin(frame, key)) {
+                    frame.referenced = true;
+                    hits.increment();
+                    return frame;
+                }
+                Thread.onSpinWait(); // Being evicted or loaded; look again
+                continue;
+            }
+            if (!fill) {
+                bypasses.increment();
+                return null;
+            }
+            Frame victim = evict();
+            if (victim == null) {
+                bypasses.increment();
+                return null;
+            }
+            writeBackVictim(victim);
+            // victim.pinCount is -1: nobody else can pin it until it is published
+            victim.length = 0;
+            victim.dirty = false;
+            if (load) {
+                try {
+                    victim.length = reg.device().readBlock(blockNo, ByteBuffer.wrap(victim.data));
+                } catch (IOException | RuntimeException e) {
+                    victim.pinCount.set(0);
+                    throw e;
+                }
+            }
+            victim.key = key;
+            victim.referenced = true;
+            victim.pinCount.set(1);
+            if (pageTable.putIfAbsent(key, victim) == null) {
+                misses.increment();
+                return victim;
+            }
+            // Another thread loaded the same page first; give the frame back and use theirs
+            victim.key = null;
+            victim.pinCount.decrementAndGet();
+        }
+    }
+
+    // Lock-free pin: succeeds only while the frame still holds the expected page
+    private static boolean pin(Frame frame, PageKey key) {
+        while (true) {
+            int pins = frame.pinCount.get();
+            if (pins < 0) return false;
+            if (frame.pinCount.compareAndSet(pins, pins + 1)) {
+                if (frame.key == key || key.equals(frame.key)) return true;
+                frame.pinCount.decrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    // CLOCK sweep for an unpinned frame; returns it with pinCount -1, or null after two full turns
+    private Frame evict() {
+        clockLock.lock();
+        try {
+            for (int step = 0; step < frames.length * 2; step++) {
+                Frame frame = frames[clockHand];
+                clockHand = (clockHand + 1) % frames.length;
+                if (frame.pinCount.get() != 0) continue;
+                if (frame.referenced) {
+                    frame.referenced = false; // Second chance
+                    continue;
+                }
+                if (frame.pinCount.compareAndSet(0, -1)) return frame;
+            }
+            return null;
+        } finally {
+            clockLock.unlock();
+        }
+    }
+
+    // Write a chosen victim's page back if dirty and unmap it; the frame's pinCount of -1 keeps others out meanwhile
+    private void writeBackVictim(Frame frame) throws IOException {
+        PageKey old = frame.key;
+        if (old == null) return;
+        if (frame.dirty) {
+            CachedFile file = files.get(old.fileId());
+            BlockDevice device = null;
+            if (file != null) {
+                for (BlockDevice d : file.devices) {
+                    device = d;
+                    break;
+                }
+            }
+            if (device != null) {
+                try {
+                    writeBack(frame, old, device);
+                } catch (IOException e) {
+                    frame.pinCount.set(0); // Leave the page cached and dirty
+                    throw e;
+                }
+            }
+        }
+        pageTable.remove(old, frame);
+        frame.key = null;
+        evictions.increment();
+    }
+
+    private void writeBack(Frame frame, PageKey key, BlockDevice device) throws IOException {
+        long stamp = frame.contentLock.readLock();
+        try {
+            if (!frame.dirty) return;
+            device.writeBlock(key.blockNo(), ByteBuffer.wrap(frame.data, 0, frame.length));
+            frame.dirty = false;
+            writeBacks.increment();
+        } finally {
+            frame.contentLock.unlockRead(stamp);
+        }
+    }
+
+    // Copy out under an optimistic read; retry with a read lock if a writer got in between
+    private static int copyOut(Frame frame, int inPage, byte[] dest, int offset, int length) {
+        long stamp = frame.contentLock.tryOptimisticRead();
+        int n = Math.max(0, Math.min(length, frame.length - inPage));
+        System.arraycopy(frame.data, inPage, dest, offset, n);
+        if (frame.contentLock.validate(stamp)) return n;
+        stamp = frame.contentLock.readLock();
+        try {
+            n = Math.max(0, Math.min(length, frame.length - inPage));
+            System.arraycopy(frame.data, inPage, dest, offset, n);
+            return n;
+        } finally {
+            frame.contentLock.unlockRead(stamp);
+        }
+    }
+
+    private int readUncached(BlockDevice device, long blockNo, int inPage, byte[] dest, int offset, int length) throws IOException {
+        byte[] page = new byte[pageSize];
+        int valid = device.readBlock(blockNo, ByteBuffer.wrap(page));
+        int n = Math.max(0, Math.min(length, valid - inPage));
+        System.arraycopy(page, inPage, dest, offset, n);
+        return n;
+    }
+
+    private void writeUncached(BlockDevice device, long blockNo, int inPage, byte[] src, int offset, int length) throws IOException {
+        byte[] page = new byte[pageSize];
+        int valid = device.readBlock(blockNo, ByteBuffer.wrap(page));
+        System.arraycopy(src, offset, page, inPage, length);
+        device.writeBlock(blockNo, ByteBuffer.wrap(page, 0, Math.max(valid, inPage + length)));
+    }
+}
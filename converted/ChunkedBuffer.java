@@ -0,0 +1,110 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable byte store for simulated output files, built from fixed-size chunks.
+ *
+ * Appends fill the tail chunk and start a new one when it is full, so earlier
+ * content is never copied or reallocated. Optionally, full chunks beyond a
+ * resident limit are spilled to a temporary file, bounding the memory a
+ * long-running writer holds.
+ */
+class ChunkedBuffer {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int chunkSize;
+    private final int maxResidentChunks; // 0 = keep every chunk in memory
+    private final List<ByteBuffer> chunks = new ArrayList<>(); // null entries have been spilled
+    private long size = 0;
+    private int residentChunks = 0;
+    private int nextSpillIndex = 0; // Chunks are spilled oldest first
+    private Path spillPath;
+    private FileChannel spillChannel;
+
+    ChunkedBuffer() {
+        this(DEFAULT_CHUNK_SIZE, 0);
+    }
+
+    /**
+     * @param chunkSize bytes per chunk
+     * @param maxResidentChunks full chunks kept in memory before spilling to disk (0 = never spill)
+     */
+    ChunkedBuffer(int chunkSize, int maxResidentChunks) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = chunkSize;
+        this.maxResidentChunks = maxResidentChunks;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /** Appends bytes at the end; O(1) amortized and never moves existing content. */
+    public void append(byte[] src, int offset, int length) throws IOException {
+        while (length > 0) {
+            int inTail = (int) (size % chunkSize);
+            if (inTail == 0) {
+                startChunk();
+            }
+            ByteBuffer tail = chunks.get(chunks.size() - 1);
+            int n = Math.min(length, chunkSize - inTail);
+            tail.put(inTail, src, offset, n);
+            size += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /** Drops all content and deletes the spill file, if any. */
+    public void close() throws IOException {
+        chunks.clear();
+        size = 0;
+        residentChunks = 0;
+        nextSpillIndex = 0;
+        if (spillChannel != null) {
+            spillChannel.close();
+            Files.deleteIfExists(spillPath);
+            spillChannel = null;
+            spillPath = null;
+        }
+    }
+
+    private void startChunk() throws IOException {
+        // The previous tail is now full; spill the oldest full chunks if over the resident limit
+        if (maxResidentChunks > 0) {
+            while (residentChunks >= maxResidentChunks && nextSpillIndex < chunks.size()) {
+                spill(nextSpillIndex++);
+            }
+        }
+        chunks.add(ByteBuffer.allocate(chunkSize).order(ByteOrder.LITTLE_ENDIAN));
+        residentChunks++;
+    }
+
+    private void spill(int index) throws IOException {
+        if (spillChannel == null) {
+            spillPath = Files.createTempFile("tal2j-chunks", ".spill");
+            spillChannel = FileChannel.open(spillPath, StandardOpenOption.WRITE,
+                                            StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        ByteBuffer chunk = chunks.get(index).duplicate().clear();
+        long position = (long) index * chunkSize;
+        while (chunk.hasRemaining()) {
+            position += spillChannel.write(chunk, position);
+        }
+        chunks.set(index, null);
+        residentChunks--;
+    }
+}
@@ -0,0 +1,225 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Disk file stored as individually Deflate-compressed blocks of fixed logical size.
+ *
+ * Each block is compressed on its own and appended to the file; a block that does not
+ * shrink is stored as is. An in-memory index maps block numbers to their stored extent,
+ * so a read at any position inflates only the block holding it. At CLOSE the index is
+ * written after the data, followed by a footer:
+ *
+ *   [block data ...][index: count x (blockNo 8, offset 8, storedLength 4, length 4)]
+ *   [indexOffset 8][count 4][blockSize 4][MAGIC 4]
+ *
+ * OPEN recognizes the footer and reads the file back transparently. Serves as the
+ * BlockCache device of a compressed file, so cached pages hold inflated data.
+ */
+class CompressedBlockFile implements BlockCache.BlockDevice {
+    private static final int MAGIC = 0x54434231; // "TCB1"
+    private static final int FOOTER_LENGTH = 20;
+    private static final int INDEX_ENTRY_LENGTH = 24;
+
+    // Stored extent of one block; storedLength == length means the block is not compressed
+    private record BlockRef(long offset, int storedLength, int length) {}
+
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final Map<Long, BlockRef> index = new ConcurrentHashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED); // Guarded by this; speed over ratio, I/O is the bottleneck
+    private long appendPosition = 0; // Guarded by this
+    private boolean modified = false; // Guarded by this
+
+    // Statistics
+    private final LongAdder logicalBytesWritten = new LongAdder();
+    private final LongAdder storedBytesWritten = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder blocksDecoded = new LongAdder();
+
+    private CompressedBlockFile(FileChannel channel, int blockSize) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+    }
+
+    /** Starts a new, empty compressed file on the channel. */
+    public static CompressedBlockFile create(FileChannel channel, int blockSize) {
+        return new CompressedBlockFile(channel, blockSize);
+    }
+
+    /** Opens the compressed file on the channel, or returns null if it has no compressed-file footer. */
+    public static CompressedBlockFile open(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < FOOTER_LENGTH) return null;
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        readFully(channel, footer, size - FOOTER_LENGTH);
+        footer.flip();
+        long indexOffset = footer.getLong();
+        int count = footer.getInt();
+        int blockSize = footer.getInt();
+        if (footer.getInt() != MAGIC || indexOffset < 0 || count < 0 || blockSize <= 0
+                || indexOffset + (long) count * INDEX_ENTRY_LENGTH != size - FOOTER_LENGTH) {
+            return null;
+        }
+        CompressedBlockFile file = new CompressedBlockFile(channel, blockSize);
+        ByteBuffer entries = ByteBuffer.allocate(count * INDEX_ENTRY_LENGTH);
+        readFully(channel, entries, indexOffset);
+        entries.flip();
+        for (int i = 0; i < count; i++) {
+            long blockNo = entries.getLong();
+            file.index.put(blockNo, new BlockRef(entries.getLong(), entries.getInt(), entries.getInt()));
+        }
+        file.appendPosition = indexOffset;
+        return file;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /** Uncompressed length of the file. */
+    public long length() {
+        long length = 0;
+        for (Map.Entry<Long, BlockRef> e : index.entrySet()) {
+            length = Math.max(length, e.getKey() * blockSize + e.getValue().length());
+        }
+        return length;
+    }
+
+    @Override
+    public int readBlock(long blockNo, ByteBuffer dest) throws IOException {
+        BlockRef ref = index.get(blockNo);
+        if (ref == null) return 0; // Never written
+        ByteBuffer stored = ByteBuffer.allocate(ref.storedLength());
+        readFully(channel, stored, ref.offset());
+        int n = Math.min(dest.remaining(), ref.length());
+        if (ref.storedLength() == ref.length()) {
+            dest.put(stored.array(), 0, n);
+            return n;
+        }
+        long start = System.nanoTime();
+        byte[] block = new byte[ref.length()];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(stored.array());
+        try {
+            int done = 0;
+            while (done < block.length && !inflater.finished()) {
+                int k = inflater.inflate(block, done, block.length - done);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                done += k;
+            }
+            if (done != block.length) {
+                throw new IOException("Compressed block " + blockNo + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed block " + blockNo + " is corrupt", e);
+        }
+        decodeNanos.add(System.nanoTime() - start);
+        bytesDecoded.add(block.length);
+        blocksDecoded.increment();
+        dest.put(block, 0, n);
+        return n;
+    }
+
+    @Override
+    public synchronized void writeBlock(long blockNo, ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        byte[] block = new byte[length];
+        src.get(block);
+        byte[] stored = new byte[length];
+        deflater.reset();
+        deflater.setInput(block);
+        deflater.finish();
+        int storedLength = 0;
+        while (!deflater.finished() && storedLength < length) {
+            storedLength += deflater.deflate(stored, storedLength, length - storedLength);
+        }
+        if (!deflater.finished() || storedLength >= length) {
+            stored = block; // Incompressible: keep it raw
+            storedLength = length;
+        }
+        ByteBuffer out = ByteBuffer.wrap(stored, 0, storedLength);
+        long offset = appendPosition;
+        while (out.hasRemaining()) {
+            appendPosition += channel.write(out, appendPosition);
+        }
+        // A rewritten block leaves its previous extent unused until the file is rewritten
+        index.put(blockNo, new BlockRef(offset, storedLength, length));
+        modified = true;
+        logicalBytesWritten.add(length);
+        storedBytesWritten.add(storedLength);
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    /** Reads up to dest.remaining() bytes at the uncompressed position, for sequential block buffering; -1 at end of file. */
+    public int read(long position, ByteBuffer dest) throws IOException {
+        long blockNo = position / blockSize;
+        int inBlock = (int) (position % blockSize);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        int valid = readBlock(blockNo, block);
+        if (valid <= inBlock) return -1;
+        int n = Math.min(dest.remaining(), valid - inBlock);
+        dest.put(block.array(), inBlock, n);
+        return n;
+    }
+
+    /** Writes the block index and footer if any block was written; the channel stays open. */
+    public synchronized void close() throws IOException {
+        deflater.end();
+        if (!modified) return;
+        ByteBuffer trailer = ByteBuffer.allocate(index.size() * INDEX_ENTRY_LENGTH + FOOTER_LENGTH);
+        for (Map.Entry<Long, BlockRef> e : index.entrySet()) {
+            BlockRef ref = e.getValue();
+            trailer.putLong(e.getKey()).putLong(ref.offset()).putInt(ref.storedLength()).putInt(ref.length());
+        }
+        trailer.putLong(appendPosition).putInt(index.size()).putInt(blockSize).putInt(MAGIC);
+        trailer.flip();
+        long position = appendPosition;
+        while (trailer.hasRemaining()) {
+            position += channel.write(trailer, position);
+        }
+        channel.truncate(position);
+    }
+
+    /** Uncompressed bytes written per stored byte (1.0 when nothing was written). */
+    public double compressionRatio() {
+        long stored = storedBytesWritten.sum();
+        return stored == 0 ? 1.0 : (double) logicalBytesWritten.sum() / stored;
+    }
+
+    /** Inflate throughput in MB/s over all blocks decoded so far. */
+    public double decodeMBPerSecond() {
+        long nanos = decodeNanos.sum();
+        return nanos == 0 ? 0.0 : bytesDecoded.sum() / 1e6 / (nanos / 1e9);
+    }
+
+    public String stats() {
+        return String.format("%d blocks indexed, %d bytes stored for %d written (ratio %.2f), %d blocks inflated at %.1f MB/s",
+                             index.size(), storedBytesWritten.sum(), logicalBytesWritten.sum(), compressionRatio(),
+                             blocksDecoded.sum(), decodeMBPerSecond());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            int n = channel.read(dest, position);
+            if (n < 0) throw new IOException("Unexpected end of compressed file");
+            position += n;
+        }
+    }
+}
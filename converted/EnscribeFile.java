@@ -0,0 +1,60 @@
+package converted;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Record-level operations of a simulated Enscribe file, as used by GuardianInterface.
+ * Implemented by a single KeyedFile and by a PartitionedFile spread over several.
+ */
+interface EnscribeFile {
+
+    /** Name the file was created under; identifies it in the audit trail. */
+    String fileName();
+
+    /** Length of the keys KEYPOSITION compares against for the primary key. */
+    int effectiveKeyLength();
+
+    int recordCount();
+
+    /** Declares an alternate key; false if the specifier is taken or a unique key is duplicated. */
+    boolean addAlternateKey(int keySpecifier, int offset, int length, boolean unique);
+
+    /** Length of the alternate key, or -1 if the specifier is not declared. */
+    int alternateKeyLength(int keySpecifier);
+
+    KeyedFile.Entry ceiling(byte[] key);
+
+    KeyedFile.Entry higher(byte[] key);
+
+    KeyedFile.Entry get(byte[] key);
+
+    KeyedFile.Entry ceilingAlternate(int keySpecifier, byte[] altKey);
+
+    KeyedFile.Entry higherAlternate(int keySpecifier, byte[] indexKey);
+
+    /** Primary key a record would be stored under; null if it is too short or the file assigns keys itself. */
+    byte[] keyOf(ByteBuffer record, int length);
+
+    /** Adds a record; returns its primary key, or null on a duplicate or missing key. */
+    byte[] insert(ByteBuffer record, int length);
+
+    /** Replaces a record; returns KeyedFile.OK or a FILEINFO error code. */
+    int update(byte[] key, ByteBuffer record, int length);
+
+    boolean delete(byte[] key);
+
+    /**
+     * Stores the record under the given primary key, adding it or replacing what is there. For
+     * putting a record back where it was (ABORTTRANSACTION, crash recovery): unlike insert, it
+     * keeps the key an entry-sequenced file assigned. Returns KeyedFile.OK or a FILEINFO error code.
+     */
+    int put(byte[] key, ByteBuffer record, int length);
+
+    /**
+     * Applies the mapper to every record in primary-key order and returns the non-null results
+     * in that order. With parallel set, implementations may process parts of the file concurrently.
+     */
+    <R> List<R> scan(Function<ByteBuffer, R> mapper, boolean parallel);
+}
@@ -0,0 +1,94 @@
+package converted;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Epoch-based reclamation for storage that lock-free readers may still be looking at.
+ *
+ * Readers bracket each access with enter() and exit() in try/finally; that costs two atomic updates and never
+ * blocks. A writer that has unlinked a block (so no new reader can find it) retires it with
+ * the action that recycles it. The global epoch only advances once every reader from the
+ * epoch before the current one has left, so an action retired in epoch e runs once the
+ * epoch reaches e + 2: no reader that could have seen the block is still inside.
+ */
+class EpochReclaimer {
+    private static final EpochReclaimer shared = new EpochReclaimer();
+
+    private record Retired(long epoch, Runnable reclaim) {}
+
+    /** An active read; exit it when done with everything found under it. */
+    final class Guard {
+        private final int parity;
+
+        private Guard(long epoch) {
+            this.parity = (int) (epoch & 1);
+        }
+
+        public void exit() {
+            active.decrementAndGet(parity);
+        }
+    }
+
+    private final AtomicLong globalEpoch = new AtomicLong(2);
+    // Readers inside, by epoch parity; only the current and previous epochs can have readers
+    private final AtomicLongArray active = new AtomicLongArray(2);
+    private final ConcurrentLinkedQueue<Retired> limbo = new ConcurrentLinkedQueue<>();
+    private final LongAdder retired = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+
+    /** The reclaimer shared by all keyed files. */
+    public static EpochReclaimer shared() {
+        return shared;
+    }
+
+    public Guard enter() {
+        while (true) {
+            long epoch = globalEpoch.get();
+            int parity = (int) (epoch & 1);
+            active.incrementAndGet(parity);
+            if (globalEpoch.get() == epoch) {
+                return new Guard(epoch);
+            }
+            active.decrementAndGet(parity); // The epoch moved on while registering; register in the new one
+        }
+    }
+
+    /** Runs reclaim once no reader that entered before this call is still inside. */
+    public void retire(Runnable reclaim) {
+        limbo.add(new Retired(globalEpoch.get(), reclaim));
+        retired.increment();
+        tryReclaim();
+    }
+
+    /** Advances the epoch if readers allow and runs the actions that became safe; returns how many ran. */
+    public int tryReclaim() {
+        for (int i = 0; i < 2; i++) {
+            long epoch = globalEpoch.get();
+            // Readers of epoch - 1 share a counter with epoch + 1
+            if (active.get((int) ((epoch + 1) & 1)) != 0 || !globalEpoch.compareAndSet(epoch, epoch + 1)) break;
+        }
+        long safe = globalEpoch.get() - 2;
+        int ran = 0;
+        for (Iterator<Retired> it = limbo.iterator(); it.hasNext(); ) {
+            Retired r = it.next();
+            if (r.epoch() <= safe && limbo.remove(r)) {
+                r.reclaim().run();
+                ran++;
+            }
+        }
+        reclaimed.add(ran);
+        return ran;
+    }
+
+    public long retiredCount() { return retired.sum(); }
+    public long reclaimedCount() { return reclaimed.sum(); }
+
+    public String stats() {
+        return String.format("epoch %d: %d retired, %d reclaimed, %d pending",
+                             globalEpoch.get(), retiredCount(), reclaimedCount(), limbo.size());
+    }
+}
@@ -0,0 +1,253 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps disk files open across CLOSE so a later OPEN of the same file can reuse them.
+ *
+ * A handle is keyed by resolved path and access (input or output) and holds the channel,
+ * the block index of a compressed file and the file's BlockCache registration, so cached
+ * pages also survive the CLOSE/OPEN cycle. Every handle of a path registers under the same
+ * identity, so input and output opens of a file share its cached pages. Position, lastError and other per-open state
+ * stay in the caller. Input handles are shared by concurrent opens and dropped if the file
+ * changed on disk since they were opened; an output handle is truncated when it is reused
+ * and serves one open at a time. Idle handles beyond maxOpen are closed least recently
+ * used first.
+ */
+class FileHandleCache {
+    private static final Logger logger = LogManager.getLogger(FileHandleCache.class);
+
+    private record Key(Path path, boolean output) {}
+
+    // Identity a file's pages are shared under in the block cache, by every open and either access
+    private record PageOwner(Path path, boolean compressed) {}
+
+    /** An open disk file; fields other than users are fixed while the handle is in use. */
+    static final class Handle {
+        final Key key;
+        final FileChannel channel;
+        CompressedBlockFile compressed; // Block-compressed file, null for a plain one
+        int cacheFileId = -1; // BlockCache registration, -1 if the file is read uncached
+        long size; // Input: file state when opened, to detect changes made elsewhere
+        FileTime modified;
+        int users = 0; // Guarded by the cache lock
+        boolean cached = true; // False for a private handle opened while the cached one was busy
+
+        private Handle(Key key, FileChannel channel) {
+            this.key = key;
+            this.channel = channel;
+        }
+    }
+
+    private final int maxOpen;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Key, Handle> handles = new LinkedHashMap<>(16, 0.75f, true); // Access order = LRU
+    // Guarded by lock
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    FileHandleCache(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    /**
+     * Returns an open handle for the file: input files are opened for reading (and recognized if
+     * compressed), output files are created or truncated, and compressed if compress is set.
+     */
+    public Handle acquire(Path path, boolean output, boolean compress) throws IOException {
+        Key key = new Key(path.toAbsolutePath().normalize(), output);
+        lock.lock();
+        try {
+            Handle cached = handles.get(key);
+            if (cached != null && !output && isCurrent(cached)) {
+                hits++;
+                cached.users++;
+                return cached;
+            }
+            if (cached != null && output && cached.users == 0) {
+                hits++;
+                cached.users++;
+                try {
+                    prepareOutput(cached, compress);
+                } catch (IOException e) {
+                    cached.users--;
+                    discard(cached);
+                    throw e;
+                }
+                return cached;
+            }
+            misses++;
+            Handle fresh = open(key, compress);
+            fresh.users = 1;
+            if (cached != null && !output && fresh.cacheFileId >= 0) {
+                BlockCache.shared().invalidate(fresh.cacheFileId); // Pages cached before it changed on disk
+            }
+            if (cached != null && cached.users > 0) {
+                fresh.cached = false; // Output still in use by another open (or a busy stale input): keep it private
+            } else {
+                if (cached != null) discard(cached); // Changed on disk since it was opened
+                handles.put(key, fresh);
+                evictIdle();
+            }
+            return fresh;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a handle at CLOSE; the caller has already flushed its buffered data. */
+    public void release(Handle handle) {
+        lock.lock();
+        try {
+            handle.users--;
+            if (!handle.cached) {
+                if (handle.users == 0) close(handle);
+            } else if (handle.users == 0 && handles.get(handle.key) != handle) {
+                close(handle); // Replaced while in use
+            } else {
+                evictIdle();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes every idle handle. */
+    public void clear() {
+        lock.lock();
+        try {
+            List<Handle> idle = new ArrayList<>();
+            handles.values().removeIf(h -> h.users == 0 && idle.add(h));
+            idle.forEach(this::close);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double hitRate() {
+        lock.lock();
+        try {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return String.format("%d handles open (max %d): %d hits, %d misses (%.1f%% hit), %d evictions",
+                                 handles.size(), maxOpen, hits, misses, hitRate() * 100, evictions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Handle open(Key key, boolean compress) throws IOException {
+        FileChannel channel;
+        if (key.output()) {
+            // READ as well: the block cache reads a partly written page before updating it
+            channel = FileChannel.open(key.path(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            channel = FileChannel.open(key.path(), StandardOpenOption.READ);
+        }
+        Handle handle = new Handle(key, channel);
+        try {
+            if (key.output()) {
+                prepareOutput(handle, compress);
+            } else {
+                handle.size = Files.size(key.path());
+                handle.modified = Files.getLastModifiedTime(key.path());
+                handle.compressed = CompressedBlockFile.open(channel); // Null unless written compressed
+                register(handle);
+            }
+        } catch (IOException e) {
+            close(handle);
+            throw e;
+        }
+        return handle;
+    }
+
+    // Start an output file over: drop its cached pages, truncate it and set up compression
+    private static void prepareOutput(Handle handle, boolean compress) throws IOException {
+        if (handle.cacheFileId >= 0) {
+            BlockCache.shared().release(handle.cacheFileId);
+            handle.cacheFileId = -1;
+        }
+        handle.channel.truncate(0);
+        handle.compressed = compress ? CompressedBlockFile.create(handle.channel, BlockCache.shared().pageSize()) : null;
+        register(handle);
+        if (handle.cacheFileId >= 0) {
+            BlockCache.shared().invalidate(handle.cacheFileId); // Other opens' pages of the old content
+        }
+    }
+
+    private static void register(Handle handle) {
+        BlockCache cache = BlockCache.shared();
+        PageOwner owner = new PageOwner(handle.key.path(), handle.compressed != null);
+        if (handle.compressed == null) {
+            handle.cacheFileId = cache.register(owner, BlockCache.channelDevice(handle.channel, cache.pageSize()));
+        } else if (handle.compressed.blockSize() == cache.pageSize()) {
+            handle.cacheFileId = cache.register(owner, handle.compressed); // Cached pages hold inflated blocks
+        }
+        // Otherwise a compressed file's blocks do not line up with cache pages: it is read uncached
+    }
+
+    private static boolean isCurrent(Handle handle) {
+        try {
+            return Files.size(handle.key.path()) == handle.size
+                    && Files.getLastModifiedTime(handle.key.path()).equals(handle.modified);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Close least recently used idle handles until within maxOpen
+    private void evictIdle() {
+        Iterator<Handle> it = handles.values().iterator();
+        while (handles.size() > maxOpen && it.hasNext()) {
+            Handle handle = it.next();
+            if (handle.users == 0) {
+                it.remove();
+                evictions++;
+                close(handle);
+            }
+        }
+    }
+
+    private void discard(Handle handle) {
+        handles.remove(handle.key, handle);
+        if (handle.users == 0) close(handle);
+    }
+
+    private void close(Handle handle) {
+        try {
+            if (handle.cacheFileId >= 0) {
+                BlockCache.shared().release(handle.cacheFileId);
+            }
+        } catch (IOException e) {
+            logger.warn("Error writing back cached blocks for {}", handle.key.path(), e);
+        }
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing {}", handle.key.path(), e);
+        }
+    }
+}
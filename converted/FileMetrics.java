@@ -0,0 +1,109 @@
+package converted;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * I/O counters for one file, accumulated over every open of it.
+ *
+ * Per file-system procedure it counts calls, bytes transferred and latency
+ * (a LatencyHistogram); errors are counted by Guardian error code (EOF, 11,
+ * included). Everything is a LongAdder, so recording takes no lock. Metrics
+ * are looked up by file name with forFile and all of them are logged at
+ * process exit unless tal2j.metrics.dumpAtExit is false.
+ */
+class FileMetrics {
+    private static final Logger logger = LogManager.getLogger(FileMetrics.class);
+
+    /** Instrumented file-system procedures. */
+    enum Op { OPEN, READ, WRITE, KEYPOSITION, READUPDATE, LOCKREC, WRITEUPDATE, WRITEUPDATEUNLOCK, WRITEREAD, REPLY }
+
+    private static final Map<String, FileMetrics> registry = new ConcurrentHashMap<>();
+
+    static {
+        if (!"false".equalsIgnoreCase(System.getProperty("tal2j.metrics.dumpAtExit"))) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (!registry.isEmpty()) logger.info("File I/O metrics at exit:\n{}", dumpAll());
+            }, "file-metrics-dump"));
+        }
+    }
+
+    private final String fileName;
+    private final LongAdder[] calls = new LongAdder[Op.values().length];
+    private final LongAdder[] bytes = new LongAdder[Op.values().length];
+    private final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private FileMetrics(String fileName) {
+        this.fileName = fileName;
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new LongAdder();
+            bytes[i] = new LongAdder();
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Metrics of the named file, created on first use. */
+    public static FileMetrics forFile(String fileName) {
+        return registry.computeIfAbsent(fileName, FileMetrics::new);
+    }
+
+    /** Every file's metrics, by file name. */
+    public static Map<String, FileMetrics> all() {
+        return new TreeMap<>(registry);
+    }
+
+    /** Summaries of every file, busiest (most calls) first. */
+    public static String dumpAll() {
+        StringBuilder sb = new StringBuilder();
+        registry.values().stream()
+                .sorted((a, b) -> Long.compare(b.totalCalls(), a.totalCalls()))
+                .forEach(m -> sb.append(m.summary()).append('\n'));
+        return sb.toString();
+    }
+
+    /** Records one call; error is the Guardian error code it left (0 = success). */
+    public void record(Op op, long nanos, long byteCount, int error) {
+        calls[op.ordinal()].increment();
+        if (byteCount > 0) bytes[op.ordinal()].add(byteCount);
+        latency[op.ordinal()].record(nanos);
+        if (error != 0) errors.computeIfAbsent(error, e -> new LongAdder()).increment();
+    }
+
+    public String fileName() { return fileName; }
+    public long calls(Op op) { return calls[op.ordinal()].sum(); }
+    public long bytes(Op op) { return bytes[op.ordinal()].sum(); }
+    public LatencyHistogram latency(Op op) { return latency[op.ordinal()]; }
+
+    public long errors(int errorCode) {
+        LongAdder n = errors.get(errorCode);
+        return n == null ? 0 : n.sum();
+    }
+
+    public long totalCalls() {
+        long total = 0;
+        for (LongAdder n : calls) total += n.sum();
+        return total;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder(fileName).append(':');
+        for (Op op : Op.values()) {
+            long n = calls(op);
+            if (n == 0) continue;
+            sb.append("\n  ").append(op).append(": ").append(n).append(" calls");
+            if (bytes(op) > 0) sb.append(", ").append(bytes(op)).append(" bytes");
+            sb.append(", ").append(latency(op).summary());
+        }
+        if (!errors.isEmpty()) {
+            sb.append("\n  errors:");
+            new TreeMap<>(errors).forEach((code, n) -> sb.append(' ').append(code).append('=').append(n.sum()));
+        }
+        return sb.toString();
+    }
+}
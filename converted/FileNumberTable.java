@@ -0,0 +1,144 @@
+package converted;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Simulates the Guardian per-process file table: maps file numbers to open-file state.
+ *
+ * Slots are addressed directly by file number through a two-level array (a fixed
+ * directory of lazily created pages), so the table never copies on growth and a
+ * lookup is two volatile array reads with no locking or boxing. File numbers are
+ * handed out with CAS, preferring numbers released by CLOSE (kept on a lock-free
+ * free list) before advancing the high-water mark.
+ */
+class FileNumberTable<T> {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MAX_PAGES = 1024; // 262,144 file numbers
+
+    private final AtomicReferenceArray<Page<T>> pages = new AtomicReferenceArray<>(MAX_PAGES);
+    private final AtomicInteger highWater; // Next never-used file number
+    // Free list head: (ABA stamp << 32) | (fileNum + 1), 0 in the low half means empty
+    private final AtomicLong freeHead = new AtomicLong(0L);
+
+    // One page of slots plus the free-list links for the same file numbers
+    private static class Page<T> {
+        final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(PAGE_SIZE);
+        final int[] nextFree = new int[PAGE_SIZE]; // Published by the freeHead CAS
+    }
+
+    /**
+     * @param firstFileNum lowest file number handed out by allocate()
+     */
+    FileNumberTable(int firstFileNum) {
+        this.highWater = new AtomicInteger(firstFileNum);
+    }
+
+    /** Returns the entry for the file number, or null if it is not in use. Lock-free. */
+    public T get(int fileNum) {
+        if (fileNum < 0 || fileNum >= MAX_PAGES * PAGE_SIZE) {
+            return null;
+        }
+        Page<T> page = pages.get(fileNum >>> PAGE_BITS);
+        return page == null ? null : page.slots.get(fileNum & PAGE_MASK);
+    }
+
+    /** Installs the entry under a new file number and returns it, or -1 if the table is full. */
+    public int allocate(T value) {
+        while (true) {
+            int fileNum = popFree();
+            if (fileNum < 0) {
+                fileNum = highWater.getAndIncrement();
+                if (fileNum >= MAX_PAGES * PAGE_SIZE) {
+                    highWater.decrementAndGet();
+                    return -1;
+                }
+            }
+            // A number can also be occupied by put(); skip it and take another
+            if (pageFor(fileNum).slots.compareAndSet(fileNum & PAGE_MASK, null, value)) {
+                return fileNum;
+            }
+        }
+    }
+
+    /** Installs the entry under a caller-chosen file number, replacing any previous entry. */
+    public T put(int fileNum, T value) {
+        if (fileNum < 0 || fileNum >= MAX_PAGES * PAGE_SIZE) {
+            throw new IllegalArgumentException("File number out of range: " + fileNum);
+        }
+        Page<T> page = pageFor(fileNum);
+        highWater.accumulateAndGet(fileNum + 1, Math::max); // Keep forEach() covering fixed numbers
+        return page.slots.getAndSet(fileNum & PAGE_MASK, value);
+    }
+
+    /** Removes and returns the entry, making its file number available again. */
+    public T release(int fileNum) {
+        if (fileNum < 0 || fileNum >= MAX_PAGES * PAGE_SIZE) {
+            return null;
+        }
+        Page<T> page = pages.get(fileNum >>> PAGE_BITS);
+        if (page == null) {
+            return null;
+        }
+        T value = page.slots.getAndSet(fileNum & PAGE_MASK, null);
+        if (value != null) {
+            pushFree(fileNum, page);
+        }
+        return value;
+    }
+
+    /** Visits every file number currently in use (weakly consistent with concurrent changes). */
+    public void forEach(ObjIntConsumer<T> action) {
+        int limit = Math.min(highWater.get(), MAX_PAGES * PAGE_SIZE);
+        for (int p = 0; p <= (limit - 1) >>> PAGE_BITS && p < MAX_PAGES; p++) {
+            Page<T> page = pages.get(p);
+            if (page == null) continue;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                T value = page.slots.get(i);
+                if (value != null) {
+                    action.accept(value, (p << PAGE_BITS) | i);
+                }
+            }
+        }
+    }
+
+    private Page<T> pageFor(int fileNum) {
+        int index = fileNum >>> PAGE_BITS;
+        Page<T> page = pages.get(index);
+        if (page == null) {
+            pages.compareAndSet(index, null, new Page<>());
+            page = pages.get(index);
+        }
+        return page;
+    }
+
+    private int popFree() {
+        while (true) {
+            long head = freeHead.get();
+            int top = (int) head - 1;
+            if (top < 0) {
+                return -1;
+            }
+            int next = pages.get(top >>> PAGE_BITS).nextFree[top & PAGE_MASK];
+            long newHead = (((head >>> 32) + 1) << 32) | (next & 0xFFFFFFFFL);
+            if (freeHead.compareAndSet(head, newHead)) {
+                return top;
+            }
+        }
+    }
+
+    private void pushFree(int fileNum, Page<T> page) {
+        while (true) {
+            long head = freeHead.get();
+            page.nextFree[fileNum & PAGE_MASK] = (int) head; // Link stored as fileNum + 1
+            long newHead = (((head >>> 32) + 1) << 32) | ((fileNum + 1) & 0xFFFFFFFFL);
+            if (freeHead.compareAndSet(head, newHead)) {
+                return;
+            }
+        }
+    }
+}
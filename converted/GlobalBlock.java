@@ -0,0 +1,167 @@
+package converted;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A TAL global data block, or any buffer a process designates, kept in step with the
+ * backup of a process pair (see ProcessPair).
+ *
+ * The block is split into REGION_SIZE-byte regions with a dirty bit each. The put methods
+ * write the block and mark only the regions whose bytes actually changed; code that writes
+ * the buffer directly (a record view over it, say) calls markDirty for what it changed.
+ * CHECKPOINT takes the dirty regions as coalesced runs and clears them, so it ships only
+ * what changed since the last one; the dirty bits are scanned only between the lowest and
+ * highest marked. Like the globals it stands for, a block belongs to one process: it is not
+ * safe for concurrent writers.
+ */
+class GlobalBlock {
+    public static final int REGION_SIZE = 64;
+    private static final int REGION_SHIFT = 6;
+
+    private final String name;
+    private final ByteBuffer data;
+    private final long[] dirty; // One bit per region
+    private int lowWord = Integer.MAX_VALUE; // Range of words with bits set, empty when low > high
+    private int highWord = -1;
+
+    /** A new zeroed block of the given size, little-endian like Tandem memory. */
+    GlobalBlock(String name, int size) {
+        this(name, ByteBuffer.allocate(size));
+    }
+
+    /** A block over an existing buffer (its whole capacity); writes to either are the same bytes. */
+    GlobalBlock(String name, ByteBuffer buffer) {
+        this.name = name;
+        this.data = buffer.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+        int regions = (data.capacity() + REGION_SIZE - 1) >>> REGION_SHIFT;
+        this.dirty = new long[(regions + 63) >>> 6];
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int size() {
+        return data.capacity();
+    }
+
+    /** The block's bytes; writes through it must be followed by markDirty. */
+    public ByteBuffer buffer() {
+        return data;
+    }
+
+    public short getShort(int offset) { return data.getShort(offset); }
+    public int getInt(int offset) { return data.getInt(offset); }
+    public long getLong(int offset) { return data.getLong(offset); }
+
+    public void putShort(int offset, short value) {
+        if (data.getShort(offset) != value) {
+            data.putShort(offset, value);
+            markDirty(offset, Short.BYTES);
+        }
+    }
+
+    public void putInt(int offset, int value) {
+        if (data.getInt(offset) != value) {
+            data.putInt(offset, value);
+            markDirty(offset, Integer.BYTES);
+        }
+    }
+
+    public void putLong(int offset, long value) {
+        if (data.getLong(offset) != value) {
+            data.putLong(offset, value);
+            markDirty(offset, Long.BYTES);
+        }
+    }
+
+    /** Copies bytes into the block, marking only the regions they change. */
+    public void put(int offset, byte[] src, int srcOffset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        while (pos < end) {
+            int regionEnd = Math.min(end, ((pos >>> REGION_SHIFT) + 1) << REGION_SHIFT);
+            int n = regionEnd - pos;
+            int from = srcOffset + (pos - offset);
+            if (!sameBytes(pos, src, from, n)) {
+                data.put(pos, src, from, n);
+                markDirty(pos, n);
+            }
+            pos = regionEnd;
+        }
+    }
+
+    /** Notes that the bytes at offset were changed by a write that bypassed the put methods. */
+    public void markDirty(int offset, int length) {
+        if (length <= 0) return;
+        int first = offset >>> REGION_SHIFT;
+        int last = (offset + length - 1) >>> REGION_SHIFT;
+        for (int region = first; region <= last; region++) {
+            dirty[region >>> 6] |= 1L << region;
+        }
+        lowWord = Math.min(lowWord, first >>> 6);
+        highWord = Math.max(highWord, last >>> 6);
+    }
+
+    /** Marks the whole block, for the first checkpoint to a new backup. */
+    public void markAllDirty() {
+        markDirty(0, data.capacity());
+    }
+
+    public boolean isDirty() {
+        return lowWord <= highWord;
+    }
+
+    /**
+     * Takes the dirty regions as runs of {offset, length}, adjacent regions coalesced and the
+     * last cut at the end of the block, and clears them.
+     */
+    List<int[]> takeDirtyRuns() {
+        List<int[]> runs = new ArrayList<>();
+        if (!isDirty()) return runs;
+        int runStart = -1;
+        for (int w = lowWord; w <= highWord; w++) {
+            long bits = dirty[w];
+            if (bits == 0 && runStart < 0) continue;
+            for (int b = 0; b < 64; b++) {
+                int region = (w << 6) + b;
+                boolean set = (bits & (1L << b)) != 0;
+                if (set && runStart < 0) {
+                    runStart = region;
+                } else if (!set && runStart >= 0) {
+                    addRun(runs, runStart, region);
+                    runStart = -1;
+                }
+                if (runStart < 0 && (bits >>> b) == 0) break; // Nothing further set in this word
+            }
+        }
+        if (runStart >= 0) addRun(runs, runStart, (highWord + 1) << 6);
+        Arrays.fill(dirty, lowWord, highWord + 1, 0L);
+        lowWord = Integer.MAX_VALUE;
+        highWord = -1;
+        return runs;
+    }
+
+    /** Backup side: writes checkpointed bytes without marking them dirty. */
+    void apply(int offset, ByteBuffer src, int length) {
+        data.put(offset, src, src.position(), length);
+        src.position(src.position() + length);
+    }
+
+    private void addRun(List<int[]> runs, int firstRegion, int endRegion) {
+        int offset = firstRegion << REGION_SHIFT;
+        int end = Math.min(data.capacity(), endRegion << REGION_SHIFT);
+        runs.add(new int[] {offset, end - offset});
+    }
+
+    private boolean sameBytes(int offset, byte[] src, int from, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data.get(offset + i) != src[from + i]) return false;
+        }
+        return true;
+    }
+}
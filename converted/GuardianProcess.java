@@ -0,0 +1,184 @@
+package converted;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A simulated Guardian process hosted in this JVM, so that many copies of translated
+ * programs share one warmed-up JVM rather than taking one JVM each.
+ *
+ * A process has a name, a PIN, and its own instance of each kind of per-process state: the
+ * program's global blocks and the Guardian stub's context (open files, last errors, nowait
+ * completions). Translated code gets them through local(type, init), which returns the
+ * calling process's instance, made on first use. A process runs on a virtual thread of its
+ * own (start) or on the caller's thread (runAs). Threads it starts belong to it too. Code
+ * outside any hosted process - a program run from its own main - shares one default
+ * process, so it behaves as it did with static globals.
+ *
+ * A process ends when its program returns. An uncaught exception is an ABEND: it is
+ * logged, and the process ends. ReceiveQueue.ProcessStopped (STOP at READUPDATE) ends it
+ * normally. However it ends, per-process state that is AutoCloseable is closed, as the
+ * process: Guardian closes a deleted process's open files, $RECEIVE included.
+ */
+class GuardianProcess {
+    private static final Logger logger = LogManager.getLogger(GuardianProcess.class);
+
+    private static final InheritableThreadLocal<GuardianProcess> current = new InheritableThreadLocal<>();
+    private static final GuardianProcess DEFAULT = new GuardianProcess("$DEFAULT", 0);
+    private static final Map<String, GuardianProcess> running = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextPin = new AtomicInteger(1);
+    private static final LongAdder started = new LongAdder();
+    private static final LongAdder abended = new LongAdder();
+
+    private final String name;
+    private final int pin;
+    private final Map<Class<?>, Object> state = new ConcurrentHashMap<>();
+    private final CountDownLatch ended = new CountDownLatch(1);
+    private volatile Throwable abend;
+
+    private GuardianProcess(String name, int pin) {
+        this.name = name;
+        this.pin = pin;
+    }
+
+    /**
+     * Starts the program as a new process on a virtual thread. A null name gets a
+     * system-style one from the PIN. Returns null if a running process has the name.
+     */
+    static GuardianProcess start(String name, Runnable program) {
+        GuardianProcess process = create(name);
+        if (process == null) return null;
+        Thread.ofVirtual().name(process.name).start(() -> process.run(program));
+        return process;
+    }
+
+    /**
+     * Runs the program as a new process on the caller's thread and returns it once it has
+     * ended; null, without running it, if a running process has the name.
+     */
+    static GuardianProcess runAs(String name, Runnable program) {
+        GuardianProcess process = create(name);
+        if (process == null) return null;
+        process.run(program);
+        return process;
+    }
+
+    /** The hosted process the caller belongs to, or null outside one. */
+    static GuardianProcess current() {
+        return current.get();
+    }
+
+    /** The running process of that name, or null. */
+    static GuardianProcess named(String name) {
+        return running.get(name);
+    }
+
+    /**
+     * The calling process's instance of a kind of per-process state (global block, Guardian
+     * context), made by init the first time that process asks for it.
+     */
+    static <T> T local(Class<T> type, Supplier<? extends T> init) {
+        GuardianProcess process = current.get();
+        Map<Class<?>, Object> state = (process != null ? process : DEFAULT).state;
+        Object value = state.get(type);
+        if (value == null) {
+            // Not computeIfAbsent: init may itself ask for other state of the same process
+            T made = init.get();
+            value = state.putIfAbsent(type, made);
+            if (value == null) value = made;
+        }
+        return type.cast(value);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int pin() {
+        return pin;
+    }
+
+    public boolean isAlive() {
+        return ended.getCount() > 0;
+    }
+
+    /** The exception the process abended with, or null. */
+    public Throwable abend() {
+        return abend;
+    }
+
+    /** Waits for the process to end. */
+    public void join() throws InterruptedException {
+        ended.await();
+    }
+
+    /** Waits up to timeoutMillis for the process to end; true if it has. */
+    public boolean join(long timeoutMillis) throws InterruptedException {
+        return ended.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (pin " + pin + ")";
+    }
+
+    public static int runningCount() {
+        return running.size();
+    }
+
+    public static String stats() {
+        return String.format("%d processes started, %d running, %d abended", started.sum(), running.size(), abended.sum());
+    }
+
+    private static GuardianProcess create(String name) {
+        int pin = nextPin.getAndIncrement();
+        String processName = name != null ? name : "$X" + Integer.toString(pin, 36).toUpperCase();
+        GuardianProcess process = new GuardianProcess(processName, pin);
+        if (running.putIfAbsent(processName, process) != null) {
+            logger.error("Cannot start process {}: the name is in use", processName);
+            return null;
+        }
+        started.increment();
+        return process;
+    }
+
+    private void run(Runnable program) {
+        GuardianProcess outer = current.get();
+        current.set(this);
+        try {
+            program.run();
+        } catch (ReceiveQueue.ProcessStopped e) {
+            logger.debug("{} stopped", this);
+        } catch (RuntimeException | Error e) {
+            abend = e;
+            abended.increment();
+            logger.error("{} abended", this, e);
+        } finally {
+            closeState();
+            current.set(outer);
+            running.remove(name, this);
+            ended.countDown();
+        }
+    }
+
+    // Called as the process, so closing its context finds the process's own files
+    private void closeState() {
+        for (Object value : state.values()) {
+            if (value instanceof AutoCloseable resource) {
+                try {
+                    resource.close();
+                } catch (Exception e) {
+                    logger.error("{}: cannot release {} as it ends", this, value.getClass().getSimpleName(), e);
+                }
+            }
+        }
+    }
+}
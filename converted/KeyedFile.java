@@ -0,0 +1,623 @@
+package converted;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Simulates the record storage of an Enscribe key-sequenced file.
+ *
+ * Records live in fixed-size segments as slots of [flag][key length][record length][key][record].
+ * A concurrent skip list maps each primary key (unsigned byte order) to the slot holding
+ * the current version. Deleting a record writes a tombstone flag into its slot and drops
+ * the index entry; updates tombstone the old slot and append a new one. When the share of
+ * dead bytes passes compactionThreshold, a background task copies the live slots out of
+ * the worst segments and repoints the index, reporting the bytes reclaimed.
+ *
+ * Writers (insert, update, delete, compaction) serialize on one lock. Readers never lock:
+ * they follow immutable Slot references, and slots are never rewritten in place, so a
+ * reader always sees a complete record version even while it is updated. A slot that
+ * compaction copied is tombstoned once the index points at the copy; a reader that finds
+ * its slot tombstoned looks the key up again before treating the record as gone. Segments emptied
+ * by compaction are retired to the EpochReclaimer and reused for new slots only once every
+ * reader that might still hold one of their Slots has finished. Callers that use an Entry
+ * after the lookup returns must hold an EpochReclaimer guard across both.
+ *
+ * Files declared with keyLength 0 are entry-ordered: each record gets an 8-byte ascending
+ * system key, so a KEYPOSITION to key 0 starts at the first record written.
+ *
+ * Alternate keys (Enscribe key specifiers other than 0) are kept in per-key indexes of
+ * [alternate key][primary key] entries, maintained with every insert, update and delete.
+ */
+class KeyedFile implements EnscribeFile {
+    private static final Logger logger = LogManager.getLogger(KeyedFile.class);
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().daemon().name("keyed-file-compactor").factory());
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int SYSTEM_KEY_LENGTH = 8;
+    private static final int SLOT_HEADER = 5; // flag(1) + key length(2) + record length(2)
+    private static final byte LIVE = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int MAX_POOLED_SEGMENTS = 8;
+
+    // Error codes returned by update(), as reported through FILEINFO
+    public static final int OK = 0;
+    public static final int DUPLICATE_KEY = 10; // Record with that (unique) key already exists
+    public static final int RECORD_NOT_FOUND = 11;
+    public static final int KEY_CHANGED = 46; // Update would change the primary key
+
+    final String fileName;
+    final int keyOffset;
+    final int keyLength; // 0 = system-assigned entry-order key
+    private final int segmentSize;
+    private double compactionThreshold = 0.5;
+
+    private final ConcurrentSkipListMap<byte[], Slot> index = new ConcurrentSkipListMap<>(Arrays::compareUnsigned);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>(); // Guarded by writeLock
+    private Segment tail; // Guarded by writeLock
+    private long nextSystemKey = 1; // Guarded by writeLock
+    private long usedBytes = 0; // Guarded by writeLock
+    private long deadBytes = 0; // Guarded by writeLock
+    private final List<AlternateKey> alternateKeys = new CopyOnWriteArrayList<>(); // Declared under writeLock
+    private final AtomicBoolean compactionQueued = new AtomicBoolean(false);
+    private final AtomicLong bytesReclaimed = new AtomicLong(0);
+    private final ConcurrentLinkedQueue<Segment> segmentPool = new ConcurrentLinkedQueue<>(); // Reclaimed segments
+    private final AtomicLong segmentsReused = new AtomicLong(0);
+
+    // A block of slots; only the tail segment is appended to
+    private static class Segment {
+        final ByteBuffer buffer;
+        int used = 0;
+        int dead = 0;
+
+        Segment(int size) {
+            this.buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /** Location of one record version. Immutable; compaction installs a new Slot. */
+    static final class Slot {
+        final Segment segment;
+        final int offset; // Start of the slot header
+        final int keyLength;
+        final int recordLength;
+
+        Slot(Segment segment, int offset, int keyLength, int recordLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.recordLength = recordLength;
+        }
+
+        boolean isLive() {
+            return segment.buffer.get(offset) == LIVE;
+        }
+
+        /** Read-only view of the record bytes, for transfer straight into a caller's buffer. */
+        ByteBuffer record() {
+            return segment.buffer.asReadOnlyBuffer().slice(offset + SLOT_HEADER + keyLength, recordLength);
+        }
+
+        int size() {
+            return SLOT_HEADER + keyLength + recordLength;
+        }
+    }
+
+    /** A record found by a keyed lookup. */
+    static final class Entry {
+        final byte[] key; // Primary key
+        final Slot slot;
+        final byte[] indexKey; // Position in the access path used: the primary key, or [alternate key][primary key]
+
+        Entry(byte[] key, Slot slot) {
+            this(key, slot, key);
+        }
+
+        Entry(byte[] key, Slot slot, byte[] indexKey) {
+            this.key = key;
+            this.slot = slot;
+            this.indexKey = indexKey;
+        }
+    }
+
+    /** An alternate-key index: entries are [alternate key][primary key], so duplicates sort by primary key. */
+    private static final class AlternateKey {
+        final int keySpecifier;
+        final int offset;
+        final int length;
+        final boolean unique;
+        final ConcurrentSkipListSet<byte[]> entries = new ConcurrentSkipListSet<>(Arrays::compareUnsigned);
+
+        AlternateKey(int keySpecifier, int offset, int length, boolean unique) {
+            this.keySpecifier = keySpecifier;
+            this.offset = offset;
+            this.length = length;
+            this.unique = unique;
+        }
+
+        // Index entry for a record image, or null if the record is too short to contain the key field
+        byte[] entryFor(ByteBuffer record, int recordLength, byte[] primaryKey) {
+            if (offset + length > Math.min(recordLength, record.limit())) return null;
+            byte[] entry = new byte[length + primaryKey.length];
+            record.get(offset, entry, 0, length);
+            System.arraycopy(primaryKey, 0, entry, length, primaryKey.length);
+            return entry;
+        }
+
+        // True if another record already holds this entry's alternate key
+        boolean conflicts(byte[] entry, byte[] primaryKey) {
+            if (!unique) return false;
+            byte[] lowest = Arrays.copyOf(entry, entry.length);
+            Arrays.fill(lowest, length, lowest.length, (byte) 0);
+            byte[] found = entries.ceiling(lowest);
+            return found != null && Arrays.equals(found, 0, length, entry, 0, length)
+                    && !Arrays.equals(found, length, found.length, primaryKey, 0, primaryKey.length);
+        }
+    }
+
+    KeyedFile(String fileName, int keyOffset, int keyLength) {
+        this(fileName, keyOffset, keyLength, DEFAULT_SEGMENT_SIZE);
+    }
+
+    KeyedFile(String fileName, int keyOffset, int keyLength, int segmentSize) {
+        this.fileName = fileName;
+        this.keyOffset = keyOffset;
+        this.keyLength = keyLength;
+        this.segmentSize = segmentSize;
+    }
+
+    /** Dead-space ratio (0..1) above which a background compaction is queued. */
+    public void setCompactionThreshold(double threshold) {
+        this.compactionThreshold = threshold;
+    }
+
+    @Override
+    public String fileName() {
+        return fileName;
+    }
+
+    /** Length of the keys KEYPOSITION compares against. */
+    @Override
+    public int effectiveKeyLength() {
+        return keyLength > 0 ? keyLength : SYSTEM_KEY_LENGTH;
+    }
+
+    public long bytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    @Override
+    public int recordCount() {
+        return index.size();
+    }
+
+    /**
+     * Declares an alternate key on record bytes [offset, offset + length) and indexes the
+     * existing records. Returns false if the specifier is taken or a unique key is duplicated.
+     */
+    @Override
+    public boolean addAlternateKey(int keySpecifier, int offset, int length, boolean unique) {
+        writeLock.lock();
+        try {
+            if (keySpecifier == 0 || findAlternateKey(keySpecifier) != null) return false;
+            AlternateKey alt = new AlternateKey(keySpecifier, offset, length, unique);
+            for (Map.Entry<byte[], Slot> e : index.entrySet()) {
+                byte[] entry = alt.entryFor(e.getValue().record(), e.getValue().recordLength, e.getKey());
+                if (entry == null) continue;
+                if (alt.conflicts(entry, e.getKey())) return false;
+                alt.entries.add(entry);
+            }
+            alternateKeys.add(alt);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Length of the alternate key, or -1 if the specifier is not declared. */
+    @Override
+    public int alternateKeyLength(int keySpecifier) {
+        AlternateKey alt = findAlternateKey(keySpecifier);
+        return alt == null ? -1 : alt.length;
+    }
+
+    /** Drops an alternate key declaration and its index. */
+    public void removeAlternateKey(int keySpecifier) {
+        writeLock.lock();
+        try {
+            alternateKeys.remove(findAlternateKey(keySpecifier));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * True if a unique alternate key of the record image is already held here by a record
+     * with a different primary key (used to enforce uniqueness across partitions).
+     */
+    public boolean alternateKeyConflict(ByteBuffer record, int length, byte[] primaryKey) {
+        for (AlternateKey alt : alternateKeys) {
+            byte[] entry = alt.entryFor(record, length, primaryKey);
+            if (entry != null && alt.conflicts(entry, primaryKey)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public <R> List<R> scan(Function<ByteBuffer, R> mapper, boolean parallel) {
+        List<R> results = new ArrayList<>();
+        for (Map.Entry<byte[], Slot> e : index.entrySet()) {
+            // One guard per record, so a long scan does not hold back reclamation
+            EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+            try {
+                Slot slot = liveSlot(e.getKey(), index.get(e.getKey()));
+                if (slot == null) continue;
+                R result = mapper.apply(slot.record());
+                if (result != null) results.add(result);
+            } finally {
+                guard.exit();
+            }
+        }
+        return results;
+    }
+
+    private AlternateKey findAlternateKey(int keySpecifier) {
+        for (AlternateKey alt : alternateKeys) {
+            if (alt.keySpecifier == keySpecifier) return alt;
+        }
+        return null;
+    }
+
+    // --- Readers (lock-free) ---
+
+    /** First live record with key >= the given key, or null. */
+    @Override
+    public Entry ceiling(byte[] key) {
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            return live(index.ceilingEntry(key));
+        } finally {
+            guard.exit();
+        }
+    }
+
+    /** First live record with key > the given key, or null. */
+    @Override
+    public Entry higher(byte[] key) {
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            return live(index.higherEntry(key));
+        } finally {
+            guard.exit();
+        }
+    }
+
+    /** The live record with exactly this key, or null. */
+    @Override
+    public Entry get(byte[] key) {
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            Slot slot = liveSlot(key, index.get(key));
+            return slot != null ? new Entry(key, slot) : null;
+        } finally {
+            guard.exit();
+        }
+    }
+
+    /** First live record in alternate-key order whose alternate key is >= altKey, or null. */
+    @Override
+    public Entry ceilingAlternate(int keySpecifier, byte[] altKey) {
+        AlternateKey alt = findAlternateKey(keySpecifier);
+        if (alt == null) return null;
+        byte[] from = Arrays.copyOf(altKey, alt.length + effectiveKeyLength()); // Lowest primary key
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            return liveAlternate(alt, alt.entries.ceiling(from));
+        } finally {
+            guard.exit();
+        }
+    }
+
+    /** First live record in alternate-key order after the given index position, or null. */
+    @Override
+    public Entry higherAlternate(int keySpecifier, byte[] indexKey) {
+        AlternateKey alt = findAlternateKey(keySpecifier);
+        if (alt == null) return null;
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            return liveAlternate(alt, alt.entries.higher(indexKey));
+        } finally {
+            guard.exit();
+        }
+    }
+
+    // Resolve alternate index entries to records, skipping entries whose record has since gone
+    private Entry liveAlternate(AlternateKey alt, byte[] entry) {
+        while (entry != null) {
+            byte[] primary = Arrays.copyOfRange(entry, alt.length, entry.length);
+            Slot slot = liveSlot(primary, index.get(primary));
+            if (slot != null) {
+                return new Entry(primary, slot, entry);
+            }
+            entry = alt.entries.higher(entry);
+        }
+        return null;
+    }
+
+    // Skip entries whose record was deleted after we found them
+    private Entry live(Map.Entry<byte[], Slot> found) {
+        while (found != null) {
+            Slot slot = liveSlot(found.getKey(), found.getValue());
+            if (slot != null) {
+                return new Entry(found.getKey(), slot);
+            }
+            found = index.higherEntry(found.getKey());
+        }
+        return null;
+    }
+
+    // The record's live slot, following it if compaction moved it since slot was read; null if it is gone
+    private Slot liveSlot(byte[] key, Slot slot) {
+        while (slot != null && !slot.isLive()) {
+            Slot current = index.get(key);
+            if (current == slot) return null;
+            slot = current;
+        }
+        return slot;
+    }
+
+    // --- Writers ---
+
+    /** Adds a record; returns its key, or null if a record with the same key already exists. */
+    @Override
+    public byte[] insert(ByteBuffer record, int length) {
+        writeLock.lock();
+        try {
+            byte[] key;
+            if (keyLength == 0) {
+                key = ByteBuffer.allocate(SYSTEM_KEY_LENGTH).putLong(0, nextSystemKey++).array();
+            } else {
+                key = extractKey(record, length);
+                if (key == null || index.containsKey(key)) return null;
+            }
+            for (AlternateKey alt : alternateKeys) {
+                byte[] entry = alt.entryFor(record, length, key);
+                if (entry != null && alt.conflicts(entry, key)) return null;
+            }
+            index.put(key, append(key, record, length));
+            addAlternateEntries(record, length, key);
+            return key;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Replaces the record with this key; returns OK or RECORD_NOT_FOUND, KEY_CHANGED, DUPLICATE_KEY. */
+    @Override
+    public int update(byte[] key, ByteBuffer record, int length) {
+        writeLock.lock();
+        try {
+            Slot old = index.get(key);
+            if (old == null || !old.isLive()) return RECORD_NOT_FOUND;
+            if (keyLength > 0 && !Arrays.equals(key, extractKey(record, length))) return KEY_CHANGED;
+            for (AlternateKey alt : alternateKeys) {
+                byte[] entry = alt.entryFor(record, length, key);
+                if (entry != null && alt.conflicts(entry, key)) return DUPLICATE_KEY;
+            }
+            removeAlternateEntries(old, key);
+            index.put(key, append(key, record, length));
+            addAlternateEntries(record, length, key);
+            kill(old);
+            return OK;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Deletes the record with this key by tombstoning its slot; false if it does not exist. */
+    @Override
+    public boolean delete(byte[] key) {
+        writeLock.lock();
+        try {
+            Slot old = index.remove(key);
+            if (old == null) return false;
+            removeAlternateEntries(old, key);
+            kill(old);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Adds or replaces the record under this key; returns OK or KEY_CHANGED, DUPLICATE_KEY. */
+    @Override
+    public int put(byte[] key, ByteBuffer record, int length) {
+        writeLock.lock();
+        try {
+            if (keyLength > 0 ? !Arrays.equals(key, extractKey(record, length)) : key.length != SYSTEM_KEY_LENGTH) {
+                return KEY_CHANGED;
+            }
+            for (AlternateKey alt : alternateKeys) {
+                byte[] entry = alt.entryFor(record, length, key);
+                if (entry != null && alt.conflicts(entry, key)) return DUPLICATE_KEY;
+            }
+            Slot old = index.get(key);
+            if (old != null) removeAlternateEntries(old, key);
+            index.put(key, append(key, record, length));
+            addAlternateEntries(record, length, key);
+            if (old != null) kill(old);
+            if (keyLength == 0) {
+                // Later inserts must not reuse a system key put back here
+                nextSystemKey = Math.max(nextSystemKey, ByteBuffer.wrap(key).getLong() + 1);
+            }
+            return OK;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] keyOf(ByteBuffer record, int length) {
+        return keyLength == 0 ? null : extractKey(record, length);
+    }
+
+    // Primary key of a record image, or null if the record is too short to hold it
+    byte[] extractKey(ByteBuffer record, int length) {
+        if (keyOffset + keyLength > Math.min(length, record.limit())) return null;
+        byte[] key = new byte[keyLength];
+        record.get(keyOffset, key);
+        return key;
+    }
+
+    // Caller holds writeLock
+    private void addAlternateEntries(ByteBuffer record, int length, byte[] key) {
+        for (AlternateKey alt : alternateKeys) {
+            byte[] entry = alt.entryFor(record, length, key);
+            if (entry != null) alt.entries.add(entry);
+        }
+    }
+
+    // Caller holds writeLock
+    private void removeAlternateEntries(Slot slot, byte[] key) {
+        for (AlternateKey alt : alternateKeys) {
+            byte[] entry = alt.entryFor(slot.record(), slot.recordLength, key);
+            if (entry != null) alt.entries.remove(entry);
+        }
+    }
+
+    // Caller holds writeLock
+    private Slot append(byte[] key, ByteBuffer record, int length) {
+        int size = SLOT_HEADER + key.length + length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes exceeds segment size of " + fileName);
+        }
+        if (tail == null || tail.used + size > segmentSize) {
+            tail = newSegment();
+            segments.add(tail);
+        }
+        int offset = tail.used;
+        ByteBuffer buf = tail.buffer;
+        buf.putShort(offset + 1, (short) key.length);
+        buf.putShort(offset + 3, (short) length);
+        buf.put(offset + SLOT_HEADER, key);
+        buf.put(offset + SLOT_HEADER + key.length, record, 0, length);
+        buf.put(offset, LIVE); // Flag last: the slot is complete before it can be seen as live
+        tail.used += size;
+        usedBytes += size;
+        return new Slot(tail, offset, key.length, length);
+    }
+
+    // A reclaimed segment if one is pooled, else a new one; caller holds writeLock
+    private Segment newSegment() {
+        Segment seg = segmentPool.poll();
+        if (seg == null) {
+            EpochReclaimer.shared().tryReclaim(); // Retired segments may have become safe since
+            seg = segmentPool.poll();
+        }
+        if (seg == null) {
+            return new Segment(segmentSize);
+        }
+        seg.used = 0;
+        seg.dead = 0;
+        segmentsReused.incrementAndGet();
+        return seg;
+    }
+
+    // Keep a compacted segment for reuse; runs once no reader can still hold one of its slots
+    private void recycle(Segment seg) {
+        if (segmentPool.size() < MAX_POOLED_SEGMENTS) {
+            segmentPool.offer(seg);
+        }
+    }
+
+    public long segmentsReused() {
+        return segmentsReused.get();
+    }
+
+    // Tombstone a slot in O(1) and queue compaction if dead space passed the threshold; caller holds writeLock
+    private void kill(Slot slot) {
+        slot.segment.buffer.put(slot.offset, TOMBSTONE);
+        slot.segment.dead += slot.size();
+        deadBytes += slot.size();
+        if (usedBytes > 0 && (double) deadBytes / usedBytes > compactionThreshold
+                && compactionQueued.compareAndSet(false, true)) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /** Copies live slots out of segments over the dead-space threshold; returns bytes reclaimed. */
+    public long compact() {
+        compactionQueued.set(false);
+        long reclaimed = 0;
+        int victims = 0;
+        writeLock.lock();
+        try {
+            List<Segment> candidates = new ArrayList<>();
+            for (Segment seg : segments) {
+                if (seg.used > 0 && (double) seg.dead / seg.used > compactionThreshold) {
+                    candidates.add(seg);
+                }
+            }
+            if (candidates.contains(tail)) {
+                tail = null; // Seal it so relocated slots land in a fresh segment
+            }
+            for (Segment seg : candidates) {
+                int offset = 0;
+                while (offset < seg.used) {
+                    ByteBuffer buf = seg.buffer;
+                    int keyLen = buf.getShort(offset + 1);
+                    int recLen = buf.getShort(offset + 3);
+                    int size = SLOT_HEADER + keyLen + recLen;
+                    if (buf.get(offset) == LIVE) {
+                        byte[] key = new byte[keyLen];
+                        buf.get(offset + SLOT_HEADER, key);
+                        Slot old = index.get(key);
+                        Slot moved = append(key, buf.slice(offset + SLOT_HEADER + keyLen, recLen), recLen);
+                        // Readers holding the old Slot keep reading the old segment, which is reused only after they finish
+                        if (old == null || !index.replace(key, old, moved)) {
+                            moved.segment.buffer.put(moved.offset, TOMBSTONE);
+                            moved.segment.dead += size;
+                            deadBytes += size;
+                        } else {
+                            // Tombstone the source once the index points at the copy, so a later delete of the
+                            // copy is not hidden from readers still holding the old Slot (they follow the index)
+                            buf.put(offset, TOMBSTONE);
+                        }
+                    }
+                    offset += size;
+                }
+                segments.remove(seg);
+                EpochReclaimer.shared().retire(() -> recycle(seg));
+                usedBytes -= seg.used;
+                deadBytes -= seg.dead;
+                reclaimed += seg.dead;
+                victims++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (victims > 0) {
+            bytesReclaimed.addAndGet(reclaimed);
+            logger.info("Compacted {}: {} segments rewritten, {} bytes reclaimed", fileName, victims, reclaimed);
+        }
+        return reclaimed;
+    }
+}
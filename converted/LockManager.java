@@ -0,0 +1,242 @@
+package converted;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Record lock table shared by every open of every file.
+ *
+ * A lock belongs to an owner: the transaction that took it, or the open (MockFile)
+ * for a LOCKREC outside a transaction. Locks are reentrant for their owner. The table
+ * is a ConcurrentHashMap, so unrelated records never contend.
+ *
+ * A request for a record held by another owner waits, as LOCKREC does on Guardian, until
+ * the record is unlocked or the timeout passes. Waiters queue per record and park (cheap
+ * for virtual threads); unlock hands the lock straight to the first of them, so a contended
+ * record is never free for a newcomer to barge in on. An owner waits for one record at a
+ * time, so the wait-for graph is a set of chains: when a wait starts, and every
+ * DETECT_INTERVAL_MILLIS while it lasts, the waiter follows holder to waited-for record to
+ * holder, and if it gets back to itself there is a deadlock. The youngest transaction in
+ * the cycle (or the waiter, if no transaction is in it) is the victim: its wait ends with
+ * DEADLOCK and its transaction is aborted, which releases its locks and breaks the cycle.
+ */
+class LockManager {
+    public static final int OK = 0;
+    public static final int TIMED_OUT = 40; // Guardian: operation timed out
+    public static final int RECORD_LOCKED = 73; // Guardian: file or record is locked by another user
+    public static final int DEADLOCK = 97; // Chosen as a deadlock victim; a transaction is aborted (TMF error 97)
+
+    public static final long WAIT_FOREVER = -1; // Lock timeout: wait until the record is unlocked
+    public static final long NO_WAIT = 0; // Lock timeout: fail with RECORD_LOCKED at once
+    private static final long DETECT_INTERVAL_MILLIS = 100;
+
+    /** A locked record: its file and primary key. */
+    static final class LockKey {
+        final EnscribeFile file;
+        final byte[] key;
+        private final int hash;
+
+        LockKey(EnscribeFile file, byte[] key) {
+            this.file = file;
+            this.key = key;
+            this.hash = 31 * System.identityHashCode(file) + Arrays.hashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LockKey other && other.file == file && Arrays.equals(other.key, key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // An owner blocked on a record: its edge in the wait-for graph
+    private static final class Waiter {
+        final Object owner;
+        final LockKey record;
+        final Thread thread = Thread.currentThread();
+        volatile boolean granted = false; // Handed the lock by unlock
+        volatile boolean victim = false;
+
+        Waiter(Object owner, LockKey record) {
+            this.owner = owner;
+            this.record = record;
+        }
+    }
+
+    private final Map<LockKey, Object> owners = new ConcurrentHashMap<>();
+    // Waiters by the record waited for, first come first served; only touched inside compute
+    private final Map<LockKey, ArrayDeque<Waiter>> waiting = new ConcurrentHashMap<>();
+    private final Map<Object, Waiter> waitingOwners = new ConcurrentHashMap<>(); // By the waiting owner
+    private final ReentrantLock detectLock = new ReentrantLock(); // One detector at a time, so a cycle gets one victim
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+
+    /** Locks the record for the owner without waiting; OK if it now holds the lock, RECORD_LOCKED if someone else does. */
+    public int lock(Object owner, LockKey record) {
+        return lock(owner, record, NO_WAIT);
+    }
+
+    /**
+     * Locks the record for the owner, waiting up to timeoutMillis (WAIT_FOREVER, or NO_WAIT to
+     * fail at once) while another owner holds it. Returns OK, RECORD_LOCKED (NO_WAIT only),
+     * TIMED_OUT or DEADLOCK.
+     */
+    public int lock(Object owner, LockKey record, long timeoutMillis) {
+        if (tryLock(owner, record)) return OK;
+        if (timeoutMillis == NO_WAIT) return RECORD_LOCKED;
+
+        Waiter waiter = new Waiter(owner, record);
+        waitingOwners.put(owner, waiter);
+        // Queued atomically with unlock's hand-off, so the record cannot be freed between a failed try and the enqueue
+        waiting.compute(record, (r, queue) -> {
+            if (tryLock(owner, record)) {
+                waiter.granted = true;
+                return queue;
+            }
+            if (queue == null) queue = new ArrayDeque<>();
+            queue.add(waiter);
+            return queue;
+        });
+        if (waiter.granted) {
+            waitingOwners.remove(owner, waiter);
+            return OK;
+        }
+        waits.increment();
+        long start = System.nanoTime();
+        long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long nextDetect = start;
+        int error;
+        while (true) {
+            if (waiter.granted) {
+                error = OK;
+                break;
+            }
+            if (waiter.victim) {
+                error = DEADLOCK;
+                break;
+            }
+            long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                error = TIMED_OUT;
+                break;
+            }
+            if (now - nextDetect >= 0) {
+                if (detect(waiter)) {
+                    error = DEADLOCK;
+                    break;
+                }
+                nextDetect = now + TimeUnit.MILLISECONDS.toNanos(DETECT_INTERVAL_MILLIS);
+            }
+            LockSupport.parkNanos(this, Math.min(deadline - now, nextDetect - now));
+        }
+        if (error != OK) {
+            waiting.computeIfPresent(record, (r, queue) -> {
+                queue.remove(waiter);
+                return queue.isEmpty() ? null : queue;
+            });
+            if (waiter.granted) error = OK; // Handed the lock just before leaving the queue
+            else if (error == TIMED_OUT) timeouts.increment();
+        }
+        waitingOwners.remove(owner, waiter);
+        waitNanos.add(System.nanoTime() - start);
+        return error;
+    }
+
+    /** The timeout that ends a wait first; either may be WAIT_FOREVER. */
+    static long shorter(long timeoutMillis, long otherMillis) {
+        if (timeoutMillis < 0) return otherMillis;
+        return otherMillis < 0 ? timeoutMillis : Math.min(timeoutMillis, otherMillis);
+    }
+
+    public boolean holds(Object owner, LockKey record) {
+        return owners.get(record) == owner;
+    }
+
+    /** True if the record is locked by anyone other than the owner. */
+    public boolean lockedByOther(Object owner, LockKey record) {
+        Object holder = owners.get(record);
+        return holder != null && holder != owner;
+    }
+
+    /** Releases the owner's lock on the record, handing it to the first waiter if there is one. */
+    public void unlock(Object owner, LockKey record) {
+        if (owners.get(record) != owner) return;
+        waiting.compute(record, (r, queue) -> {
+            Waiter next = queue == null ? null : queue.poll();
+            if (next == null) {
+                owners.remove(record, owner);
+                return null;
+            }
+            owners.put(record, next.owner);
+            next.granted = true;
+            LockSupport.unpark(next.thread);
+            return queue.isEmpty() ? null : queue;
+        });
+    }
+
+    public int lockCount() {
+        return owners.size();
+    }
+
+    public long waitCount() { return waits.sum(); }
+    public long timeoutCount() { return timeouts.sum(); }
+    public long deadlockCount() { return deadlocks.sum(); }
+
+    public String stats() {
+        return String.format("%d locks held, %d waits (%.1f ms total), %d timed out, %d deadlocks, %d waiting now",
+                             owners.size(), waits.sum(), waitNanos.sum() / 1e6, timeouts.sum(), deadlocks.sum(),
+                             waitingOwners.size());
+    }
+
+    private boolean tryLock(Object owner, LockKey record) {
+        Object holder = owners.putIfAbsent(record, owner);
+        return holder == null || holder == owner;
+    }
+
+    // Follows the waiter's chain of holders; on a cycle back to it, marks a victim. True if the waiter is the victim.
+    private boolean detect(Waiter waiter) {
+        detectLock.lock();
+        try {
+            if (waiter.victim) return true;
+            List<Waiter> cycle = new ArrayList<>();
+            Waiter w = waiter;
+            while (true) {
+                cycle.add(w);
+                Object holder = owners.get(w.record);
+                if (holder == null) return false; // Just unlocked
+                if (holder == waiter.owner) break; // Back to where we started
+                w = waitingOwners.get(holder);
+                // The holder is running, or the chain loops without us: its own members will find that cycle
+                if (w == null || w.victim || cycle.contains(w)) return false;
+            }
+            Waiter victim = waiter;
+            for (Waiter member : cycle) {
+                if (member.owner instanceof Transaction tx
+                        && (!(victim.owner instanceof Transaction youngest) || tx.id > youngest.id)) {
+                    victim = member;
+                }
+            }
+            victim.victim = true;
+            deadlocks.increment();
+            LockSupport.unpark(victim.thread);
+            return victim == waiter;
+        } finally {
+            detectLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package converted;
+
+/**
+ * Optional OPEN parameters beyond the access mode, mirroring the trailing
+ * parameters of the Guardian OPEN procedure.
+ */
+class OpenOptions {
+    // I/O policies for disk files, as chosen with SETMODE on Guardian
+    public static final int BUFFER_APPLICATION = 0; // Through the shared block cache; dirty pages written at eviction or CLOSE
+    public static final int BUFFER_OS = 1; // One channel call per READ/WRITE; only the OS page cache buffers
+    public static final int BUFFER_NONE = 2; // As BUFFER_OS, and block buffering and write-behind are not used either
+    public static final int BUFFER_WRITE_THROUGH = 3; // Cached, but each WRITE is written and forced to disk before returning
+
+    // Maximum number of outstanding nowait operations (0 = waited I/O, as with OPEN's nowait depth)
+    public int nowaitDepth = 0;
+    // Output files: full chunks kept in memory before older ones spill to a temp file (0 = never spill)
+    public int spillAfterChunks = 0;
+    // Input files: sequential block buffer size in bytes (0 = unbuffered, one file-layer call per READ)
+    public int seqBlockBufferLength = 0;
+    // Blocks prefetched ahead of the reader when block buffering is enabled
+    public int readAheadDepth = 2;
+    // Disk output files: coalesce WRITEs in a buffer of this many bytes (0 = one channel write per WRITE)
+    public int writeBehindBytes = 0;
+    // Longest time written data may stay in the write-behind buffer (0 = flush only when full or at CLOSE)
+    public long writeBehindDelayMillis = 50;
+    // Make each WRITE durable before it returns, sharing one fsync among concurrent writers
+    public boolean groupCommit = false;
+    // Disk output files: store the data as separately compressed blocks (compressed input files are recognized at OPEN)
+    public boolean compressBlocks = false;
+    // Disk files: one of the BUFFER_ policies above
+    public int bufferMode = BUFFER_APPLICATION;
+    // Cached reads: use pages already in the block cache but do not add missed ones (for one-off sequential scans)
+    public boolean bypassCache = false;
+    // $RECEIVE: messages READUPDATE may hold before they are replied to (the receive depth)
+    public int receiveDepth = 1;
+    // $RECEIVE: requests queued before requesters' WRITEREADs wait for room
+    public int receiveQueueLength = ReceiveQueue.DEFAULT_CAPACITY;
+
+    public OpenOptions() {}
+    public OpenOptions(int nowaitDepth) { this.nowaitDepth = nowaitDepth; }
+}
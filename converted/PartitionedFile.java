@@ -0,0 +1,277 @@
+package converted;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Simulates an Enscribe key-sequenced file partitioned by primary-key range.
+ *
+ * One logical file is spread over N KeyedFile partitions (one per volume); partition i
+ * holds keys from lowKeys[i] up to, but not including, lowKeys[i + 1]. Partition i is
+ * named "<file name on its volume>#i", and transactions audit it on its volume's trail.
+ * Keyed operations are routed to the owning partition, sequential reads continue into the
+ * next partition, and alternate keys span the whole file. Full scans can process every
+ * partition on the common fork-join pool; because partitions are key ranges,
+ * concatenating the per-partition results in partition order yields primary-key order.
+ */
+class PartitionedFile implements EnscribeFile {
+    private final String fileName;
+    private final byte[][] lowKeys;
+    private final KeyedFile[] partitions;
+    // Serializes inserts and updates so unique alternate keys stay unique across partitions
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param lowKeys first key of each partition after the first, in ascending order
+     */
+    PartitionedFile(String fileName, int keyOffset, int keyLength, byte[]... lowKeys) {
+        this(fileName, keyOffset, keyLength, null, lowKeys);
+    }
+
+    /**
+     * @param volumes volume of each partition after the first, which stays on the file's own
+     *                volume; null keeps every partition there
+     * @param lowKeys first key of each partition after the first, in ascending order
+     */
+    PartitionedFile(String fileName, int keyOffset, int keyLength, String[] volumes, byte[]... lowKeys) {
+        if (keyLength <= 0) {
+            throw new IllegalArgumentException("Partitioned file " + fileName + " needs a primary key");
+        }
+        this.fileName = fileName;
+        this.lowKeys = new byte[lowKeys.length + 1][];
+        this.lowKeys[0] = new byte[keyLength]; // Lowest possible key
+        for (int i = 0; i < lowKeys.length; i++) {
+            this.lowKeys[i + 1] = Arrays.copyOf(lowKeys[i], keyLength);
+            if (Arrays.compareUnsigned(this.lowKeys[i + 1], this.lowKeys[i]) <= 0) {
+                throw new IllegalArgumentException("Partition keys of " + fileName + " must ascend");
+            }
+        }
+        if (volumes != null && volumes.length != lowKeys.length) {
+            throw new IllegalArgumentException("Partitioned file " + fileName + " needs a volume for each secondary partition");
+        }
+        this.partitions = new KeyedFile[this.lowKeys.length];
+        for (int i = 0; i < partitions.length; i++) {
+            String name = i == 0 || volumes == null ? fileName : onVolume(fileName, volumes[i - 1]);
+            partitions[i] = new KeyedFile(name + "#" + i, keyOffset, keyLength);
+        }
+    }
+
+    // The file's name with its volume replaced: "$DATA1.SUB.FILE" on $DATA2 is "$DATA2.SUB.FILE"
+    private static String onVolume(String fileName, String volume) {
+        if (!fileName.startsWith("$")) return volume + "." + fileName;
+        int dot = fileName.indexOf('.');
+        return dot < 0 ? volume : volume + fileName.substring(dot);
+    }
+
+    public int partitionCount() {
+        return partitions.length;
+    }
+
+    public KeyedFile partition(int i) {
+        return partitions[i];
+    }
+
+    /** First key partition i holds. */
+    public byte[] lowKey(int i) {
+        return lowKeys[i].clone();
+    }
+
+    /** Index of the partition whose key range contains the key. */
+    public int partitionOf(byte[] key) {
+        return route(key);
+    }
+
+    // Index of the partition whose key range contains the key
+    private int route(byte[] key) {
+        int lo = 0, hi = lowKeys.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (Arrays.compareUnsigned(lowKeys[mid], key) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public String fileName() {
+        return fileName;
+    }
+
+    @Override
+    public int effectiveKeyLength() {
+        return partitions[0].effectiveKeyLength();
+    }
+
+    @Override
+    public int recordCount() {
+        int count = 0;
+        for (KeyedFile p : partitions) count += p.recordCount();
+        return count;
+    }
+
+    @Override
+    public boolean addAlternateKey(int keySpecifier, int offset, int length, boolean unique) {
+        writeLock.lock();
+        try {
+            for (int i = 0; i < partitions.length; i++) {
+                if (!partitions[i].addAlternateKey(keySpecifier, offset, length, unique)) {
+                    for (int j = 0; j < i; j++) partitions[j].removeAlternateKey(keySpecifier);
+                    return false;
+                }
+            }
+            if (unique && hasDuplicateAlternateKey(keySpecifier, length)) {
+                for (KeyedFile p : partitions) p.removeAlternateKey(keySpecifier);
+                return false;
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Walk the merged alternate order looking for equal neighbours from different partitions
+    private boolean hasDuplicateAlternateKey(int keySpecifier, int length) {
+        KeyedFile.Entry previous = null;
+        for (KeyedFile.Entry e = ceilingAlternate(keySpecifier, new byte[length]); e != null;
+             e = higherAlternate(keySpecifier, e.indexKey)) {
+            if (previous != null && Arrays.equals(previous.indexKey, 0, length, e.indexKey, 0, length)) {
+                return true;
+            }
+            previous = e;
+        }
+        return false;
+    }
+
+    @Override
+    public int alternateKeyLength(int keySpecifier) {
+        return partitions[0].alternateKeyLength(keySpecifier);
+    }
+
+    @Override
+    public KeyedFile.Entry ceiling(byte[] key) {
+        int p = route(key);
+        KeyedFile.Entry found = partitions[p].ceiling(key);
+        while (found == null && ++p < partitions.length) {
+            found = partitions[p].ceiling(lowKeys[p]);
+        }
+        return found;
+    }
+
+    @Override
+    public KeyedFile.Entry higher(byte[] key) {
+        int p = route(key);
+        KeyedFile.Entry found = partitions[p].higher(key);
+        while (found == null && ++p < partitions.length) {
+            found = partitions[p].ceiling(lowKeys[p]);
+        }
+        return found;
+    }
+
+    @Override
+    public KeyedFile.Entry get(byte[] key) {
+        return partitions[route(key)].get(key);
+    }
+
+    // Alternate keys are not range-partitioned: take the lowest candidate from every partition
+    @Override
+    public KeyedFile.Entry ceilingAlternate(int keySpecifier, byte[] altKey) {
+        KeyedFile.Entry best = null;
+        for (KeyedFile p : partitions) {
+            best = lower(best, p.ceilingAlternate(keySpecifier, altKey));
+        }
+        return best;
+    }
+
+    @Override
+    public KeyedFile.Entry higherAlternate(int keySpecifier, byte[] indexKey) {
+        KeyedFile.Entry best = null;
+        for (KeyedFile p : partitions) {
+            best = lower(best, p.higherAlternate(keySpecifier, indexKey));
+        }
+        return best;
+    }
+
+    private static KeyedFile.Entry lower(KeyedFile.Entry a, KeyedFile.Entry b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return Arrays.compareUnsigned(a.indexKey, b.indexKey) <= 0 ? a : b;
+    }
+
+    @Override
+    public byte[] keyOf(ByteBuffer record, int length) {
+        return partitions[0].keyOf(record, length);
+    }
+
+    @Override
+    public byte[] insert(ByteBuffer record, int length) {
+        byte[] key = partitions[0].extractKey(record, length);
+        if (key == null) return null;
+        int target = route(key);
+        writeLock.lock();
+        try {
+            if (conflictsElsewhere(target, record, length, key)) return null;
+            return partitions[target].insert(record, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int update(byte[] key, ByteBuffer record, int length) {
+        int target = route(key);
+        writeLock.lock();
+        try {
+            if (conflictsElsewhere(target, record, length, key)) return KeyedFile.DUPLICATE_KEY;
+            return partitions[target].update(key, record, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int put(byte[] key, ByteBuffer record, int length) {
+        int target = route(key);
+        writeLock.lock();
+        try {
+            if (conflictsElsewhere(target, record, length, key)) return KeyedFile.DUPLICATE_KEY;
+            return partitions[target].put(key, record, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Unique alternate keys held by another partition (the target partition checks its own)
+    private boolean conflictsElsewhere(int target, ByteBuffer record, int length, byte[] key) {
+        for (int i = 0; i < partitions.length; i++) {
+            if (i != target && partitions[i].alternateKeyConflict(record, length, key)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean delete(byte[] key) {
+        return partitions[route(key)].delete(key);
+    }
+
+    @Override
+    public <R> List<R> scan(Function<ByteBuffer, R> mapper, boolean parallel) {
+        List<List<R>> perPartition = (parallel ? Arrays.stream(partitions).parallel() : Arrays.stream(partitions))
+                .map(p -> p.scan(mapper, false))
+                .toList(); // Encounter order = partition order = key order
+        List<R> merged = new ArrayList<>();
+        for (List<R> part : perPartition) merged.addAll(part);
+        return merged;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + partitions.length + " partitions)";
+    }
+}
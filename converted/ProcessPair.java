@@ -0,0 +1,367 @@
+package converted;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The primary's side of a NonStop process pair: CHECKPOINT sends the dirty regions of the
+ * pair's global blocks (see GlobalBlock) to the backup, which keeps its own copy of every
+ * block and takes over from it when the primary fails.
+ *
+ * A checkpoint is one message: a sequence number, then for each dirty run its block,
+ * offset, length and bytes. Its cost is the changed bytes, not the size of the blocks.
+ * The backup applies a message only once it has all of it, so a primary that fails midway
+ * leaves the backup at the previous checkpoint. CHECKPOINT is waited: it returns once the
+ * backup has applied the message. The first checkpoint, made when the pair is opened,
+ * sends the blocks whole.
+ *
+ * The backup runs in the same JVM, where the primary applies its messages directly, or in
+ * another one reached through a Unix-domain socket, where each message is acknowledged
+ * with its sequence number.
+ */
+class ProcessPair {
+    private static final Logger logger = LogManager.getLogger(ProcessPair.class);
+
+    public static final int OK = 0;
+    public static final int PATH_DOWN = 201; // Guardian: the backup is gone; the primary runs on alone
+    public static final int TAKEOVER = 0; // CHECKMONITOR: the primary failed, the backup carries on as primary
+    public static final int STOPPED = 1; // CHECKMONITOR: the primary stopped normally, the backup should stop too
+
+    private static final long STOP_SEQUENCE = -1; // Message sent by close(): no takeover
+    private static final int RUN_HEADER = 3 * Integer.BYTES; // Block, offset, length
+
+    private final String name;
+    private final GlobalBlock[] blocks;
+    private final Backup backup; // In-process backup, or null
+    private final SocketChannel channel; // Backup in another process, or null
+    private ByteBuffer message = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN); // Reused, grown as needed
+    private final ByteBuffer ack = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long sequence = 0;
+    private boolean down = false;
+
+    private final LongAdder checkpoints = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder runsSent = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private ProcessPair(String name, GlobalBlock[] blocks, Backup backup, SocketChannel channel) {
+        this.name = name;
+        this.blocks = blocks;
+        this.backup = backup;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a pair whose backup runs in this JVM, with its own blocks of the same sizes, and
+     * sends it the blocks whole. The caller's thread is the primary: the backup takes over
+     * when that thread ends without close().
+     */
+    static ProcessPair open(String name, Backup backup, GlobalBlock... blocks) {
+        backup.attach(Thread.currentThread());
+        ProcessPair pair = new ProcessPair(name, blocks, backup, null);
+        pair.start();
+        return pair;
+    }
+
+    /** Opens a pair with a backup listening at the socket (see Backup.listen) and sends it the blocks whole. */
+    static ProcessPair connect(String name, Path socket, GlobalBlock... blocks) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(socket));
+        ProcessPair pair = new ProcessPair(name, blocks, null, channel);
+        pair.start();
+        return pair;
+    }
+
+    /**
+     * CHECKPOINT: sends the dirty regions of every block to the backup and clears them.
+     * Returns OK, or PATH_DOWN once the backup is gone (the primary then runs unprotected).
+     */
+    public int checkpoint() {
+        if (down) return PATH_DOWN;
+        long start = System.nanoTime();
+        message.clear();
+        message.putInt(0); // Length, filled in by send
+        message.putLong(0); // Sequence, once there is something to send
+        int countAt = message.position();
+        message.putInt(0);
+        int runs = 0;
+        int bytes = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            for (int[] run : blocks[b].takeDirtyRuns()) {
+                int offset = run[0];
+                int length = run[1];
+                ensureRoom(RUN_HEADER + length);
+                message.putInt(b).putInt(offset).putInt(length);
+                message.put(message.position(), blocks[b].buffer(), offset, length);
+                message.position(message.position() + length);
+                runs++;
+                bytes += length;
+            }
+        }
+        if (runs == 0) return OK; // Nothing changed: nothing to send
+        message.putLong(Integer.BYTES, ++sequence);
+        message.putInt(countAt, runs);
+        if (send() != OK) return PATH_DOWN;
+        checkpoints.increment();
+        runsSent.add(runs);
+        bytesSent.add(bytes);
+        latency.record(System.nanoTime() - start);
+        return OK;
+    }
+
+    /** Stops the primary normally: the backup's CHECKMONITOR returns STOPPED rather than taking over. */
+    public void close() {
+        if (!down) {
+            message.clear();
+            message.putInt(0).putLong(STOP_SEQUENCE).putInt(0);
+            send();
+            down = true;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the link of {} to its backup", name, e);
+            }
+        }
+        logger.info("Process pair {} closed: {}", name, stats());
+    }
+
+    public long checkpointCount() { return checkpoints.sum(); }
+    public long bytesSentCount() { return bytesSent.sum(); }
+
+    public String stats() {
+        long blockBytes = 0;
+        for (GlobalBlock block : blocks) blockBytes += block.size();
+        return String.format("%d checkpoints, %d runs, %d bytes sent (%d bytes in %d blocks), mean %.1f us, p99 %.1f us",
+                             checkpoints.sum(), runsSent.sum(), bytesSent.sum(), blockBytes, blocks.length,
+                             latency.meanNanos() / 1e3, latency.percentileNanos(99) / 1e3);
+    }
+
+    private void start() {
+        for (GlobalBlock block : blocks) block.markAllDirty();
+        if (checkpoint() == OK) {
+            logger.info("Process pair {} open: {} blocks sent to the backup", name, blocks.length);
+        }
+    }
+
+    private void ensureRoom(int needed) {
+        if (message.remaining() >= needed) return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(message.capacity() * 2, message.position() + needed))
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        message.flip();
+        bigger.put(message);
+        message = bigger;
+    }
+
+    // Delivers the message and waits for the backup to apply it; on failure the pair is down
+    private int send() {
+        message.putInt(0, message.position() - Integer.BYTES);
+        message.flip();
+        if (backup != null) {
+            if (!backup.accept(message)) {
+                logger.error("Backup of {} is gone; running without one", name);
+                down = true;
+                return PATH_DOWN;
+            }
+            return OK;
+        }
+        long sent = message.getLong(Integer.BYTES);
+        try {
+            while (message.hasRemaining()) channel.write(message);
+            ack.clear();
+            while (ack.hasRemaining()) {
+                if (channel.read(ack) < 0) throw new EOFException("backup closed the link");
+            }
+            if (ack.getLong(0) != sent) throw new IOException("backup acknowledged " + ack.getLong(0) + ", not " + sent);
+            return OK;
+        } catch (IOException e) {
+            logger.error("Backup of {} is gone; running without one", name, e);
+            down = true;
+            return PATH_DOWN;
+        }
+    }
+
+    /**
+     * The backup of a process pair: its own copy of each block, kept up to date by the
+     * primary's checkpoints until CHECKMONITOR returns.
+     */
+    static final class Backup {
+        private final GlobalBlock[] blocks;
+        private final ServerSocketChannel server; // Listening for a primary in another process, or null
+        private final Path socket;
+
+        // Guarded by lock (in-process primary)
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private Thread primary;
+        private boolean stopped = false;
+        private boolean monitorDone = false; // CHECKMONITOR returned: later checkpoints are refused
+        private long applied = 0; // Sequence of the last checkpoint applied
+
+        private Backup(GlobalBlock[] blocks, ServerSocketChannel server, Path socket) {
+            this.blocks = blocks;
+            this.server = server;
+            this.socket = socket;
+        }
+
+        /** A backup for a primary in this JVM (see ProcessPair.open). */
+        static Backup inProcess(GlobalBlock... blocks) {
+            return new Backup(blocks, null, null);
+        }
+
+        /** A backup that a primary in another process connects to at the socket (see ProcessPair.connect). */
+        static Backup listen(Path socket, GlobalBlock... blocks) throws IOException {
+            Files.deleteIfExists(socket);
+            ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            logger.info("Backup listening at {}", socket);
+            return new Backup(blocks, server, socket);
+        }
+
+        /** Sequence number of the last checkpoint applied. */
+        public long appliedSequence() {
+            lock.lock();
+            try {
+                return applied;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * CHECKMONITOR: applies the primary's checkpoints until it fails, then returns TAKEOVER
+         * with the blocks as of its last checkpoint, or STOPPED if it stopped normally.
+         */
+        public int checkMonitor() throws IOException {
+            return server != null ? monitorSocket() : monitorInProcess();
+        }
+
+        private void attach(Thread primaryThread) {
+            lock.lock();
+            try {
+                primary = primaryThread;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // A checkpoint from an in-process primary; false once the backup has stopped monitoring
+        private boolean accept(ByteBuffer message) {
+            lock.lock();
+            try {
+                if (monitorDone) return false;
+                long sequence = apply(message);
+                if (sequence == STOP_SEQUENCE) stopped = true;
+                else applied = sequence;
+                changed.signalAll();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int monitorInProcess() {
+            lock.lock();
+            try {
+                while (true) {
+                    if (stopped) {
+                        monitorDone = true;
+                        return STOPPED;
+                    }
+                    if (primary != null && !primary.isAlive()) {
+                        monitorDone = true;
+                        logger.warn("Primary {} failed; taking over at checkpoint {}", primary.getName(), applied);
+                        return TAKEOVER;
+                    }
+                    changed.awaitNanos(TimeUnit.MILLISECONDS.toNanos(50)); // The primary's end is not signalled: look again
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                monitorDone = true;
+                return STOPPED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int monitorSocket() throws IOException {
+            try (ServerSocketChannel listener = server; SocketChannel channel = listener.accept()) {
+                ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer ack = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer message = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+                while (true) {
+                    length.clear();
+                    if (!readFully(channel, length)) break;
+                    int size = length.getInt(0);
+                    if (message.capacity() < Integer.BYTES + size) {
+                        message = ByteBuffer.allocate(Integer.BYTES + size).order(ByteOrder.LITTLE_ENDIAN);
+                    }
+                    message.clear().putInt(size).limit(Integer.BYTES + size);
+                    if (!readFully(channel, message)) break; // Failed midway: the partial checkpoint is dropped
+                    message.flip();
+                    long sequence = apply(message);
+                    ack.clear().putLong(sequence).flip();
+                    while (ack.hasRemaining()) channel.write(ack);
+                    lock.lock();
+                    try {
+                        if (sequence == STOP_SEQUENCE) return STOPPED;
+                        applied = sequence;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Link to the primary failed", e);
+            } finally {
+                Files.deleteIfExists(socket);
+            }
+            logger.warn("Primary failed; taking over at checkpoint {}", appliedSequence());
+            return TAKEOVER;
+        }
+
+        // Writes a checkpoint's runs into the blocks; returns its sequence number
+        private long apply(ByteBuffer message) {
+            message.getInt(); // Length
+            long sequence = message.getLong();
+            int runs = message.getInt();
+            for (int r = 0; r < runs; r++) {
+                int b = message.getInt();
+                int offset = message.getInt();
+                int length = message.getInt();
+                if (b >= blocks.length || offset + length > blocks[b].size()) {
+                    logger.error("Checkpoint {} does not fit the backup's blocks (block {}, offset {}, length {})",
+                                 sequence, b, offset, length);
+                    message.position(message.position() + length);
+                    continue;
+                }
+                blocks[b].apply(offset, message, length);
+            }
+            return sequence;
+        }
+
+        // False on end of stream
+        private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) return false;
+            }
+            return true;
+        }
+    }
+}
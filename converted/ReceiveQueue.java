@@ -0,0 +1,405 @@
+package converted;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The $RECEIVE file of a server process: requests from every requester's WRITEREAD, read
+ * by the server with READUPDATE and answered with REPLY.
+ *
+ * Requests go through a bounded ring that many requesters fill and only the server
+ * empties. A requester claims a slot by CAS on the tail and publishes its message into it;
+ * the server takes the message at the head and clears the slot before moving the head on,
+ * so no lock is taken on either side. A requester finding the ring full backs off until
+ * the server frees a slot. The server parks when the ring is empty and the requester that
+ * publishes next unparks it; each requester parks until its message is replied to.
+ * Interrupting a waiting requester cancels its request: it returns PATH_DOWN at once,
+ * READUPDATE skips the message if it is still queued, and a later REPLY to it is dropped.
+ *
+ * Messages read but not yet replied to are held under a message tag, up to the receive
+ * depth given at OPEN; with depth 1 REPLY answers the last message read. One reader at a
+ * time takes messages; the tag table has a lock of its own, since a nowait READUPDATE
+ * runs on an I/O thread while the server replies to earlier messages.
+ *
+ * Servers are registered by process name, for requesters to OPEN. STOP of a server that
+ * reads $RECEIVE waited is delivered at its READUPDATE, which throws ProcessStopped to
+ * unwind it; the process then closes $RECEIVE as it ends.
+ */
+class ReceiveQueue {
+    private static final Logger logger = LogManager.getLogger(ReceiveQueue.class);
+
+    public static final int OK = 0;
+    public static final int INVALID_OPERATION = 2; // Guardian: operation not allowed (REPLY with no such message)
+    public static final int DEPTH_EXCEEDED = 28; // Guardian: too many outstanding operations (receive depth)
+    public static final int TIMED_OUT = 40; // Guardian: operation timed out
+    public static final int PATH_DOWN = 201; // Guardian: the server closed $RECEIVE or stopped
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final long CLOSED = 1L << 62; // Set in tail by close(): no slot can be claimed after it
+    private static final Map<String, ReceiveQueue> servers = new ConcurrentHashMap<>();
+
+    /** Thrown out of READUPDATE in a stopped server process, ending it. */
+    static final class ProcessStopped extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ProcessStopped(String processName) {
+            super(processName + " stopped");
+        }
+    }
+
+    /** One WRITEREAD: the request, who sent it and, once REPLY has run, the answer. */
+    static final class Message {
+        final byte[] request;
+        final int replyMax; // Most the requester reads back
+        final String senderName; // Process name of the requester
+        final int senderFileNum; // The requester's file number for its open of the server
+        final Thread requester = Thread.currentThread();
+        int messageTag = -1; // Assigned when READUPDATE takes it
+        byte[] reply;
+        int replyError;
+        volatile boolean replied = false;
+        final AtomicBoolean completed = new AtomicBoolean(); // Set by the one REPLY, close or cancel that answers it
+
+        Message(byte[] request, int replyMax, String senderName, int senderFileNum) {
+            this.request = request;
+            this.replyMax = replyMax;
+            this.senderName = senderName;
+            this.senderFileNum = senderFileNum;
+        }
+    }
+
+    private final String processName;
+    private final int mask;
+    private final AtomicReferenceArray<Message> ring;
+    private final AtomicLong tail = new AtomicLong(); // Next slot a requester claims, with CLOSED once closed
+    private volatile long head = 0; // Next slot the server takes; written by the server only
+    private volatile Thread parkedServer; // Set while the server waits on an empty ring
+    private volatile Thread reader; // Set while a READUPDATE may take from the ring, which close() must not do at once
+    private volatile boolean stopped = false;
+
+    // Guarded by tagLock
+    private final ReentrantLock tagLock = new ReentrantLock();
+    private final Message[] outstanding; // Read, not yet replied to, by message tag
+    private int outstandingCount = 0;
+    private Message lastRead;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder replied = new LongAdder();
+    private final LongAdder fullWaits = new LongAdder();
+    private final LongAdder serverParks = new LongAdder();
+
+    private ReceiveQueue(String processName, int receiveDepth, int capacity) {
+        this.processName = processName;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // Next power of two
+        this.mask = size - 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.outstanding = new Message[Math.max(1, receiveDepth)];
+    }
+
+    /** Opens $RECEIVE for the named server process; null if that name already has one. */
+    static ReceiveQueue open(String processName, int receiveDepth, int capacity) {
+        ReceiveQueue queue = new ReceiveQueue(processName, receiveDepth, capacity);
+        return servers.putIfAbsent(processName, queue) == null ? queue : null;
+    }
+
+    /** The $RECEIVE of a running server, or null if no process of that name has one open. */
+    static ReceiveQueue server(String processName) {
+        return servers.get(processName);
+    }
+
+    public String processName() {
+        return processName;
+    }
+
+    public int receiveDepth() {
+        return outstanding.length;
+    }
+
+    /**
+     * Requester side of WRITEREAD: queues the request and waits for its reply. Returns the message,
+     * replied; if the thread is interrupted first the request is cancelled, with PATH_DOWN.
+     */
+    public Message send(byte[] request, int replyMax, String senderName, int senderFileNum) {
+        Message message = new Message(request, replyMax, senderName, senderFileNum);
+        if (!offer(message)) {
+            complete(message, null, PATH_DOWN);
+            return message;
+        }
+        while (!message.replied) {
+            LockSupport.park(this);
+            if (Thread.currentThread().isInterrupted() && complete(message, null, PATH_DOWN)) {
+                logger.debug("Request from {} to {} cancelled", senderName, processName);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Server side of READUPDATE: takes the next request, waiting up to timeoutMillis (negative
+     * waits as long as it takes), and keeps it outstanding under its tag until replied to.
+     * Returns OK, with the message in lastRead(), TIMED_OUT, DEPTH_EXCEEDED, or PATH_DOWN
+     * once $RECEIVE is closed; throws ProcessStopped once the process is stopped.
+     */
+    public int receive(long timeoutMillis) {
+        if (stopped) throw new ProcessStopped(processName);
+        reader = Thread.currentThread();
+        try {
+            if (isClosed()) return PATH_DOWN; // Checked after reader is set, so close() waits for us or we see it
+            return take(timeoutMillis);
+        } finally {
+            reader = null;
+        }
+    }
+
+    private int take(long timeoutMillis) {
+        tagLock.lock();
+        try {
+            if (outstandingCount == outstanding.length) return DEPTH_EXCEEDED;
+        } finally {
+            tagLock.unlock();
+        }
+        long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Message message;
+        while ((message = pollLive()) == null) {
+            parkedServer = Thread.currentThread();
+            message = pollLive(); // A requester may have published before seeing us parked
+            if (message != null) {
+                parkedServer = null;
+                break;
+            }
+            if (stopped) { // stop() may have looked for us before we were parked
+                parkedServer = null;
+                throw new ProcessStopped(processName);
+            }
+            if (isClosed()) { // Likewise close()
+                parkedServer = null;
+                return PATH_DOWN;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                parkedServer = null;
+                return TIMED_OUT;
+            }
+            serverParks.increment();
+            if (timeoutMillis < 0) LockSupport.park(this);
+            else LockSupport.parkNanos(this, remaining);
+            parkedServer = null;
+        }
+        tagLock.lock();
+        try {
+            int tag = 0;
+            while (outstanding[tag] != null) tag++; // A free tag exists: only REPLY frees one, and we checked above
+            outstanding[tag] = message;
+            outstandingCount++;
+            message.messageTag = tag;
+            lastRead = message;
+        } finally {
+            tagLock.unlock();
+        }
+        received.increment();
+        return OK;
+    }
+
+    /** The message READUPDATE took last, or null. */
+    public Message lastRead() {
+        tagLock.lock();
+        try {
+            return lastRead;
+        } finally {
+            tagLock.unlock();
+        }
+    }
+
+    /** Tag of the message READUPDATE took last if it is still outstanding, or -1; REPLY without a tag answers it. */
+    public int lastMessageTag() {
+        tagLock.lock();
+        try {
+            return lastRead == null || outstanding[lastRead.messageTag] != lastRead ? -1 : lastRead.messageTag;
+        } finally {
+            tagLock.unlock();
+        }
+    }
+
+    /** The outstanding message with the tag, or null. */
+    public Message outstanding(int messageTag) {
+        if (messageTag < 0 || messageTag >= outstanding.length) return null;
+        tagLock.lock();
+        try {
+            return outstanding[messageTag];
+        } finally {
+            tagLock.unlock();
+        }
+    }
+
+    /** Server side of REPLY: completes the tagged message with the reply bytes and error. Returns OK or INVALID_OPERATION. */
+    public int reply(int messageTag, byte[] reply, int errorReturn) {
+        if (messageTag < 0 || messageTag >= outstanding.length) return INVALID_OPERATION;
+        Message message;
+        tagLock.lock();
+        try {
+            message = outstanding[messageTag];
+            if (message == null) return INVALID_OPERATION;
+            outstanding[messageTag] = null;
+            outstandingCount--;
+        } finally {
+            tagLock.unlock();
+        }
+        if (complete(message, reply, errorReturn)) { // Else the requester cancelled it meanwhile
+            replied.increment();
+        }
+        return OK;
+    }
+
+    /**
+     * Closes $RECEIVE: a READUPDATE waiting now returns PATH_DOWN, and requesters still queued
+     * or awaiting a reply get PATH_DOWN.
+     */
+    public void close() {
+        long end = tail.getAndUpdate(t -> t | CLOSED) & ~CLOSED;
+        servers.remove(processName, this);
+        Thread server = parkedServer;
+        if (server != null) LockSupport.unpark(server);
+        while (reader != null) {
+            Thread.yield(); // Until that READUPDATE has seen CLOSED; only one thread may take from the ring
+        }
+        for (int tag = 0; tag < outstanding.length; tag++) {
+            reply(tag, null, PATH_DOWN);
+        }
+        // Every slot claimed before CLOSED is published by its requester; wait for the last ones
+        while (head != end) {
+            Message message = poll();
+            if (message == null) {
+                Thread.yield(); // Lets a requester on the same carrier finish publishing
+                continue;
+            }
+            complete(message, null, PATH_DOWN);
+        }
+        logger.info("$RECEIVE of {} closed: {}", processName, stats());
+    }
+
+    /** STOP of the server process: its READUPDATE waiting now, or its next one, throws ProcessStopped. */
+    public void stop() {
+        stopped = true;
+        Thread server = parkedServer;
+        if (server != null) LockSupport.unpark(server);
+    }
+
+    /** True once close() has run: WRITEREADs now fail with PATH_DOWN. */
+    public boolean isClosed() {
+        return (tail.get() & CLOSED) != 0;
+    }
+
+    public long sentCount() { return sent.sum(); }
+    public long receivedCount() { return received.sum(); }
+    public long repliedCount() { return replied.sum(); }
+
+    public String stats() {
+        return String.format("%d sent, %d received, %d replied, %d waits on a full queue, %d server parks, %d queued now",
+                             sent.sum(), received.sum(), replied.sum(), fullWaits.sum(), serverParks.sum(),
+                             (tail.get() & ~CLOSED) - head);
+    }
+
+    // Claims a slot and publishes the message; false if the server closed
+    private boolean offer(Message message) {
+        int spins = 0;
+        while (true) {
+            long t = tail.get();
+            if ((t & CLOSED) != 0) return false;
+            if (t - head > mask) {
+                // Full: spin briefly, then sleep a little at a time until the server catches up
+                if (spins++ == 0) fullWaits.increment();
+                if (spins < 64) Thread.onSpinWait();
+                else LockSupport.parkNanos(this, 20_000);
+                continue;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                ring.set((int) t & mask, message);
+                sent.increment();
+                Thread server = parkedServer;
+                if (server != null) LockSupport.unpark(server);
+                return true;
+            }
+        }
+    }
+
+    // Takes the message at the head, or null if the ring is empty or its next slot is not yet published
+    private Message poll() {
+        long h = head;
+        int slot = (int) h & mask;
+        Message message = ring.get(slot);
+        if (message == null) return null;
+        ring.set(slot, null); // Free before moving the head, so a requester never overwrites a live slot
+        head = h + 1;
+        return message;
+    }
+
+    // Takes the next message its requester has not cancelled, or null
+    private Message pollLive() {
+        Message message;
+        while ((message = poll()) != null && message.completed.get()) {
+            // Cancelled while queued: its requester has already gone
+        }
+        return message;
+    }
+
+    // Answers the message unless something else already has; false if it had been
+    private static boolean complete(Message message, byte[] reply, int error) {
+        if (!message.completed.compareAndSet(false, true)) return false;
+        message.reply = reply;
+        message.replyError = error;
+        message.replied = true;
+        LockSupport.unpark(message.requester);
+        return true;
+    }
+
+    /** Benchmark: requesters on virtual threads against one server, for each receive depth; messages/s. */
+    public static void main(String[] args) throws Exception {
+        int perRequester = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        byte[] reply = new byte[32];
+        for (int depth : new int[] {1, 16}) {
+            for (int requesters : new int[] {1, 4, 16, 64, 256}) {
+                ReceiveQueue queue = ReceiveQueue.open("$BENCH", depth, DEFAULT_CAPACITY);
+                long total = (long) requesters * perRequester;
+                Thread server = Thread.ofPlatform().name("bench-server").start(() -> {
+                    for (long n = 0; n < total; n++) {
+                        // Deeper servers answer in batches: when the queue is empty or the depth is used up
+                        if (queue.receive(0) != OK) {
+                            for (int tag = 0; tag < queue.receiveDepth(); tag++) queue.reply(tag, reply, OK);
+                            queue.receive(-1);
+                        }
+                        if (depth == 1) queue.reply(queue.lastMessageTag(), reply, OK);
+                    }
+                    for (int tag = 0; tag < queue.receiveDepth(); tag++) queue.reply(tag, reply, OK);
+                });
+                Thread[] threads = new Thread[requesters];
+                long start = System.nanoTime();
+                for (int r = 0; r < requesters; r++) {
+                    int fileNum = r;
+                    threads[r] = Thread.ofVirtual().start(() -> {
+                        byte[] request = new byte[64];
+                        for (int i = 0; i < perRequester; i++) {
+                            queue.send(request, 32, "$REQ", fileNum);
+                        }
+                    });
+                }
+                for (Thread t : threads) t.join();
+                server.join();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                logger.info("depth {}, {} requesters: {} messages/s ({})", depth, requesters,
+                            String.format("%.0f", total / seconds), queue.stats());
+                queue.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package converted;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fuzzy checkpoints of audited files and crash recovery from them and the audit trails.
+ * A partitioned file is checkpointed and recovered partition by partition, each on its own
+ * volume and under its own name.
+ *
+ * A checkpoint of a volume notes the end of its trail and where the transactions then
+ * active started logging (the redo start), writes the committed image of every audited
+ * file on the volume to CKnnnnnn without stopping transactions, forces a CHECKPOINT record
+ * and then points the volume's CONTROL file at it. Each image is kept with its primary key
+ * and restored under it, so entry-sequenced files keep their system keys and later trail
+ * records still find their records. Images are read through the VersionStore, so
+ * uncommitted changes never reach a checkpoint, and a transaction's commit only stops
+ * counting as active once its versions are stamped. A checkpoint is taken in the
+ * background whenever a volume's trail has grown by checkpointBytes, which bounds replay.
+ *
+ * Recovery, per volume: load the checkpoint, then read the trail from the redo start to
+ * find each transaction's outcome. A transaction left PREPAREd is committed if MAT holds
+ * its COMMIT (presumed abort). Then, for every file in parallel and each record in LSN
+ * order, committed changes are redone from their after-images and the changes of
+ * transactions that did not commit are undone from their before-images. Record locks
+ * kept every record's changes in one transaction at a time, so this leaves each record
+ * as its last committed transaction left it.
+ *
+ * Changes made outside a transaction are not audited; they survive only through checkpoints.
+ */
+class RecoveryManager {
+    private static final Logger logger = LogManager.getLogger(RecoveryManager.class);
+
+    static final String CONTROL = "CONTROL";
+
+    /** What a recovery did and how fast. */
+    record Report(int volumes, int files, long checkpointRecords, long logRecords, long logBytes,
+                  int committed, int rolledBack, int inDoubtCommitted, long redone, long undone, long lastTxId,
+                  long nanos) {
+        public double recordsPerSecond() {
+            return nanos == 0 ? 0.0 : logRecords / (nanos / 1e9);
+        }
+
+        public double megabytesPerSecond() {
+            return nanos == 0 ? 0.0 : logBytes / 1e6 / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d volumes, %d files: %d checkpoint records loaded, %d audit records (%d bytes) replayed "
+                                 + "in %.1f ms (%.0f records/s, %.1f MB/s); %d transactions committed (%d in doubt), "
+                                 + "%d rolled back; %d changes redone, %d undone",
+                                 volumes, files, checkpointRecords, logRecords, logBytes, nanos / 1e6, recordsPerSecond(),
+                                 megabytesPerSecond(), committed, inDoubtCommitted, rolledBack, redone, undone);
+        }
+    }
+
+    // Volume CONTROL file: the latest checkpoint and where its replay starts
+    private record Control(int checkpoint, long redoStart) {}
+
+    // One logged change, with the transaction that made it
+    private record Change(long txId, AuditTrail.Update update) {}
+
+    // A checkpointed record under its primary key, which entry-sequenced files cannot rebuild from the record
+    private record Image(byte[] key, byte[] record) {}
+
+    private final TransactionCoordinator coordinator;
+    private final VersionStore versions;
+    private final long checkpointBytes;
+    private final Map<String, Long> checkpointedAt = new ConcurrentHashMap<>(); // Volume -> trail LSN of its last checkpoint
+    private final Set<String> checkpointing = ConcurrentHashMap.newKeySet();
+    private final AtomicLong checkpoints = new AtomicLong();
+
+    RecoveryManager(TransactionCoordinator coordinator, VersionStore versions, long checkpointBytes) {
+        this.coordinator = coordinator;
+        this.versions = versions;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /** Starts a background checkpoint of each participant volume whose trail grew by checkpointBytes since its last one. */
+    public void maybeCheckpoint(Transaction tx) {
+        for (AuditTrail trail : tx.participants) {
+            String volume = trail.directory().getFileName().toString();
+            if (trail.appendedLsn() - checkpointedAt.getOrDefault(volume, 0L) < checkpointBytes) continue;
+            if (!checkpointing.add(volume)) continue; // Already running
+            Thread.ofVirtual().name("checkpoint-" + volume).start(() -> {
+                try {
+                    checkpoint(volume);
+                } catch (IOException e) {
+                    logger.error("Checkpoint of {} failed", volume, e);
+                } finally {
+                    checkpointing.remove(volume);
+                }
+            });
+        }
+    }
+
+    /** Takes a fuzzy checkpoint of the volume's audited files while transactions go on. */
+    public void checkpoint(String volume) throws IOException {
+        long start = System.nanoTime();
+        AuditTrail trail = coordinator.trail(volume);
+        Path dir = trail.directory();
+        AuditTrail.CheckpointPoint point = trail.checkpointPoint();
+        Control previous = readControl(dir);
+        int number = previous == null ? 1 : previous.checkpoint() + 1;
+
+        Path image = checkpointPath(dir, number);
+        long records = 0;
+        List<TransactionCoordinator.AuditedFile> files = List.copyOf(coordinator.auditedFiles(volume));
+        try (FileOutputStream fos = new FileOutputStream(image.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            out.writeInt(files.size());
+            for (TransactionCoordinator.AuditedFile file : files) {
+                writeName(out, file.name());
+                byte[] key = file.firstKey();
+                boolean first = true;
+                while (true) {
+                    EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+                    try {
+                        // Through the whole file, whose versions cover every partition, up to the end of this one
+                        VersionStore.Visible visible = versions.nextCommitted(file.file(), key, first);
+                        if (visible == null || !file.holds(visible.key())) break;
+                        ByteBuffer record = visible.record();
+                        byte[] bytes = new byte[record.remaining()];
+                        record.get(bytes);
+                        key = visible.key();
+                        out.writeInt(bytes.length);
+                        out.writeShort(key.length);
+                        out.write(key);
+                        out.write(bytes);
+                        first = false;
+                        records++;
+                    } finally {
+                        guard.exit();
+                    }
+                }
+                out.writeInt(-1); // End of the file's records
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 + 4 + point.active().size() * 16)
+                .putInt(number).putLong(point.redoStart()).putInt(point.active().size());
+        point.active().forEach((txId, first) -> payload.putLong(txId).putLong(first));
+        trail.awaitDurable(trail.append(AuditTrail.CHECKPOINT, 0, payload.array(), true));
+        writeControl(dir, new Control(number, point.redoStart()));
+        if (previous != null) {
+            Files.deleteIfExists(checkpointPath(dir, previous.checkpoint()));
+        }
+        checkpointedAt.put(volume, point.lsn());
+        checkpoints.incrementAndGet();
+        logger.info("Checkpoint {} of {}: {} files, {} records, replay from LSN {} ({} transactions active) in {} ms",
+                    number, volume, files.size(), records, point.redoStart(), point.active().size(),
+                    (System.nanoTime() - start) / 1_000_000);
+    }
+
+    public long checkpointCount() {
+        return checkpoints.get();
+    }
+
+    /**
+     * Rebuilds the files (by file name; partitions under their own names) from the checkpoints
+     * and trails under the audit root, with up to parallelism files at once. Meant to run at
+     * startup, before any transaction.
+     */
+    static Report recover(Path root, Map<String, EnscribeFile> files, int parallelism) throws IOException {
+        long start = System.nanoTime();
+        // Two-phase commit decisions, for participants left in doubt
+        Set<Long> decided = new HashSet<>();
+        long[] lastTxId = new long[1]; // New transactions must not reuse an id MAT or a replayed trail holds
+        Path master = root.resolve(TransactionCoordinator.MASTER_TRAIL);
+        if (Files.isDirectory(master)) {
+            AuditTrail.read(master, 0, r -> {
+                if (r.type() == AuditTrail.COMMIT) decided.add(r.txId());
+                lastTxId[0] = Math.max(lastTxId[0], r.txId());
+            });
+        }
+        List<Path> volumes = new ArrayList<>();
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> list = Files.list(root)) {
+                list.filter(p -> Files.isDirectory(p) && !p.getFileName().toString().equals(TransactionCoordinator.MASTER_TRAIL))
+                    .sorted()
+                    .forEach(volumes::add);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            long checkpointRecords = 0, logRecords = 0, logBytes = 0, redone = 0, undone = 0;
+            int committed = 0, rolledBack = 0, inDoubt = 0;
+            Set<String> touched = new HashSet<>();
+            for (Path dir : volumes) {
+                Control control = readControl(dir);
+                long redoStart = control == null ? 0 : control.redoStart();
+
+                // Checkpoint images, loaded file by file in parallel
+                if (control != null) {
+                    Map<String, List<Image>> images = readCheckpoint(checkpointPath(dir, control.checkpoint()));
+                    List<Future<Integer>> loads = new ArrayList<>();
+                    for (Map.Entry<String, List<Image>> e : images.entrySet()) {
+                        EnscribeFile file = files.get(e.getKey());
+                        if (file == null) {
+                            logger.warn("Checkpoint of {} holds unknown file {}; skipped", dir.getFileName(), e.getKey());
+                            continue;
+                        }
+                        touched.add(e.getKey());
+                        loads.add(pool.submit(() -> load(file, e.getValue())));
+                    }
+                    for (int n : join(loads)) checkpointRecords += n;
+                }
+
+                // Analysis: outcomes, and each file's changes in LSN order
+                Map<Long, Byte> outcomes = new HashMap<>();
+                Map<String, List<Change>> changes = new HashMap<>();
+                long[] scanned = new long[2];
+                AuditTrail.read(dir, redoStart, r -> {
+                    scanned[0]++;
+                    scanned[1] += AuditTrail.HEADER_LENGTH + 9 + r.payload().remaining();
+                    lastTxId[0] = Math.max(lastTxId[0], r.txId());
+                    switch (r.type()) {
+                        case AuditTrail.UPDATE -> {
+                            AuditTrail.Update u = AuditTrail.Update.parse(r.payload());
+                            changes.computeIfAbsent(u.fileName(), f -> new ArrayList<>()).add(new Change(r.txId(), u));
+                            outcomes.putIfAbsent(r.txId(), AuditTrail.UPDATE);
+                        }
+                        case AuditTrail.COMMIT, AuditTrail.ABORT, AuditTrail.PREPARE -> outcomes.put(r.txId(), r.type());
+                        default -> { } // CHECKPOINT: the CONTROL file already says where to start
+                    }
+                });
+                logRecords += scanned[0];
+                logBytes += scanned[1];
+                Set<Long> winners = new HashSet<>();
+                for (Map.Entry<Long, Byte> e : outcomes.entrySet()) {
+                    boolean prepared = e.getValue() == AuditTrail.PREPARE;
+                    if (e.getValue() == AuditTrail.COMMIT || (prepared && decided.contains(e.getKey()))) {
+                        winners.add(e.getKey());
+                        if (prepared) inDoubt++;
+                    }
+                }
+                committed += winners.size();
+                rolledBack += outcomes.size() - winners.size();
+
+                // Redo and undo, file by file in parallel
+                List<Future<long[]>> replays = new ArrayList<>();
+                for (Map.Entry<String, List<Change>> e : changes.entrySet()) {
+                    EnscribeFile file = files.get(e.getKey());
+                    if (file == null) {
+                        logger.warn("Audit trail of {} has changes to unknown file {}; skipped", dir.getFileName(), e.getKey());
+                        continue;
+                    }
+                    touched.add(e.getKey());
+                    replays.add(pool.submit(() -> replay(file, e.getValue(), winners)));
+                }
+                for (long[] counts : join(replays)) {
+                    redone += counts[0];
+                    undone += counts[1];
+                }
+            }
+            Report report = new Report(volumes.size(), touched.size(), checkpointRecords, logRecords, logBytes,
+                                       committed, rolledBack, inDoubt, redone, undone, lastTxId[0],
+                                       System.nanoTime() - start);
+            logger.info("Recovery: {}", report);
+            return report;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Replaces the file's contents with the checkpoint images, each under its own key; returns the record count
+    private static int load(EnscribeFile file, List<Image> images) {
+        for (KeyedFile.Entry e = file.ceiling(new byte[0]); e != null; e = file.ceiling(new byte[0])) {
+            file.delete(e.key);
+        }
+        for (Image image : images) {
+            if (file.put(image.key(), ByteBuffer.wrap(image.record()), image.record().length) != KeyedFile.OK) {
+                logger.error("Cannot restore a checkpointed record of {}", file.fileName());
+            }
+        }
+        return images.size();
+    }
+
+    // Leaves each record as its last committed change made it: returns {redone, undone}
+    private static long[] replay(EnscribeFile file, List<Change> changes, Set<Long> winners) {
+        Map<ByteBuffer, byte[]> images = new HashMap<>(); // Final image by key; null = no record
+        Map<ByteBuffer, Long> lastWriter = new HashMap<>();
+        long redone = 0, undone = 0;
+        for (Change c : changes) {
+            ByteBuffer key = ByteBuffer.wrap(c.update().key());
+            if (winners.contains(c.txId())) {
+                images.put(key, c.update().after()); // Redo
+                redone++;
+            } else {
+                // Undo: the first change of this transaction's run on the record holds the image before it
+                if (!Long.valueOf(c.txId()).equals(lastWriter.get(key))) images.put(key, c.update().before());
+                undone++;
+            }
+            lastWriter.put(key, c.txId());
+        }
+        for (Map.Entry<ByteBuffer, byte[]> e : images.entrySet()) {
+            byte[] key = e.getKey().array();
+            byte[] image = e.getValue();
+            if (image == null) {
+                if (file.get(key) != null) file.delete(key);
+            } else if (file.put(key, ByteBuffer.wrap(image), image.length) != KeyedFile.OK) { // Under the logged key
+                logger.error("Cannot restore a record of {} from the audit trail", file.fileName());
+            }
+        }
+        return new long[] {redone, undone};
+    }
+
+    private static Path checkpointPath(Path dir, int number) {
+        return dir.resolve(String.format("CK%06d", number));
+    }
+
+    private static Control readControl(Path dir) throws IOException {
+        Path path = dir.resolve(CONTROL);
+        if (!Files.exists(path)) return null;
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        return new Control(data.getInt(), data.getLong());
+    }
+
+    // Written aside and renamed into place, so a crash leaves the old or the new one
+    private static void writeControl(Path dir, Control control) throws IOException {
+        Path temp = dir.resolve(CONTROL + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(ByteBuffer.allocate(12).putInt(control.checkpoint()).putLong(control.redoStart()).array());
+            out.getChannel().force(true);
+        }
+        Files.move(temp, dir.resolve(CONTROL), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Checkpoint image: [file count 4] then per file [name length 2][name] and records
+    // [length 4][key length 2][key][bytes], ended by length -1
+    private static Map<String, List<Image>> readCheckpoint(Path path) throws IOException {
+        Map<String, List<Image>> images = new HashMap<>();
+        try (InputStream raw = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                List<Image> records = new ArrayList<>();
+                for (int length = in.readInt(); length >= 0; length = in.readInt()) {
+                    byte[] key = new byte[in.readUnsignedShort()];
+                    in.readFully(key);
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    records.add(new Image(key, record));
+                }
+                images.put(new String(name, StandardCharsets.ISO_8859_1), records);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Checkpoint " + path + " is incomplete", e);
+        }
+        return images;
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static <T> List<T> join(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> f : futures) results.add(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Recovery interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Recovery failed", e.getCause());
+        }
+        return results;
+    }
+}
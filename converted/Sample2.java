@@ -1,10 +1,12 @@
 package converted;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -420,6 +422,49 @@ class GuardianInterface {
         }
     }
 
+    // --- Process pair (CHECKPOINT / CHECKMONITOR) ---
+    private static ProcessPair pair; // The primary's link to its backup; null when running alone
+
+    /**
+     * Starts the primary of a process pair: connects to the backup listening at the socket
+     * and sends it the blocks whole. Returns 0, or 201 if there is no backup (runs alone).
+     */
+    public static int startBackup(Path socket, GlobalBlock... blocks) {
+        try {
+            pair = ProcessPair.connect("inventory_system", socket, blocks);
+            return 0;
+        } catch (IOException e) {
+            logger.warn("No backup at {}; running without one", socket, e);
+            return ProcessPair.PATH_DOWN;
+        }
+    }
+
+    /** Simulates CHECKPOINT: sends the blocks' changes since the last one to the backup. Returns 0 or 201. */
+    public static int checkpoint() {
+        return pair == null ? ProcessPair.PATH_DOWN : pair.checkpoint();
+    }
+
+    /**
+     * Simulates CHECKMONITOR in the backup: keeps the blocks up to date from the primary's
+     * checkpoints and returns when the primary fails (0: take over) or stops (1: stop too).
+     */
+    public static int checkMonitor(Path socket, GlobalBlock... blocks) {
+        try {
+            return ProcessPair.Backup.listen(socket, blocks).checkMonitor();
+        } catch (IOException e) {
+            logger.error("CHECKMONITOR cannot listen at {}", socket, e);
+            return ProcessPair.STOPPED;
+        }
+    }
+
+    /** Stops the pair normally, so the backup stops rather than takes over. */
+    public static void stopBackup() {
+        if (pair != null) {
+            pair.close();
+            pair = null;
+        }
+    }
+
      // Simulate LOG^ERR (from previous example, slightly adapted)
     public static final int INFO_PROCESS = 0;
     public static final int WARNING_PROCESS = 1;
@@ -515,6 +560,12 @@ public class Sample2 {
         static int recordCount = 0;
     }
 
+    // --- Checkpointed Globals (Process Pair) ---
+    // The backup's copy of the globals: error_code, transaction_count and inventory_count
+    // (INTs at 0, 2 and 4), and the inventory records, which live in their block.
+    private static final GlobalBlock globals = new GlobalBlock("globals", 6);
+    private static final GlobalBlock inventoryBlock = new GlobalBlock("inventory", MAX_ITEMS * ItemRecord.BYTE_LENGTH);
+
     // --- System Global Pointer Declarations (Simulated) ---
     // INT .SG system_time; -> Simulate with a placeholder
     private static int systemTime = 0; // Placeholder, actual access is OS-dependent
@@ -541,9 +592,26 @@ public class Sample2 {
         Arrays.fill(bufferBytes, (byte) ' ');
         logger.debug("Buffer initialized with spaces.");
 
-        // Initialize inventory with sample data
-        // CALL initialize_inventory;
-        initializeInventory();
+        // Run as a process pair when given a socket (tal2j.pair.socket): "-backup" waits in
+        // CHECKMONITOR and, if the primary fails, carries on from its last checkpoint
+        String socketName = System.getProperty("tal2j.pair.socket");
+        Path pairSocket = socketName == null ? null : Path.of(socketName);
+        if (pairSocket != null && args.length > 0 && args[0].equalsIgnoreCase("-backup")) {
+            if (GuardianInterface.checkMonitor(pairSocket, globals, inventoryBlock) != ProcessPair.TAKEOVER) {
+                logger.info("Primary stopped; backup stopping too.");
+                return;
+            }
+            restoreGlobals();
+            logger.info("Backup took over: transaction_count={}, inventory_count={}", transactionCount, inventoryCount);
+        } else {
+            // Initialize inventory with sample data
+            // CALL initialize_inventory;
+            initializeInventory();
+            if (pairSocket != null) {
+                saveGlobals();
+                GuardianInterface.startBackup(pairSocket, globals, inventoryBlock);
+            }
+        }
 
         // Main processing loop
         cmd = 0;
@@ -592,6 +660,9 @@ public class Sample2 {
                 transactionCount++;
                 // CALL log_transaction(cmd, transaction_count);
                 GuardianInterface.logTransaction(cmd, transactionCount);
+                // CALL CHECKPOINT; -> Only the globals and records this command changed go to the backup
+                saveGlobals();
+                GuardianInterface.checkpoint();
             } // ENDIF
             // END (inside WHILE)
         } // ENDWHILE
@@ -628,6 +699,7 @@ public class Sample2 {
 
         } // ENDIF
 
+        GuardianInterface.stopBackup();
         logger.info("Inventory System Simulation finished. Final error code: {}", errorCode);
         // RETURN success;
         // In Java main, the program simply exits. We can simulate the return code if needed.
@@ -636,6 +708,28 @@ public class Sample2 {
 
     // --- Subprocedure Implementations (or Stubs) ---
 
+    // Copy the scalar globals into their checkpointed block; unchanged ones stay clean
+    private static void saveGlobals() {
+        globals.putShort(0, (short) errorCode);
+        globals.putShort(2, (short) transactionCount);
+        globals.putShort(4, (short) inventoryCount);
+    }
+
+    // After a takeover: the globals and inventory as of the primary's last checkpoint
+    private static void restoreGlobals() {
+        errorCode = globals.getShort(0);
+        transactionCount = globals.getShort(2);
+        inventoryCount = globals.getShort(4);
+        for (int i = 0; i < inventoryCount; i++) {
+            inventory[i] = itemAt(i);
+        }
+    }
+
+    // The record in the inventory block for an index; changes through it must be marked dirty
+    private static ItemRecord itemAt(int index) {
+        return new ItemRecord(inventoryBlock.buffer().slice(index * ItemRecord.BYTE_LENGTH, ItemRecord.BYTE_LENGTH));
+    }
+
     /**
      * Simulates PROC initialize_inventory;
      */
@@ -645,7 +739,7 @@ public class Sample2 {
         inventoryCount = 3;
 
         // Item 1
-        inventory[0] = new ItemRecord(); // Allocate record
+        inventory[0] = itemAt(0); // Record in the inventory block
         inventory[0].setItemId(1001);
         inventory[0].setItemName("Widget A");
         inventory[0].setItemPrice(new BigDecimal("19.99"));
@@ -655,7 +749,7 @@ public class Sample2 {
         inventory[0].setLastUpdated("2025-04-01");
 
         // Item 2
-        inventory[1] = new ItemRecord();
+        inventory[1] = itemAt(1);
         inventory[1].setItemId(1002);
         inventory[1].setItemName("Widget B");
         inventory[1].setItemPrice(new BigDecimal("29.99"));
@@ -665,7 +759,7 @@ public class Sample2 {
         inventory[1].setLastUpdated("2025-04-01");
 
         // Item 3
-        inventory[2] = new ItemRecord();
+        inventory[2] = itemAt(2);
         inventory[2].setItemId(1003);
         inventory[2].setItemName("Widget C");
         inventory[2].setItemPrice(new BigDecimal("39.99"));
@@ -674,6 +768,7 @@ public class Sample2 {
         inventory[2].setSupplierId(101);
         inventory[2].setLastUpdated("2025-04-01");
 
+        inventoryBlock.markDirty(0, inventoryCount * ItemRecord.BYTE_LENGTH);
         logger.debug("Inventory initialized with {} items.", inventoryCount);
     }
 
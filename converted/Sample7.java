@@ -1,12 +1,29 @@
 package converted;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner; // For simulating terminal input
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -19,6 +36,14 @@ class IntWrapper {
     @Override public String toString() { return Integer.toString(value); }
 }
 
+// Wrapper class for simulating pass-by-reference for TAL INT(32) parameters.
+class LongWrapper {
+    public long value;
+    public LongWrapper() { this.value = 0L; }
+    public LongWrapper(long value) { this.value = value; }
+    @Override public String toString() { return Long.toString(value); }
+}
+
 /**
  * Simulates Guardian OS calls and environment for file handling.
  */
@@ -27,45 +52,139 @@ class GuardianInterface {
     private static final Scanner consoleScanner = new Scanner(System.in); // For simulating terminal input
 
     // File system simulation state
-    private static int nextFileNum = 10; // Start assigning file numbers from 10
-    private static Map<Integer, MockFile> openFiles = new HashMap<>();
     private static final String MOCK_TERMINAL_NAME = "$TERM "; // Padded like TAL might
     private static final String MOCK_INPUT_CONTENT = "Line 1 of input file.\nSecond line here.\nEnd of file content.";
     private static final String MOCK_BAD_FILENAME = "BADFILE.DAT";
+    // Directory standing in for the default volume; files found there are read from disk, others use mock content
+    private static final String VOLUME_DIR = System.getProperty("tal2j.volume");
+    // Disk files kept open across CLOSE for reuse by the next OPEN of the same file and access
+    private static final FileHandleCache handleCache = new FileHandleCache(Integer.getInteger("tal2j.maxOpenFiles", 64));
+
+    // Interprocess messages: a hosted process (see GuardianProcess) goes by its own name; otherwise a
+    // thread acts as the process it names (inherited by threads it starts)
+    private static final String RECEIVE_NAME = "$RECEIVE";
+    private static final InheritableThreadLocal<String> processName = new InheritableThreadLocal<>();
+    private static final Map<String, MockFile> receiveOpens = new ConcurrentHashMap<>(); // $RECEIVE open of each server, by process name
+
+    // Nowait I/O simulation: operations run on virtual threads, completions are queued for the issuing process's AWAITIO
+    private static final ExecutorService ioExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // Longest CLOSE waits for a nowait operation it cannot cancel (e.g. a console read) before abandoning it
+    static final long CLOSE_WAIT_MILLIS = 2_000;
+
+    // A process's own file system state: every hosted process has one, and code outside them shares one
+    private static final class Context implements AutoCloseable {
+        final FileNumberTable<MockFile> openFiles = new FileNumberTable<>(10); // Start assigning file numbers from 10
+        int noFileLastError = 0; // Error reported by FILEINFO for fileNum -1 (failed OPEN, AWAITIO on any file)
+        final ReentrantLock ioLock = new ReentrantLock();
+        final Condition ioCompleted = ioLock.newCondition();
+        final ArrayDeque<IoCompletion> completions = new ArrayDeque<>(); // Guarded by ioLock, in completion order
+        int totalOutstanding = 0; // Guarded by ioLock
+
+        // Process deletion: closes every file the process left open, its $RECEIVE included
+        @Override
+        public void close() {
+            List<Integer> open = new ArrayList<>();
+            openFiles.forEach((file, fileNum) -> open.add(fileNum));
+            for (int fileNum : open) {
+                GuardianInterface.close(fileNum);
+            }
+        }
+    }
+
+    private static Context context() {
+        return GuardianProcess.local(Context.class, Context::new);
+    }
+
+    // A finished nowait operation waiting to be picked up by AWAITIO
+    private static class IoCompletion {
+        final int fileNum;
+        final long tag;
+        final int count;
+        final int error;
+
+        IoCompletion(int fileNum, long tag, int count, int error) {
+            this.fileNum = fileNum;
+            this.tag = tag;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    // The transfer part of a READ/WRITE/WRITEREAD: returns the byte count (or -1) and leaves the error in lastError
+    private interface NowaitOp {
+        int run(MockFile file);
+    }
 
     // Mock file state class
     private static class MockFile {
         String fileName;
-        ByteBuffer data; // Holds the actual file content for simulation
+        ByteBuffer data; // Holds the actual file content for simulation (input files)
+        ChunkedBuffer output; // Content written to an output file; grows by chunks without copying
+        FileChannel channel; // Disk-backed file, null when using mock content
+        long channelPosition = 0;
+        FileHandleCache.Handle handle; // Cached open disk file, null when using mock content
+        int cacheFileId = -1; // Registration in the shared block cache, for a disk-backed file
+        CompressedBlockFile compressed; // Block-compressed disk file, null for a plain one
+        int bufferMode = OpenOptions.BUFFER_APPLICATION; // I/O policy chosen at OPEN
+        boolean bypassCache = false; // Cached reads do not add missed pages
+        WriteBehindBuffer writeBehind; // Coalesces WRITEs to a disk output file, when requested at OPEN
+        SequentialBlockReader blockReader; // Sequential block buffer, when requested at OPEN
         boolean isOpen = true;
         int lastError = 0; // Stores the error code for the last operation
         boolean isTerminal = false;
         boolean isOutput = false;
+        ReceiveQueue receive; // This process's $RECEIVE, for READUPDATE and REPLY
+        ReceiveQueue server; // $RECEIVE of the server process this open sends WRITEREADs to
+        int nowaitDepth = 0; // 0 = waited I/O, otherwise max outstanding nowait operations
+        int outstanding = 0; // Issued but not yet returned by AWAITIO; guarded by the process's ioLock
+        CompletableFuture<Void> ioChain = CompletableFuture.completedFuture(null); // Runs this file's operations in issue order
+        volatile Thread ioThread; // Running this file's current nowait operation
+        volatile boolean cancelled = false; // Set by CLOSE: queued operations are skipped, late completions dropped; written under ioLock
+        final FileMetrics metrics; // Shared by every open of the file name
 
         // Constructor for regular files
         MockFile(String name, ByteBuffer content, boolean output) {
+            this(name, content, output, 0);
+        }
+
+        MockFile(String name, ByteBuffer content, boolean output, int spillAfterChunks) {
             this.fileName = name;
+            this.metrics = FileMetrics.forFile(name);
             this.isOutput = output;
             if (content != null) {
                 // Duplicate the buffer
                 this.data = ByteBuffer.allocate(content.capacity()).order(ByteOrder.LITTLE_ENDIAN);
                 this.data.put(content.array());
                 this.data.position(0); // Ready for reading
-            } else {
-                // For output files, start with an empty, expandable buffer (simulated)
-                this.data = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN); // Initial capacity
-                this.data.limit(0); // Initially empty
+            } else if (output) {
+                // For output files, start with an empty chunked buffer
+                this.output = new ChunkedBuffer(ChunkedBuffer.DEFAULT_CHUNK_SIZE, spillAfterChunks);
             }
         }
         // Constructor for terminal
         MockFile(String name, boolean terminal) {
              this.fileName = name;
+             this.metrics = FileMetrics.forFile(name);
              this.isTerminal = terminal;
              this.data = null; // Terminal doesn't have pre-defined content buffer
         }
+        // Constructor for $RECEIVE (receive set) or an open of a server process (server set)
+        MockFile(String name, ReceiveQueue receive, ReceiveQueue server) {
+             this.fileName = name;
+             this.metrics = FileMetrics.forFile(name);
+             this.receive = receive;
+             this.server = server;
+        }
 
-        // Simulate writing to an output file buffer
+        // Simulate writing to an output file buffer; timed for the file's metrics (waited or nowait)
         void writeData(byte[] bytesToWrite, int length) {
+            long start = System.nanoTime();
+            transferOut(bytesToWrite, length);
+            metrics.record(FileMetrics.Op.WRITE, System.nanoTime() - start,
+                           lastError == 0 ? Math.min(length, bytesToWrite.length) : 0, lastError);
+        }
+
+        private void transferOut(byte[] bytesToWrite, int length) {
             if (!isOutput && !isTerminal) {
                 logger.error("Attempt to write to non-output file: {}", fileName);
                 lastError = 9; // Permission denied / Invalid operation
@@ -78,27 +197,156 @@ class GuardianInterface {
             }
 
             int writeLen = Math.min(length, bytesToWrite.length);
-            // Ensure capacity
-            if (data.position() + writeLen > data.capacity()) {
-                // Simulate resizing the buffer (Java ByteBuffer needs explicit reallocation)
-                int newCapacity = Math.max(data.capacity() * 2, data.position() + writeLen);
-                ByteBuffer newData = ByteBuffer.allocate(newCapacity).order(ByteOrder.LITTLE_ENDIAN);
-                data.flip(); // Prepare old buffer for reading
-                newData.put(data); // Copy old data
-                data = newData; // Replace with new buffer
-                 logger.trace("Resized output buffer for {} to {}", fileName, newCapacity);
-            }
-            data.put(bytesToWrite, 0, writeLen);
+            try {
+                if (writeBehind != null) {
+                    writeBehind.write(bytesToWrite, 0, writeLen);
+                } else if (channel != null) {
+                    if (cacheFileId < 0 || (compressed == null && bypassesBlockCache())) {
+                        ByteBuffer src = ByteBuffer.wrap(bytesToWrite, 0, writeLen);
+                        while (src.hasRemaining()) {
+                            channelPosition += channel.write(src, channelPosition);
+                        }
+                    } else {
+                        BlockCache.shared().write(cacheFileId, channelPosition, bytesToWrite, 0, writeLen,
+                                                  bufferMode == OpenOptions.BUFFER_WRITE_THROUGH);
+                        channelPosition += writeLen;
+                    }
+                } else {
+                    output.append(bytesToWrite, 0, writeLen);
+                }
+            } catch (IOException e) {
+                logger.error("I/O error writing {}", fileName, e);
+                lastError = 1; // Generic I/O error
+                return;
+            }
             lastError = 0;
         }
 
-         // Simulate reading from an input file buffer
+        // Unbuffered disk read, served from the shared block cache
+        private int readChannel(byte[] buffer, int len) throws IOException {
+            int n;
+            if (cacheFileId >= 0 && !bypassesBlockCache()) {
+                n = BlockCache.shared().read(cacheFileId, channelPosition, buffer, 0, len, bypassCache);
+            } else if (compressed != null) {
+                n = Math.max(0, compressed.read(channelPosition, ByteBuffer.wrap(buffer, 0, len)));
+            } else {
+                n = Math.max(0, channel.read(ByteBuffer.wrap(buffer, 0, len), channelPosition));
+            }
+            channelPosition += n;
+            return n;
+        }
+
+        // OS-buffered and unbuffered opens go straight to the channel (a compressed file's blocks are still assembled in the cache)
+        private boolean bypassesBlockCache() {
+            return bufferMode == OpenOptions.BUFFER_OS || bufferMode == OpenOptions.BUFFER_NONE;
+        }
+
+        // Use an open disk file from the handle cache; the position starts at 0 for each open
+        void attachHandle(FileHandleCache.Handle h) {
+            handle = h;
+            channel = h.channel;
+            compressed = h.compressed;
+            cacheFileId = h.cacheFileId;
+        }
+
+        // Turn on sequential block buffering over the disk channel or the mock content
+        void enableBlockBuffering(int blockSize, int readAheadDepth) {
+            SequentialBlockReader.BlockSource source;
+            if (compressed != null) {
+                source = compressed::read;
+            } else if (channel != null) {
+                FileChannel ch = channel;
+                source = (position, dest) -> ch.read(dest, position);
+            } else {
+                ByteBuffer content = data;
+                source = (position, dest) -> {
+                    if (position >= content.limit()) return -1;
+                    int n = (int) Math.min(dest.remaining(), content.limit() - position);
+                    dest.put(content.slice((int) position, n));
+                    return n;
+                };
+            }
+            blockReader = new SequentialBlockReader(source, blockSize, readAheadDepth, ioExecutor);
+        }
+
+        // Flush pending writes, close the block buffer and return the disk handle; false if buffered data was lost
+        boolean releaseChannel() {
+            boolean flushed = true;
+            if (blockReader != null) {
+                logger.info("Block buffer for '{}': {} blocks prefetched, {} bytes read, {} reads waited ({} ms)",
+                            fileName, blockReader.blocksFetched(), blockReader.bytesDelivered(),
+                            blockReader.readerStalls(), blockReader.stallNanos() / 1_000_000);
+                blockReader.close();
+            }
+            if (writeBehind != null) {
+                try {
+                    writeBehind.close();
+                } catch (IOException e) {
+                    logger.error("Error flushing write-behind buffer for {}", fileName, e);
+                    flushed = false;
+                }
+                logger.info("Write-behind for '{}': {}", fileName, writeBehind.stats());
+            }
+            if (handle == null) return flushed;
+            try {
+                if (cacheFileId >= 0) {
+                    BlockCache.shared().flush(cacheFileId); // Writes back this file's dirty pages
+                    logger.info("Block cache after closing '{}': {}", fileName, BlockCache.shared().stats());
+                }
+                if (compressed != null && isOutput) {
+                    compressed.close(); // Writes the block index
+                    logger.info("Compression for '{}': {}", fileName, compressed.stats());
+                }
+            } catch (IOException e) {
+                logger.error("Error writing back cached blocks for {}", fileName, e);
+                flushed = false;
+            }
+            handleCache.release(handle); // The channel stays open for the next OPEN of the file
+            logger.debug("Handle cache: {}", handleCache.stats());
+            return flushed;
+        }
+
+        // Release the output buffer and any spill file
+        void releaseOutput() {
+            if (output == null) return;
+            try {
+                output.close();
+            } catch (IOException e) {
+                logger.warn("Error releasing output buffer for {}", fileName, e);
+            }
+        }
+
+         // Simulate reading from an input file buffer; timed for the file's metrics (waited or nowait)
         int readData(byte[] buffer, int readMax) {
-             if (isOutput || isTerminal || data == null) {
+            long start = System.nanoTime();
+            int n = transferIn(buffer, readMax);
+            metrics.record(FileMetrics.Op.READ, System.nanoTime() - start, Math.max(n, 0), lastError);
+            return n;
+        }
+
+        private int transferIn(byte[] buffer, int readMax) {
+             if (isOutput || isTerminal || (data == null && channel == null)) {
                  logger.error("Attempt to read from non-input file or terminal: {}", fileName);
                  lastError = 9; // Invalid operation
                  return -1; // Indicate error immediately
              }
+             if (blockReader != null || channel != null) {
+                 int bytesRead;
+                 try {
+                     int len = Math.min(readMax, buffer.length);
+                     bytesRead = blockReader != null ? blockReader.read(buffer, 0, len) : readChannel(buffer, len);
+                 } catch (IOException e) {
+                     logger.error("I/O error reading {}", fileName, e);
+                     lastError = 1; // Generic I/O error
+                     return -1;
+                 }
+                 if (bytesRead <= 0) {
+                     lastError = 11; // EOF
+                     return 0;
+                 }
+                 lastError = 0;
+                 return bytesRead;
+             }
              if (!data.hasRemaining()) {
                  lastError = 11; // EOF
                  return 0; // Indicate EOF by returning 0 bytes read
@@ -137,50 +385,205 @@ class GuardianInterface {
      * access = 1 simulates create/exclusive write for output files.
      */
     public static int open(byte[] filenameBytes, IntWrapper fileNumWrapper, int access) {
+        return open(filenameBytes, fileNumWrapper, access, null);
+    }
+
+    /**
+     * Simulates OPEN with the optional trailing parameters.
+     * options.nowaitDepth > 0 opens the file for nowait I/O: READ/WRITE/WRITEREAD return
+     * immediately and each operation must be completed with AWAITIO.
+     */
+    public static int open(byte[] filenameBytes, IntWrapper fileNumWrapper, int access, OpenOptions options) {
+        long start = System.nanoTime();
+        int result = doOpen(filenameBytes, fileNumWrapper, access, options);
         String filename = new String(filenameBytes, StandardCharsets.ISO_8859_1).trim();
-        logger.debug("OPEN called for filename: '{}', access: {}", filename, access);
+        FileMetrics.forFile(filename).record(FileMetrics.Op.OPEN, System.nanoTime() - start, 0,
+                                             result == 0 ? 0 : context().noFileLastError);
+        return result;
+    }
+
+    private static int doOpen(byte[] filenameBytes, IntWrapper fileNumWrapper, int access, OpenOptions options) {
+        String filename = new String(filenameBytes, StandardCharsets.ISO_8859_1).trim();
+        int nowaitDepth = options != null ? options.nowaitDepth : 0;
+        logger.debug("OPEN called for filename: '{}', access: {}, nowaitDepth: {}", filename, access, nowaitDepth);
 
         if (filename.equals(MOCK_TERMINAL_NAME.trim())) {
-            int fileNum = nextFileNum++;
+            MockFile terminal = new MockFile(filename, true); // Mark as terminal
+            terminal.nowaitDepth = nowaitDepth;
+            int fileNum = context().openFiles.allocate(terminal);
             fileNumWrapper.value = fileNum;
-            openFiles.put(fileNum, new MockFile(filename, true)); // Mark as terminal
+            if (fileNum < 0) {
+                context().noFileLastError = 32; // No file control block available
+                logger.error("OPEN error 32: file table full, cannot open '{}'", filename);
+                return -1;
+            }
             logger.info("Opened terminal '{}' as fileNum {}", filename, fileNum);
             return 0; // Success
         }
 
+        if (filename.equalsIgnoreCase(RECEIVE_NAME) || ReceiveQueue.server(filename) != null) {
+            return openProcessFile(filename, fileNumWrapper, nowaitDepth, options);
+        }
+
         if (filename.equals(MOCK_BAD_FILENAME)) {
             fileNumWrapper.value = -1;
+            context().noFileLastError = 4;
             logger.error("Simulating OPEN error 4 (File Not Found) for file: {}", filename);
             // Error state needs to be retrievable by FILEINFO for fileNum -1
             return -1; // Immediate error
         }
 
         // Simulate opening a regular file
-        int fileNum = nextFileNum++;
-        fileNumWrapper.value = fileNum;
         boolean isOutput = (access == 1); // Treat access 1 as output/create
 
         ByteBuffer content = null;
-        if (!isOutput) {
-            // Simulate content for input file
-            content = ByteBuffer.wrap(MOCK_INPUT_CONTENT.getBytes(StandardCharsets.ISO_8859_1));
+        FileHandleCache.Handle handle = null;
+        Path diskFile = VOLUME_DIR != null ? Paths.get(VOLUME_DIR, filename) : null;
+        if (isOutput && diskFile != null) {
+            try {
+                handle = handleCache.acquire(diskFile, true, options != null && options.compressBlocks);
+            } catch (IOException e) {
+                fileNumWrapper.value = -1;
+                context().noFileLastError = 1; // Generic I/O error
+                logger.error("OPEN error 1: cannot create disk file {}", diskFile, e);
+                return -1;
+            }
+        } else if (!isOutput) {
+            if (diskFile != null && Files.isRegularFile(diskFile)) {
+                try {
+                    handle = handleCache.acquire(diskFile, false, false);
+                } catch (IOException e) {
+                    fileNumWrapper.value = -1;
+                    context().noFileLastError = 1; // Generic I/O error
+                    logger.error("OPEN error 1: cannot open disk file {}", diskFile, e);
+                    return -1;
+                }
+            } else {
+                // Simulate content for input file
+                content = ByteBuffer.wrap(MOCK_INPUT_CONTENT.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        MockFile file = new MockFile(filename, content, isOutput, options != null ? options.spillAfterChunks : 0);
+        file.nowaitDepth = nowaitDepth;
+        if (handle != null) {
+            file.attachHandle(handle);
+        }
+        if (options != null) {
+            file.bufferMode = options.bufferMode;
+            file.bypassCache = options.bypassCache;
+        }
+        if (handle != null && file.bypassesBlockCache() && file.cacheFileId >= 0) {
+            try {
+                BlockCache.shared().flush(file.cacheFileId); // Pages written by other opens must reach the channel first
+            } catch (IOException e) {
+                logger.warn("Error writing back cached blocks for {}", filename, e);
+            }
+        }
+        boolean appBuffers = file.bufferMode != OpenOptions.BUFFER_NONE;
+        if (!isOutput && appBuffers && options != null && options.seqBlockBufferLength > 0) {
+            file.enableBlockBuffering(options.seqBlockBufferLength, options.readAheadDepth);
+        }
+        // Write-behind appends raw bytes to the channel, so it does not apply to a compressed file or write-through
+        if (isOutput && file.channel != null && file.compressed == null && appBuffers
+                && file.bufferMode != OpenOptions.BUFFER_WRITE_THROUGH && options != null && options.writeBehindBytes > 0) {
+            file.writeBehind = new WriteBehindBuffer(file.channel, 0, options.writeBehindBytes,
+                                                     options.writeBehindDelayMillis, options.groupCommit);
+        }
+        int fileNum = context().openFiles.allocate(file);
+        fileNumWrapper.value = fileNum;
+        if (fileNum < 0) {
+            context().noFileLastError = 32; // No file control block available
+            logger.error("OPEN error 32: file table full, cannot open '{}'", filename);
+            file.releaseChannel();
+            return -1;
         }
+        logger.info("Opened file '{}' as fileNum {} (Output={}, Nowait={})", filename, fileNum, isOutput, nowaitDepth > 0);
+        return 0; // Success
+    }
 
-        openFiles.put(fileNum, new MockFile(filename, content, isOutput));
-        logger.info("Opened file '{}' as fileNum {} (Output={})", filename, fileNum, isOutput);
+    // OPEN of $RECEIVE by a server, or of a server's process name by a requester
+    private static int openProcessFile(String filename, IntWrapper fileNumWrapper, int nowaitDepth, OpenOptions options) {
+        MockFile file;
+        if (filename.equalsIgnoreCase(RECEIVE_NAME)) {
+            String name = myProcessName();
+            ReceiveQueue queue = ReceiveQueue.open(name, options != null ? options.receiveDepth : 1,
+                                                   options != null ? options.receiveQueueLength : ReceiveQueue.DEFAULT_CAPACITY);
+            if (queue == null) {
+                fileNumWrapper.value = -1;
+                context().noFileLastError = 12; // File in use
+                logger.error("OPEN error 12: {} already has $RECEIVE open", name);
+                return -1;
+            }
+            file = new MockFile(RECEIVE_NAME, queue, null);
+        } else {
+            file = new MockFile(filename, null, ReceiveQueue.server(filename));
+        }
+        file.nowaitDepth = nowaitDepth;
+        int fileNum = context().openFiles.allocate(file);
+        fileNumWrapper.value = fileNum;
+        if (fileNum < 0) {
+            context().noFileLastError = 32; // No file control block available
+            logger.error("OPEN error 32: file table full, cannot open '{}'", filename);
+            if (file.receive != null) file.receive.close();
+            return -1;
+        }
+        if (file.receive != null) {
+            receiveOpens.put(file.receive.processName(), file);
+            logger.info("Opened $RECEIVE of {} as fileNum {} (receive depth {})",
+                        file.receive.processName(), fileNum, file.receive.receiveDepth());
+        } else {
+            logger.info("Opened server process '{}' as fileNum {} (Nowait={})", filename, fileNum, nowaitDepth > 0);
+        }
         return 0; // Success
     }
 
+    /**
+     * Stands in for the name a process is run with (RUN /NAME/): the caller and the threads
+     * it starts from now on act as that process, whose $RECEIVE requesters OPEN by name.
+     * A process hosted by GuardianProcess always goes by the name it was started with.
+     */
+    public static void setProcessName(String name) {
+        processName.set(name);
+    }
+
+    // The caller's process name; an unnamed process gets a system-style one from its thread
+    private static String myProcessName() {
+        GuardianProcess process = GuardianProcess.current();
+        if (process != null) return process.name();
+        String name = processName.get();
+        if (name == null) {
+            name = "$Z" + Long.toString(Thread.currentThread().threadId(), 36).toUpperCase();
+            processName.set(name);
+        }
+        return name;
+    }
+
     /**
      * Simulates CLOSE.
      */
     public static int close(int fileNum) {
         logger.debug("CLOSE called for fileNum {}", fileNum);
-        MockFile file = openFiles.remove(fileNum);
+        Context ctx = context();
+        MockFile file = ctx.openFiles.get(fileNum);
         if (file != null) {
+            if (file.receive != null) {
+                receiveOpens.remove(file.receive.processName(), file);
+                file.receive.close(); // Requesters still waiting get error 201, and so does a nowait READUPDATE
+            }
+            if (file.nowaitDepth > 0) {
+                cancelNowait(fileNum, file); // Before the number is released, so AWAITIO still finds the file
+            }
+            ctx.openFiles.release(fileNum);
             if (file.isOpen) {
                 file.isOpen = false;
-                logger.info("File {} ('{}') closed.", fileNum, file.fileName);
+                boolean flushed = file.releaseChannel();
+                file.releaseOutput();
+                if (!flushed) {
+                    logger.error("CLOSE error: buffered writes for file {} ('{}') could not be flushed.", fileNum, file.fileName);
+                    return -1;
+                }
+                logger.info("File {} ('{}') closed. {}", fileNum, file.fileName, file.metrics.summary());
                 return 0; // Success
             } else {
                 logger.warn("CLOSE warning: File {} ('{}') already marked closed.", fileNum, file.fileName);
@@ -196,15 +599,55 @@ class GuardianInterface {
      * Simulates WRITEREAD - writes to terminal, reads response.
      */
     public static int writeRead(int fileNum, byte[] buffer, int writeCount, int readMax, IntWrapper bytesReadWrapper) {
+        return writeRead(fileNum, buffer, writeCount, readMax, bytesReadWrapper, 0L);
+    }
+
+    /**
+     * Simulates WRITEREAD with a nowait tag. On a nowait file the exchange is queued
+     * and the count read is returned by AWAITIO instead of bytesReadWrapper. To a server
+     * process, the request is sent to its $RECEIVE and the reply read into the buffer.
+     */
+    public static int writeRead(int fileNum, byte[] buffer, int writeCount, int readMax, IntWrapper bytesReadWrapper, long tag) {
         logger.debug("WRITEREAD called for fileNum {}, writeCount={}, readMax={}", fileNum, writeCount, readMax);
-        MockFile file = openFiles.get(fileNum);
-        if (file == null || !file.isOpen || !file.isTerminal) {
-            logger.error("WRITEREAD error: fileNum {} is not an open terminal.", fileNum);
+        MockFile file = context().openFiles.get(fileNum);
+        if (file == null || !file.isOpen || (!file.isTerminal && file.server == null)) {
+            logger.error("WRITEREAD error: fileNum {} is not an open terminal or process.", fileNum);
             if (file != null) file.lastError = 10; // File not open or invalid type
             bytesReadWrapper.value = 0;
             return -1; // Error
         }
 
+        String sender = myProcessName();
+        NowaitOp op = file.server != null
+                ? f -> processWriteRead(f, fileNum, sender, buffer, writeCount, readMax)
+                : f -> terminalWriteRead(f, buffer, writeCount, readMax);
+        if (file.nowaitDepth > 0) {
+            bytesReadWrapper.value = 0;
+            return startNowait(fileNum, file, tag, "WRITEREAD", op);
+        }
+
+        int bytesRead = op.run(file);
+        bytesReadWrapper.value = Math.max(bytesRead, 0);
+        return bytesRead < 0 || file.lastError != 0 ? -1 : 0;
+    }
+
+    // Send the request to the server's $RECEIVE and wait for its REPLY; returns the reply count, error in lastError
+    private static int processWriteRead(MockFile file, int fileNum, String sender, byte[] buffer, int writeCount, int readMax) {
+        long start = System.nanoTime();
+        byte[] request = Arrays.copyOf(buffer, Math.min(writeCount, buffer.length));
+        ReceiveQueue.Message message = file.server.send(request, readMax, sender, fileNum);
+        int count = 0;
+        if (message.reply != null) {
+            count = Math.min(Math.min(message.reply.length, readMax), buffer.length);
+            System.arraycopy(message.reply, 0, buffer, 0, count);
+        }
+        file.lastError = message.replyError; // REPLY's error return, or 201 if the server went away
+        file.metrics.record(FileMetrics.Op.WRITEREAD, System.nanoTime() - start, request.length + count, file.lastError);
+        return count;
+    }
+
+    // Prompt on the console and read the response into the buffer after the prompt; returns the count read
+    private static int terminalWriteRead(MockFile file, byte[] buffer, int writeCount, int readMax) {
         // Simulate write prompt
         String prompt = new String(buffer, 0, Math.min(writeCount, buffer.length), StandardCharsets.ISO_8859_1);
         System.out.print(prompt); // Write prompt to console without newline
@@ -216,37 +659,48 @@ class GuardianInterface {
         } catch (Exception e) {
              logger.error("Error reading from console scanner", e);
              file.lastError = 1; // Generic I/O error
-             bytesReadWrapper.value = 0;
              return -1;
         }
 
-        byte[] inputBytes = input.getBytes(StandardCharsets.ISO_8859_1);
-        int bytesToCopy = Math.min(inputBytes.length, readMax);
+        int bytesToCopy = Math.min(input.length(), readMax);
         bytesToCopy = Math.min(bytesToCopy, buffer.length - writeCount); // Ensure space in buffer
 
         if (bytesToCopy < 0) bytesToCopy = 0; // Handle case where writeCount >= buffer.length
 
-        // Copy read data into the buffer *after* the prompt data
-        System.arraycopy(inputBytes, 0, buffer, writeCount, bytesToCopy);
-        bytesReadWrapper.value = bytesToCopy;
+        // Encode the read data (ISO-8859-1) straight into the buffer *after* the prompt data
+        for (int i = 0; i < bytesToCopy; i++) {
+            char c = input.charAt(i);
+            buffer[writeCount + i] = (byte) (c <= 0xFF ? c : '?');
+        }
         logger.debug("WRITEREAD read {} bytes: '{}'", bytesToCopy, input.substring(0, bytesToCopy));
 
         file.lastError = 0;
-        return 0; // Success
+        return bytesToCopy;
     }
 
     /**
      * Simulates READ.
      */
     public static int read(int fileNum, byte[] buffer, int readMax, IntWrapper bytesReadWrapper) {
+        return read(fileNum, buffer, readMax, bytesReadWrapper, 0L);
+    }
+
+    /**
+     * Simulates READ with a nowait tag. On a nowait file the read is queued and the
+     * count is returned by AWAITIO instead of bytesReadWrapper.
+     */
+    public static int read(int fileNum, byte[] buffer, int readMax, IntWrapper bytesReadWrapper, long tag) {
         logger.debug("READ called for fileNum {}, readMax={}", fileNum, readMax);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (file == null || !file.isOpen) {
             logger.error("READ error: fileNum {} is not open.", fileNum);
             if (file != null) file.lastError = 10;
             bytesReadWrapper.value = 0;
             return -1; // Error
         }
+         if (file.receive != null) {
+             return receive(fileNum, file, buffer, readMax, bytesReadWrapper, tag, false); // No reply expected
+         }
          if (file.isOutput || file.isTerminal) {
              logger.error("READ error: Attempt to read from output file or terminal {}.", fileNum);
              file.lastError = 9; // Invalid operation
@@ -254,6 +708,11 @@ class GuardianInterface {
              return -1;
          }
 
+        if (file.nowaitDepth > 0) {
+            bytesReadWrapper.value = 0;
+            return startNowait(fileNum, file, tag, "READ", f -> f.readData(buffer, readMax));
+        }
+
         int bytesRead = file.readData(buffer, readMax);
 
         if (bytesRead == 0 && file.lastError == 11) { // Check for EOF condition set by readData
@@ -271,12 +730,207 @@ class GuardianInterface {
         }
     }
 
+    /**
+     * Simulates READUPDATE on $RECEIVE - reads the next request for a later REPLY.
+     */
+    public static int readUpdate(int fileNum, byte[] buffer, int readMax, IntWrapper bytesReadWrapper) {
+        return readUpdate(fileNum, buffer, readMax, bytesReadWrapper, 0L);
+    }
+
+    /**
+     * Simulates READUPDATE on $RECEIVE with a nowait tag. Waits for a request unless the
+     * open is nowait, in which case AWAITIO completes it. Fails with error 28 while
+     * receive-depth messages are waiting for REPLY; FILE_GETRECEIVEINFO_ identifies the sender.
+     */
+    public static int readUpdate(int fileNum, byte[] buffer, int readMax, IntWrapper bytesReadWrapper, long tag) {
+        logger.debug("READUPDATE called for fileNum {}, readMax={}", fileNum, readMax);
+        MockFile file = context().openFiles.get(fileNum);
+        if (file == null || !file.isOpen || file.receive == null) {
+            logger.error("READUPDATE error: fileNum {} is not an open $RECEIVE.", fileNum);
+            if (file != null) file.lastError = file.isOpen ? 9 : 10; // Invalid operation / file not open
+            bytesReadWrapper.value = 0;
+            return -1;
+        }
+        return receive(fileNum, file, buffer, readMax, bytesReadWrapper, tag, true);
+    }
+
+    // READ or READUPDATE of $RECEIVE; after a READ the request is answered at once with no data
+    private static int receive(int fileNum, MockFile file, byte[] buffer, int readMax, IntWrapper bytesReadWrapper,
+                               long tag, boolean forReply) {
+        NowaitOp op = f -> {
+            long start = System.nanoTime();
+            int error = f.receive.receive(-1);
+            if (error != ReceiveQueue.OK) {
+                f.lastError = error;
+                f.metrics.record(FileMetrics.Op.READUPDATE, System.nanoTime() - start, 0, error);
+                return -1;
+            }
+            ReceiveQueue.Message message = f.receive.lastRead();
+            int count = Math.min(Math.min(message.request.length, readMax), buffer.length);
+            System.arraycopy(message.request, 0, buffer, 0, count);
+            if (!forReply) f.receive.reply(message.messageTag, null, 0);
+            f.lastError = 0;
+            f.metrics.record(forReply ? FileMetrics.Op.READUPDATE : FileMetrics.Op.READ, System.nanoTime() - start, count, 0);
+            return count;
+        };
+        if (file.nowaitDepth > 0) {
+            bytesReadWrapper.value = 0;
+            return startNowait(fileNum, file, tag, forReply ? "READUPDATE" : "READ", op);
+        }
+        int count = op.run(file);
+        bytesReadWrapper.value = Math.max(count, 0);
+        if (count < 0) {
+            logger.warn("{} of $RECEIVE failed with error {} for fileNum {}", forReply ? "READUPDATE" : "READ", file.lastError, fileNum);
+            return -1;
+        }
+        return 0; // Success
+    }
+
+    /**
+     * Simulates REPLY - answers the message READUPDATE read last on the caller's $RECEIVE.
+     */
+    public static int reply(byte[] buffer, int writeCount) {
+        return reply(buffer, writeCount, new IntWrapper(), -1, 0);
+    }
+
+    /**
+     * Simulates REPLY with a message tag (from FILE_GETRECEIVEINFO_; -1 = the last message
+     * read) and an error return the requester's WRITEREAD completes with. The requester gets
+     * at most the read count it asked for.
+     */
+    public static int reply(byte[] buffer, int writeCount, IntWrapper countWrittenWrapper, int messageTag, int errorReturn) {
+        countWrittenWrapper.value = 0;
+        MockFile file = receiveOpens.get(myProcessName());
+        if (file == null) {
+            logger.error("REPLY error: {} has no $RECEIVE open.", myProcessName());
+            context().noFileLastError = ReceiveQueue.INVALID_OPERATION;
+            return -1;
+        }
+        long start = System.nanoTime();
+        int tag = messageTag >= 0 ? messageTag : file.receive.lastMessageTag();
+        ReceiveQueue.Message message = file.receive.outstanding(tag);
+        int count = message == null ? 0 : Math.min(Math.min(writeCount, buffer.length), message.replyMax);
+        int error = file.receive.reply(tag, Arrays.copyOf(buffer, count), errorReturn);
+        file.lastError = error;
+        file.metrics.record(FileMetrics.Op.REPLY, System.nanoTime() - start, count, error);
+        if (error != ReceiveQueue.OK) {
+            logger.error("REPLY error {}: no message with tag {} is waiting for a reply.", error, tag);
+            return -1;
+        }
+        countWrittenWrapper.value = count;
+        return 0; // Success
+    }
+
+    /**
+     * Simulates FILE_GETRECEIVEINFO_ for the message READUPDATE read last on the caller's
+     * $RECEIVE: its tag for REPLY, the most the requester reads back, and the sender's
+     * process name (blank-padded) and file number. Returns 0 or a file-system error.
+     */
+    public static int fileGetReceiveInfo(IntWrapper messageTagWrapper, IntWrapper maxReplyWrapper,
+                                         byte[] senderNameBuffer, IntWrapper senderFileNumWrapper) {
+        MockFile file = receiveOpens.get(myProcessName());
+        ReceiveQueue.Message message = file == null ? null : file.receive.lastRead();
+        if (message == null) {
+            logger.warn("FILE_GETRECEIVEINFO_: no message has been read on $RECEIVE of {}", myProcessName());
+            return ReceiveQueue.INVALID_OPERATION;
+        }
+        messageTagWrapper.value = message.messageTag;
+        maxReplyWrapper.value = message.replyMax;
+        senderFileNumWrapper.value = message.senderFileNum;
+        byte[] name = message.senderName.getBytes(StandardCharsets.ISO_8859_1);
+        Arrays.fill(senderNameBuffer, (byte) ' ');
+        System.arraycopy(name, 0, senderNameBuffer, 0, Math.min(name.length, senderNameBuffer.length));
+        return 0;
+    }
+
+    /**
+     * Starts a Pathway server class of copies of the server program, each run as its own
+     * process (see setProcessName) on a virtual thread: minServers at once, up to maxServers
+     * as sends queue, one send at a time each. The program should OPEN $RECEIVE and read it
+     * waited. Returns 0, or -1 if a class of that name is already running.
+     */
+    public static int startServerClass(String className, Runnable serverProgram, int minServers, int maxServers) {
+        return startServerClass(className, serverProgram, minServers, maxServers, 1,
+                                Long.getLong("tal2j.serverClass.targetLatencyMillis", 50),
+                                Long.getLong("tal2j.serverClass.idleTimeoutMillis", 10_000));
+    }
+
+    /**
+     * Starts a server class whose instances each work on up to maxLinks sends at once (OPEN
+     * $RECEIVE with that receive depth). An instance is added while sends queue for a link
+     * with the mean response time above targetLatencyMillis, or whenever sends are waiting,
+     * and one idle for idleTimeoutMillis is stopped while more than minServers run.
+     */
+    public static int startServerClass(String className, Runnable serverProgram, int minServers, int maxServers,
+                                       int maxLinks, long targetLatencyMillis, long idleTimeoutMillis) {
+        ServerClass serverClass = ServerClass.start(className, name -> runServerProcess(name, serverProgram),
+                                                    minServers, maxServers, maxLinks, targetLatencyMillis, idleTimeoutMillis);
+        if (serverClass == null) {
+            logger.error("Server class {} is already running", className);
+            return -1;
+        }
+        return 0;
+    }
+
+    // One server-class instance: runs the program as the named process, whose $RECEIVE is closed when it ends or is stopped
+    private static void runServerProcess(String name, Runnable serverProgram) {
+        GuardianProcess.runAs(name, serverProgram);
+    }
+
+    /**
+     * Simulates SERVERCLASS_SEND_: sends the request to the named server class, whose link
+     * manager passes it to a free instance (queueing it while none is), and reads the reply
+     * into the buffer. Returns 0, the server's REPLY error, 14 for no such server class, or
+     * 201 if the class stopped or the instance ended before replying.
+     */
+    public static int serverClassSend(String className, byte[] buffer, int writeCount, int readMax, IntWrapper bytesReadWrapper) {
+        bytesReadWrapper.value = 0;
+        ServerClass serverClass = ServerClass.named(className);
+        if (serverClass == null) {
+            logger.error("SERVERCLASS_SEND_ error {}: no server class {}", ServerClass.NO_SUCH_CLASS, className);
+            return ServerClass.NO_SUCH_CLASS;
+        }
+        byte[] request = Arrays.copyOf(buffer, Math.min(writeCount, buffer.length));
+        ReceiveQueue.Message message = serverClass.send(request, readMax, myProcessName());
+        if (message.reply != null) {
+            int count = Math.min(Math.min(message.reply.length, readMax), buffer.length);
+            System.arraycopy(message.reply, 0, buffer, 0, count);
+            bytesReadWrapper.value = count;
+        }
+        if (message.replyError != 0) {
+            logger.warn("SERVERCLASS_SEND_ to {} completed with error {}", className, message.replyError);
+        }
+        return message.replyError;
+    }
+
+    /** Throughput, link queueing and response times of a server class, or null if it is not running. */
+    public static String serverClassStats(String className) {
+        ServerClass serverClass = ServerClass.named(className);
+        return serverClass == null ? null : serverClass.stats();
+    }
+
+    /** Stops a server class and its instances; sends still queued fail with 201. Returns 0, or -1 if it is not running. */
+    public static int stopServerClass(String className) {
+        ServerClass serverClass = ServerClass.named(className);
+        if (serverClass == null) return -1;
+        serverClass.stop();
+        return 0;
+    }
+
     /**
      * Simulates WRITE.
      */
     public static int write(int fileNum, byte[] buffer, int writeCount) {
+        return write(fileNum, buffer, writeCount, 0L);
+    }
+
+    /**
+     * Simulates WRITE with a nowait tag. On a nowait file the write is queued and
+     * completed by AWAITIO; the buffer must not be changed until then.
+     */
+    public static int write(int fileNum, byte[] buffer, int writeCount, long tag) {
         logger.debug("WRITE called for fileNum {}, writeCount={}", fileNum, writeCount);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (file == null || !file.isOpen) {
             logger.error("WRITE error: fileNum {} is not open.", fileNum);
              if (file != null) file.lastError = 10;
@@ -288,6 +942,13 @@ class GuardianInterface {
              return -1;
          }
 
+        if (file.nowaitDepth > 0) {
+            return startNowait(fileNum, file, tag, "WRITE", f -> {
+                f.writeData(buffer, writeCount);
+                return f.lastError == 0 ? Math.min(writeCount, buffer.length) : -1;
+            });
+        }
+
         file.writeData(buffer, writeCount);
         if (file.lastError != 0) {
              logger.error("WRITE error occurred for fileNum {}. Error code: {}", fileNum, file.lastError);
@@ -303,11 +964,11 @@ class GuardianInterface {
      */
     public static void fileInfo(int fileNum, IntWrapper errorWrapper) {
         logger.debug("FILEINFO called for fileNum {}", fileNum);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (fileNum == -1) {
-            // Error occurred during OPEN before a valid fileNum was assigned
-            errorWrapper.value = 4; // Simulate file system error (e.g., Not Found/Permission from OPEN)
-            logger.warn("FILEINFO returning error 4 for invalid fileNum {}", fileNum);
+            // Error occurred during OPEN before a valid fileNum was assigned, or in AWAITIO on any file
+            errorWrapper.value = context().noFileLastError; // E.g. 4 (Not Found/Permission from OPEN) or 40 (AWAITIO timeout)
+            logger.warn("FILEINFO returning error {} for invalid fileNum {}", context().noFileLastError, fileNum);
         } else if (file != null && file.isOpen) {
             errorWrapper.value = file.lastError;
             logger.debug("FILEINFO returning last error {} for fileNum {}", file.lastError, fileNum);
@@ -318,12 +979,197 @@ class GuardianInterface {
         }
     }
 
-    // Stubs for other system calls mentioned but not used in this specific logic
+    // Queue a nowait operation behind any earlier ones on the same file
+    private static int startNowait(int fileNum, MockFile file, long tag, String opName, NowaitOp op) {
+        Context ctx = context(); // The completion goes to the issuing process, whichever thread finishes the operation
+        ctx.ioLock.lock();
+        try {
+            if (file.outstanding >= file.nowaitDepth) {
+                logger.error("{} error: nowait depth {} exhausted for fileNum {}.", opName, file.nowaitDepth, fileNum);
+                file.lastError = 28; // Too many outstanding nowait operations
+                return -1;
+            }
+            file.outstanding++;
+            ctx.totalOutstanding++;
+            file.ioChain = file.ioChain.thenRunAsync(() -> {
+                file.ioThread = Thread.currentThread(); // Before checking cancelled, so CLOSE sees one or the other
+                if (file.cancelled) {
+                    file.ioThread = null;
+                    return;
+                }
+                int count;
+                int error;
+                try {
+                    count = op.run(file);
+                    error = file.lastError;
+                } catch (RuntimeException e) {
+                    logger.error("Nowait {} failed for fileNum {}", opName, fileNum, e);
+                    count = -1;
+                    error = 1; // Generic I/O error
+                } finally {
+                    file.ioThread = null;
+                }
+                postCompletion(ctx, file, new IoCompletion(fileNum, tag, Math.max(count, 0), error));
+            }, ioExecutor);
+        } finally {
+            ctx.ioLock.unlock();
+        }
+        logger.debug("{} queued as nowait for fileNum {}, tag={}", opName, fileNum, tag);
+        return 0; // Success - completion is reported by AWAITIO
+    }
+
+    private static void postCompletion(Context ctx, MockFile file, IoCompletion done) {
+        ctx.ioLock.lock();
+        try {
+            if (file.cancelled) return; // Closed meanwhile: the file number may already belong to another open
+            ctx.completions.addLast(done);
+            ctx.ioCompleted.signalAll();
+        } finally {
+            ctx.ioLock.unlock();
+        }
+    }
+
+    /**
+     * Cancels a closing file's outstanding operations and discards completions nobody will AWAITIO.
+     * Queued operations never run; a WRITEREAD waiting on a server is cancelled, and any other
+     * operation under way is given up to CLOSE_WAIT_MILLIS to finish before it is abandoned.
+     */
+    private static void cancelNowait(int fileNum, MockFile file) {
+        Context ctx = context();
+        ctx.ioLock.lock();
+        try {
+            file.cancelled = true;
+        } finally {
+            ctx.ioLock.unlock();
+        }
+        Thread running = file.ioThread;
+        if (running != null && file.server != null) {
+            running.interrupt(); // ReceiveQueue.send gives up the request
+        }
+        try {
+            file.ioChain.get(CLOSE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("CLOSE abandoned a nowait operation still running on fileNum {} ('{}')", fileNum, file.fileName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Nowait operation failed on fileNum {}", fileNum, e.getCause());
+        }
+        ctx.ioLock.lock();
+        try {
+            for (Iterator<IoCompletion> it = ctx.completions.iterator(); it.hasNext(); ) {
+                if (it.next().fileNum == fileNum) {
+                    it.remove();
+                }
+            }
+            ctx.totalOutstanding -= file.outstanding;
+            if (file.outstanding > 0) {
+                logger.warn("CLOSE discarded {} uncollected nowait completions for fileNum {}", file.outstanding, fileNum);
+            }
+            file.outstanding = 0;
+        } finally {
+            ctx.ioLock.unlock();
+        }
+    }
+
+    /**
+     * Simulates AWAITIO without completion details - waits indefinitely on the given file.
+     */
     public static void awaitio(int fileNum) {
-        logger.debug("STUB: AWAITIO called for fileNum {}", fileNum);
-        // No action needed in this simulation
+        awaitio(fileNum, new IntWrapper(), new LongWrapper(), -1);
     }
 
+    /**
+     * Simulates AWAITIO - completes a nowait operation.
+     * fileNum = -1 waits on any file. timeLimit is in 0.01 second units: -1 waits
+     * indefinitely, 0 only checks for an operation that has already finished.
+     * Returns the file number whose operation completed, or -1 with the error available through
+     * FILEINFO (the operation's own error, 40 = timed out, 26 = no outstanding operation).
+     */
+    public static int awaitio(int fileNum, IntWrapper countWrapper, LongWrapper tagWrapper, long timeLimit) {
+        logger.debug("AWAITIO called for fileNum {}, timeLimit={}", fileNum, timeLimit);
+        countWrapper.value = 0;
+        Context ctx = context();
+        MockFile waitFile = null;
+        if (fileNum != -1) {
+            waitFile = ctx.openFiles.get(fileNum);
+            if (waitFile == null || !waitFile.isOpen) {
+                logger.error("AWAITIO error: fileNum {} is not open.", fileNum);
+                return -1;
+            }
+        }
+
+        long deadline = System.nanoTime() + timeLimit * 10_000_000L; // 0.01 s units
+        IoCompletion done = null;
+        ctx.ioLock.lock();
+        try {
+            while (done == null) {
+                done = takeCompletion(ctx, fileNum);
+                if (done != null) {
+                    break;
+                }
+                int outstanding = waitFile != null ? waitFile.outstanding : ctx.totalOutstanding;
+                if (outstanding == 0) {
+                    return awaitioError(fileNum, waitFile, 26, "no outstanding operation"); // No outstanding I/O
+                }
+                if (timeLimit < 0) {
+                    ctx.ioCompleted.await();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return awaitioError(fileNum, waitFile, 40, "timed out"); // Operation timed out
+                    }
+                    ctx.ioCompleted.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return awaitioError(fileNum, waitFile, 40, "interrupted");
+        } finally {
+            ctx.ioLock.unlock();
+        }
+
+        MockFile file = ctx.openFiles.get(done.fileNum);
+        if (file != null) {
+            file.lastError = done.error;
+        }
+        countWrapper.value = done.count;
+        tagWrapper.value = done.tag;
+        logger.debug("AWAITIO completed fileNum {}, tag={}, count={}, error={}", done.fileNum, done.tag, done.count, done.error);
+        if (done.error != 0) {
+            if (fileNum == -1) ctx.noFileLastError = done.error;
+            return -1;
+        }
+        return done.fileNum;
+    }
+
+    // Remove the oldest completion for the file (or any file when fileNum is -1); caller holds the process's ioLock
+    private static IoCompletion takeCompletion(Context ctx, int fileNum) {
+        for (Iterator<IoCompletion> it = ctx.completions.iterator(); it.hasNext(); ) {
+            IoCompletion done = it.next();
+            if (fileNum == -1 || done.fileNum == fileNum) {
+                it.remove();
+                MockFile file = ctx.openFiles.get(done.fileNum);
+                if (file != null) file.outstanding--;
+                ctx.totalOutstanding--;
+                return done;
+            }
+        }
+        return null;
+    }
+
+    private static int awaitioError(int fileNum, MockFile waitFile, int error, String reason) {
+        logger.warn("AWAITIO on fileNum {} returning error {} ({})", fileNum, error, reason);
+        if (waitFile != null) {
+            waitFile.lastError = error;
+        } else {
+            context().noFileLastError = error;
+        }
+        return -1;
+    }
+
+    // Stubs for other system calls mentioned but not used in this specific logic
+
     public static void position(int fileNum /* other params */) {
         logger.debug("STUB: POSITION called for fileNum {}", fileNum);
         // No action needed in this simulation
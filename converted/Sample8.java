@@ -1,13 +1,19 @@
 package converted;
 
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -86,27 +92,42 @@ class GuardianInterface {
     public static final int ABEND_PROCESS = 3;
 
     // --- Mock File System and Process State ---
-    private static Map<Integer, MockFile> openFiles = new HashMap<>();
-    private static int nextFileNum = 100;
-    private static boolean transactionActive = false;
+    // Each process hosted by GuardianProcess has its own open files; code outside one shares a context
+    private static final class Context {
+        final FileNumberTable<MockFile> openFiles = new FileNumberTable<>(100); // Start assigning file numbers from 100
+    }
+    private static final TransactionManager tmf = new TransactionManager(new LockManager(), openCoordinator());
+    // Files added with addSharedMockFile, by name: every process opening one of these names gets the same records
+    private static final Map<String, EnscribeFile> sharedFiles = new ConcurrentHashMap<>();
 
     // Mock file state class
     private static class MockFile {
         String fileName;
-        ByteBuffer data;
+        EnscribeFile records; // Record storage (single or partitioned), shared by every open of the file
         boolean isOpen = true;
         int lastError = 0;
         boolean eof = false;
-        boolean locked = false;
-        int currentPosition = 0; // For KEYPOSITION simulation
-
-        MockFile(String name, ByteBuffer data) {
+        int keySpecifier = 0; // Access path chosen by KEYPOSITION: 0 = primary key, else an alternate key
+        byte[] positionKey; // Set by KEYPOSITION: the next READ starts at the first key >= this
+        byte[] currentKey; // Primary key of the record last read (target of LOCKREC/WRITEUPDATEUNLOCK), null after KEYPOSITION
+        byte[] currentIndexKey; // Position of that record in the access path
+        int currentPosition = 0; // Records read since KEYPOSITION
+        long lockTimeoutMillis = defaultLockTimeout(); // Longest wait of LOCKREC and transactional updates for a locked record
+        final FileMetrics metrics; // Shared by every open of the file name
+
+        MockFile(String name, EnscribeFile records) {
             this.fileName = name;
-            this.data = data != null ? data : ByteBuffer.allocate(0); // Handle null data
-            this.eof = !this.data.hasRemaining();
+            this.records = records;
+            this.metrics = FileMetrics.forFile(name);
+            this.positionKey = new byte[records.effectiveKeyLength()]; // Lowest key: start of file
+            this.eof = records.recordCount() == 0;
         }
     }
 
+    private static Context context() {
+        return GuardianProcess.local(Context.class, Context::new);
+    }
+
     // --- Stubs for Guardian Procedures ---
 
     /** Simulates PROCESS^PARAMETERS */
@@ -175,52 +196,180 @@ class GuardianInterface {
         }
     }
 
-    /** Simulates BEGINTRANSACTION */
+    /** Simulates BEGINTRANSACTION - starts a transaction that becomes current for the caller */
     public static int beginTransaction(LongWrapper transactionTagWrapper) {
-        logger.debug("STUB: BEGINTRANSACTION called.");
-        if (transactionActive) {
-            logger.warn("STUB: BEGINTRANSACTION failed - transaction already active.");
-            return -1; // Simulate error - already in transaction
-        }
-        transactionActive = true;
-        transactionTagWrapper.value = System.currentTimeMillis(); // Assign a dummy tag
-        logger.info("STUB: Transaction started with tag {}", transactionTagWrapper.value);
+        logger.debug("BEGINTRANSACTION called.");
+        Transaction tx = tmf.begin();
+        if (tx == null) {
+            logger.warn("BEGINTRANSACTION failed - transaction {} already current.", tmf.current().id);
+            return -1; // Already in transaction
+        }
+        transactionTagWrapper.value = tx.id;
+        logger.info("Transaction started with tag {}", tx.id);
         return 0; // Success
     }
 
-    /** Simulates ENDTRANSACTION */
+    // Audit trails (one per volume) under the directory named by tal2j.audit; transactions are not audited if it is unset or unusable
+    private static TransactionCoordinator openCoordinator() {
+        String dir = System.getProperty("tal2j.audit");
+        if (dir == null) return null;
+        try {
+            return new TransactionCoordinator(Path.of(dir), Long.getLong("tal2j.audit.segmentBytes", 64L << 20));
+        } catch (IOException e) {
+            logger.error("Cannot open audit trail in {}; transactions will not be audited", dir, e);
+            return null;
+        }
+    }
+
+    /** Simulates ENDTRANSACTION - commits the caller's transaction once durable and releases its locks */
     public static int endTransaction() {
-        logger.debug("STUB: ENDTRANSACTION called.");
-        if (!transactionActive) {
-            logger.warn("STUB: ENDTRANSACTION failed - no active transaction.");
-            return -1; // Simulate error - not in transaction
+        logger.debug("ENDTRANSACTION called.");
+        Transaction tx = tmf.current();
+        int error = tmf.commit();
+        if (error == TransactionManager.TRANSACTION_ABORTED) {
+            logger.warn("ENDTRANSACTION failed - transaction {} was aborted (audit failure or deadlock victim).", tx.id);
+            return -1;
+        }
+        if (error != TransactionManager.OK) {
+            logger.warn("ENDTRANSACTION failed - no current transaction.");
+            return -1; // Not in transaction
         }
-        transactionActive = false;
-        logger.info("STUB: Transaction ended.");
+        logger.info("Transaction {} committed.", tx.id);
         return 0; // Success
     }
 
-    /** Simulates KEYPOSITION */
+    /** Simulates ABORTTRANSACTION - undoes the caller's changes and releases its locks */
+    public static int abortTransaction() {
+        logger.debug("ABORTTRANSACTION called.");
+        Transaction tx = tmf.current();
+        if (tmf.abort() != TransactionManager.OK) {
+            logger.warn("ABORTTRANSACTION failed - no current transaction.");
+            return -1; // Not in transaction
+        }
+        logger.info("Transaction {} aborted.", tx.id);
+        return 0; // Success
+    }
+
+    /** True if the caller has a current transaction */
+    static boolean transactionActive() {
+        return tmf.current() != null;
+    }
+
+    /** Lock-wait timeout of an open, in milliseconds: LockManager.WAIT_FOREVER (the default) or NO_WAIT (fail with 73 at once) */
+    public static int setLockTimeout(int fileNum, long timeoutMillis) {
+        MockFile file = context().openFiles.get(fileNum);
+        if (file == null || !file.isOpen) return -1;
+        file.lockTimeoutMillis = timeoutMillis;
+        return 0;
+    }
+
+    /** Lock-wait timeout of the caller's transaction; waits end at the shorter of it and the open's */
+    public static int setTransactionLockTimeout(long timeoutMillis) {
+        Transaction tx = tmf.current();
+        if (tx == null) return -1;
+        tx.lockTimeoutMillis = timeoutMillis;
+        return 0;
+    }
+
+    /** Lock waits, timeouts and deadlocks so far */
+    public static String lockStats() {
+        return tmf.locks().stats();
+    }
+
+    // Default for new opens: tal2j.lockTimeoutMillis, else wait until the record is unlocked
+    private static long defaultLockTimeout() {
+        return Long.getLong("tal2j.lockTimeoutMillis", LockManager.WAIT_FOREVER);
+    }
+
+    // Record locks belong to the caller's transaction, or to the open outside a transaction
+    private static Object lockOwner(MockFile file) {
+        Transaction tx = tmf.current();
+        return tx != null ? tx : file;
+    }
+
+    /** Simulates KEYPOSITION - positions to the first record whose primary key is >= the key value */
     public static int keyposition(int fileNum, ByteBuffer keyBuffer, ByteBuffer dataBuffer) {
-        // Simplified: Just reset the simulated position to 0
-        logger.debug("STUB: KEYPOSITION called for fileNum {}. Resetting position to 0.", fileNum);
-        MockFile file = openFiles.get(fileNum);
+        return keyposition(fileNum, keyBuffer, 0, -1);
+    }
+
+    /**
+     * Simulates KEYPOSITION with a key specifier: 0 positions by primary key, any other value
+     * by that alternate key, and subsequent READs follow the chosen key's order.
+     * compareLength limits how many leading key bytes are used (-1 = the whole key).
+     */
+    public static int keyposition(int fileNum, ByteBuffer keyBuffer, int keySpecifier, int compareLength) {
+        long start = System.nanoTime();
+        return recordIo(fileNum, FileMetrics.Op.KEYPOSITION, start, 0,
+                        doKeyposition(fileNum, keyBuffer, keySpecifier, compareLength));
+    }
+
+    private static int doKeyposition(int fileNum, ByteBuffer keyBuffer, int keySpecifier, int compareLength) {
+        MockFile file = context().openFiles.get(fileNum);
         if (file == null || !file.isOpen) {
             logger.error("STUB: KEYPOSITION error - file {} not open.", fileNum);
             if (file != null) file.lastError = 10;
             return -1;
         }
+        int keyLength = keySpecifier == 0 ? file.records.effectiveKeyLength() : file.records.alternateKeyLength(keySpecifier);
+        if (keyLength < 0) {
+            logger.error("STUB: KEYPOSITION error - key specifier {} not defined for fileNum {}.", keySpecifier, fileNum);
+            file.lastError = 46; // Invalid key specifier
+            return -1;
+        }
+        // Key value: the leading key bytes of the key buffer (a shorter buffer or compare length is zero-extended)
+        byte[] key = new byte[keyLength];
+        int used = compareLength < 0 ? keyLength : Math.min(compareLength, keyLength);
+        keyBuffer.get(0, key, 0, Math.min(used, keyBuffer.capacity()));
+        logger.debug("STUB: KEYPOSITION called for fileNum {}, keySpecifier={}, key={}", fileNum, keySpecifier, Arrays.toString(key));
+        file.keySpecifier = keySpecifier;
+        file.positionKey = key;
+        file.currentKey = null;
+        file.currentIndexKey = null;
         file.currentPosition = 0;
-        file.data.position(0); // Reset underlying buffer position too
-        file.eof = !file.data.hasRemaining();
+        file.eof = !anyAtPosition(file);
         file.lastError = 0;
         return 0; // Success
     }
 
+    // Count a finished call in the file's metrics; returns its result
+    private static int recordIo(int fileNum, FileMetrics.Op op, long startNanos, int byteCount, int result) {
+        MockFile file = context().openFiles.get(fileNum);
+        if (file != null) {
+            file.metrics.record(op, System.nanoTime() - startNanos, result == 0 ? byteCount : 0,
+                                result == 0 ? 0 : file.lastError);
+        }
+        return result;
+    }
+
+    // First record at the KEYPOSITION key in the current access path
+    private static KeyedFile.Entry firstAtPosition(MockFile file) {
+        return file.keySpecifier == 0
+                ? file.records.ceiling(file.positionKey)
+                : file.records.ceilingAlternate(file.keySpecifier, file.positionKey);
+    }
+
+    // The caller's transaction if its reads of the file come from its snapshot. Only the
+    // primary-key path is versioned; alternate-key paths read the current records.
+    private static Transaction snapshotReader(MockFile file) {
+        return file.keySpecifier == 0 ? tmf.current() : null;
+    }
+
+    // Whether READ would find a record at the KEYPOSITION key
+    private static boolean anyAtPosition(MockFile file) {
+        Transaction tx = snapshotReader(file);
+        if (tx == null) return firstAtPosition(file) != null;
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            return tmf.versions().next(tx, file.records, file.positionKey, true) != null;
+        } finally {
+            guard.exit();
+        }
+    }
+
     /** Simulates FILEINFO */
     public static void fileInfo(int fileNum, IntWrapper errorWrapper) {
         logger.debug("STUB: FILEINFO called for fileNum {}", fileNum);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (file != null && file.isOpen) {
             errorWrapper.value = file.lastError;
             logger.debug("STUB: FILEINFO returning last error {} for fileNum {}", file.lastError, fileNum);
@@ -233,8 +382,20 @@ class GuardianInterface {
 
     /** Simulates READ */
     public static int read(int fileNum, ByteBuffer buffer, int readMax, IntWrapper bytesReadWrapper) {
+        long start = System.nanoTime();
+        int result;
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter(); // Covers lookup and copy-out
+        try {
+            result = doRead(fileNum, buffer, readMax, bytesReadWrapper);
+        } finally {
+            guard.exit();
+        }
+        return recordIo(fileNum, FileMetrics.Op.READ, start, bytesReadWrapper.value, result);
+    }
+
+    private static int doRead(int fileNum, ByteBuffer buffer, int readMax, IntWrapper bytesReadWrapper) {
         logger.debug("STUB: READ called for fileNum {}, readMax={}", fileNum, readMax);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (file == null || !file.isOpen) {
             logger.error("STUB: READ error - file {} not open.", fileNum);
             if (file != null) file.lastError = 10;
@@ -248,27 +409,47 @@ class GuardianInterface {
             return -1; // Indicate EOF
         }
 
-        // Simulate reading from file.data
-        buffer.clear(); // Prepare buffer for writing
-        int bytesToRead = Math.min(readMax, file.data.remaining());
-        bytesToRead = Math.min(bytesToRead, buffer.capacity());
-
-        if (bytesToRead > 0) {
-            byte[] temp = new byte[bytesToRead];
-            file.data.get(temp);
-            buffer.put(temp);
-            buffer.flip(); // Prepare for reading by caller
-            bytesReadWrapper.value = bytesToRead;
-            file.currentPosition += bytesToRead;
-            if (!file.data.hasRemaining()) {
-                file.eof = true;
-                logger.debug("STUB: READ reached EOF on fileNum {}.", fileNum);
+        // Next record in the order of the positioned key; deleted records are skipped.
+        // Inside a transaction, primary-key reads see the records as of its snapshot.
+        Transaction tx = snapshotReader(file);
+        byte[] nextKey = null;
+        byte[] nextIndexKey = null;
+        ByteBuffer nextRecord = null;
+        if (tx != null) {
+            VersionStore.Visible visible = file.currentIndexKey == null
+                    ? tmf.versions().next(tx, file.records, file.positionKey, true)
+                    : tmf.versions().next(tx, file.records, file.currentIndexKey, false);
+            if (visible != null) {
+                nextKey = nextIndexKey = visible.key();
+                nextRecord = visible.record();
             }
+        } else {
+            KeyedFile.Entry next;
+            if (file.currentIndexKey == null) {
+                next = firstAtPosition(file);
+            } else if (file.keySpecifier == 0) {
+                next = file.records.higher(file.currentIndexKey);
+            } else {
+                next = file.records.higherAlternate(file.keySpecifier, file.currentIndexKey);
+            }
+            if (next != null) {
+                nextKey = next.key;
+                nextIndexKey = next.indexKey;
+                nextRecord = next.slot.record();
+            }
+        }
+
+        if (nextRecord != null) {
+            int bytesToRead = transferToCaller(nextRecord, buffer, readMax);
+            file.currentKey = nextKey;
+            file.currentIndexKey = nextIndexKey;
+            bytesReadWrapper.value = bytesToRead;
+            file.currentPosition++;
             file.lastError = 0; // Success
             logger.debug("STUB: READ successful for fileNum {}, read {} bytes.", fileNum, bytesToRead);
             return 0;
         } else {
-            // No bytes left, should have been caught by file.eof check above, but handle defensively
+            // No records left, should have been caught by file.eof check above, but handle defensively
             file.eof = true;
             file.lastError = 11; // EOF
             bytesReadWrapper.value = 0;
@@ -277,21 +458,111 @@ class GuardianInterface {
         }
     }
 
+    /** Simulates READUPDATE - reads at the current position without advancing, for a following update */
+    public static int readUpdate(int fileNum, ByteBuffer buffer, int readMax, IntWrapper bytesReadWrapper) {
+        long start = System.nanoTime();
+        int result;
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter(); // Covers lookup and copy-out
+        try {
+            result = doReadUpdate(fileNum, buffer, readMax, bytesReadWrapper);
+        } finally {
+            guard.exit();
+        }
+        return recordIo(fileNum, FileMetrics.Op.READUPDATE, start, bytesReadWrapper.value, result);
+    }
+
+    private static int doReadUpdate(int fileNum, ByteBuffer buffer, int readMax, IntWrapper bytesReadWrapper) {
+        logger.debug("STUB: READUPDATE called for fileNum {}, readMax={}", fileNum, readMax);
+        MockFile file = context().openFiles.get(fileNum);
+        if (file == null || !file.isOpen) {
+            logger.error("STUB: READUPDATE error - file {} not open.", fileNum);
+            if (file != null) file.lastError = 10;
+            bytesReadWrapper.value = 0;
+            return -1;
+        }
+
+        // The record last read, or the first one at the KEYPOSITION key (in the snapshot inside a transaction)
+        Transaction tx = snapshotReader(file);
+        byte[] currentKey = null;
+        byte[] currentIndexKey = null;
+        ByteBuffer currentRecord = null;
+        if (tx != null) {
+            VersionStore.Visible visible = file.currentKey != null
+                    ? tmf.versions().get(tx, file.records, file.currentKey)
+                    : tmf.versions().next(tx, file.records, file.positionKey, true);
+            if (visible != null) {
+                currentKey = currentIndexKey = visible.key();
+                currentRecord = visible.record();
+            }
+        } else {
+            KeyedFile.Entry current = file.currentKey != null
+                    ? file.records.get(file.currentKey)
+                    : firstAtPosition(file);
+            if (current != null) {
+                currentKey = current.key;
+                currentIndexKey = current.indexKey;
+                currentRecord = current.slot.record();
+            }
+        }
+        if (currentRecord == null) {
+            file.lastError = 11; // EOF - no record at the current position
+            bytesReadWrapper.value = 0;
+            logger.warn("STUB: READUPDATE found no record at current position for fileNum {}.", fileNum);
+            return -1;
+        }
+        int bytesToRead = transferToCaller(currentRecord, buffer, readMax);
+        if (file.currentKey == null) {
+            file.currentKey = currentKey;
+            file.currentIndexKey = currentIndexKey;
+        }
+        bytesReadWrapper.value = bytesToRead;
+        file.lastError = 0;
+        logger.debug("STUB: READUPDATE successful for fileNum {}, read {} bytes.", fileNum, bytesToRead);
+        return 0;
+    }
+
+    // Copy a stored record directly into the caller's buffer (no intermediate array).
+    // Leaves the buffer flipped for the caller; returns the count copied.
+    private static int transferToCaller(ByteBuffer record, ByteBuffer buffer, int readMax) {
+        buffer.clear(); // Prepare buffer for writing
+        int count = Math.min(readMax, record.remaining());
+        count = Math.min(count, buffer.capacity());
+        if (count > 0) {
+            buffer.put(record.limit(count));
+        }
+        buffer.flip(); // Prepare for reading by caller
+        return count;
+    }
+
     /** Simulates LOCKREC */
     public static int lockrec(int fileNum) {
+        long start = System.nanoTime();
+        return recordIo(fileNum, FileMetrics.Op.LOCKREC, start, 0, doLockrec(fileNum));
+    }
+
+    private static int doLockrec(int fileNum) {
         logger.debug("STUB: LOCKREC called for fileNum {}", fileNum);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (file == null || !file.isOpen) {
             logger.error("STUB: LOCKREC error - file {} not open.", fileNum);
             if (file != null) file.lastError = 10;
             return -1;
         }
-        if (file.locked) {
-             logger.warn("STUB: LOCKREC warning - file {} already locked.", fileNum);
-             file.lastError = 16; // Record locked? Use plausible error
+        if (file.currentKey == null) {
+             logger.error("STUB: LOCKREC error - no current record for fileNum {}.", fileNum);
+             file.lastError = 11; // No current record
+             return -1;
+        }
+        Transaction tx = tmf.current();
+        int error = tx != null
+                ? tmf.lock(tx, file.records, file.currentKey, file.lockTimeoutMillis) // Held until the transaction ends
+                : tmf.locks().lock(file, new LockManager.LockKey(file.records, file.currentKey), file.lockTimeoutMillis);
+        if (error != LockManager.OK) {
+             logger.warn("STUB: LOCKREC error {} - record still locked by another user, deadlock, or changed since the snapshot for fileNum {}.",
+                         error, fileNum);
+             file.lastError = error;
              return -1;
         }
-        file.locked = true;
         file.lastError = 0;
         logger.debug("STUB: LOCKREC successful for fileNum {}.", fileNum);
         return 0; // Success
@@ -299,45 +570,301 @@ class GuardianInterface {
 
     /** Simulates WRITEUPDATEUNLOCK */
     public static int writeUpdateUnlock(int fileNum, ByteBuffer buffer, int writeCount) {
+        long start = System.nanoTime();
+        return recordIo(fileNum, FileMetrics.Op.WRITEUPDATEUNLOCK, start, Math.min(writeCount, buffer.limit()),
+                        doWriteUpdateUnlock(fileNum, buffer, writeCount));
+    }
+
+    private static int doWriteUpdateUnlock(int fileNum, ByteBuffer buffer, int writeCount) {
         logger.debug("STUB: WRITEUPDATEUNLOCK called for fileNum {}, writeCount={}", fileNum, writeCount);
-        MockFile file = openFiles.get(fileNum);
+        MockFile file = context().openFiles.get(fileNum);
         if (file == null || !file.isOpen) {
             logger.error("STUB: WRITEUPDATEUNLOCK error - file {} not open.", fileNum);
             if (file != null) file.lastError = 10;
             return -1;
         }
-        if (!file.locked) {
+        Object owner = lockOwner(file);
+        LockManager.LockKey record = file.currentKey == null ? null : new LockManager.LockKey(file.records, file.currentKey);
+        if (record == null || !tmf.locks().holds(owner, record)) {
              logger.error("STUB: WRITEUPDATEUNLOCK error - file {} not locked.", fileNum);
              file.lastError = 17; // Record not locked? Use plausible error
              return -1;
         }
+        if (updateCurrentRecord(fileNum, file, buffer, writeCount, "WRITEUPDATEUNLOCK") != 0) {
+             return -1;
+        }
+
+        // Unlock; inside a transaction the lock is kept until ENDTRANSACTION or ABORTTRANSACTION
+        if (owner == file) {
+            tmf.locks().unlock(file, record);
+        }
+        file.lastError = 0;
+        logger.debug("STUB: WRITEUPDATEUNLOCK successful for fileNum {}.", fileNum);
+        return 0; // Success
+    }
+
+    /** Simulates WRITEUPDATE - replaces (writeCount > 0) or deletes (writeCount = 0) the record last read */
+    public static int writeUpdate(int fileNum, ByteBuffer buffer, int writeCount) {
+        long start = System.nanoTime();
+        return recordIo(fileNum, FileMetrics.Op.WRITEUPDATE, start, Math.min(writeCount, buffer.limit()),
+                        doWriteUpdate(fileNum, buffer, writeCount));
+    }
+
+    private static int doWriteUpdate(int fileNum, ByteBuffer buffer, int writeCount) {
+        logger.debug("STUB: WRITEUPDATE called for fileNum {}, writeCount={}", fileNum, writeCount);
+        MockFile file = context().openFiles.get(fileNum);
+        if (file == null || !file.isOpen) {
+            logger.error("STUB: WRITEUPDATE error - file {} not open.", fileNum);
+            if (file != null) file.lastError = 10;
+            return -1;
+        }
+        if (updateCurrentRecord(fileNum, file, buffer, writeCount, "WRITEUPDATE") != 0) {
+            return -1;
+        }
+        file.lastError = 0;
+        logger.debug("STUB: WRITEUPDATE successful for fileNum {}.", fileNum);
+        return 0; // Success
+    }
 
-        // Simulate the write/update part (here we just log, could modify file.data)
+    // Delete or replace the record last read; alternate-key indexes are maintained by KeyedFile.
+    // Inside a transaction the record is locked until it ends and its before-image is kept for ABORTTRANSACTION;
+    // the before-image also stays visible to snapshot readers until the change commits.
+    private static int updateCurrentRecord(int fileNum, MockFile file, ByteBuffer buffer, int writeCount, String opName) {
+        if (file.currentKey == null) {
+             logger.error("STUB: {} error - no current record for fileNum {}.", opName, fileNum);
+             file.lastError = 11; // No current record
+             return -1;
+        }
+        Transaction tx = tmf.current();
+        int lockError = tx != null
+                ? tmf.lock(tx, file.records, file.currentKey, file.lockTimeoutMillis)
+                : (tmf.locks().lockedByOther(file, new LockManager.LockKey(file.records, file.currentKey))
+                   ? LockManager.RECORD_LOCKED : LockManager.OK);
+        if (lockError != LockManager.OK) {
+             logger.warn("STUB: {} error {} - record locked by another user, deadlock, or changed since the snapshot for fileNum {}.",
+                         opName, lockError, fileNum);
+             file.lastError = lockError;
+             return -1;
+        }
+        VersionStore.Version version = tmf.beforeChange(tx, file.records, file.currentKey, false);
         if (writeCount == 0) {
-             logger.debug("STUB: WRITEUPDATEUNLOCK simulating delete (writeCount=0) for fileNum {}.", fileNum);
-             // In a real sim, remove the record at current position
+             logger.debug("STUB: {} deleting current record (writeCount=0) for fileNum {}.", opName, fileNum);
+             if (!file.records.delete(file.currentKey)) {
+                 tmf.changeFailed(file.records, file.currentKey, version);
+                 file.lastError = 11; // Record no longer exists
+                 return -1;
+             }
         } else {
-             logger.debug("STUB: WRITEUPDATEUNLOCK simulating update with {} bytes for fileNum {}.", writeCount, fileNum);
-             // In a real sim, replace/update the record at current position
+             logger.debug("STUB: {} updating current record with {} bytes for fileNum {}.", opName, writeCount, fileNum);
+             int error = file.records.update(file.currentKey, buffer, Math.min(writeCount, buffer.limit()));
+             if (error != KeyedFile.OK) {
+                 tmf.changeFailed(file.records, file.currentKey, version);
+                 file.lastError = error; // 11 record gone, 46 primary key changed, 10 duplicate alternate key
+                 return -1;
+             }
         }
+        tmf.afterChange(tx, file.records, file.currentKey, version);
+        return 0;
+    }
+
+    /** Simulates WRITE - inserts a new record (by primary key; entry-ordered files append) */
+    public static int write(int fileNum, ByteBuffer buffer, int writeCount) {
+        long start = System.nanoTime();
+        return recordIo(fileNum, FileMetrics.Op.WRITE, start, Math.min(writeCount, buffer.limit()),
+                        doWrite(fileNum, buffer, writeCount));
+    }
 
-        // Unlock
-        file.locked = false;
+    private static int doWrite(int fileNum, ByteBuffer buffer, int writeCount) {
+        logger.debug("STUB: WRITE called for fileNum {}, writeCount={}", fileNum, writeCount);
+        MockFile file = context().openFiles.get(fileNum);
+        if (file == null || !file.isOpen) {
+            logger.error("STUB: WRITE error - file {} not open.", fileNum);
+            if (file != null) file.lastError = 10;
+            return -1;
+        }
+        int length = Math.min(writeCount, buffer.limit());
+        Transaction tx = tmf.current();
+        if (tx != null && tx.state == Transaction.State.ABORTED) {
+            // A deadlock victim stays current until it is ended, but nothing it writes now would be undone
+            logger.warn("STUB: WRITE error - {} was rolled back for fileNum {}.", tx, fileNum);
+            file.lastError = TransactionManager.TRANSACTION_ABORTED;
+            return -1;
+        }
+        // The new record's null version goes on first so snapshots skip it; a file that assigns
+        // keys itself (entry-sequenced) only reveals the key once the record is in
+        byte[] key = file.records.keyOf(buffer, length);
+        VersionStore.Version version = null;
+        if (key != null) {
+            int lockError = tx != null ? tmf.lock(tx, file.records, key, file.lockTimeoutMillis) : LockManager.OK;
+            if (lockError != LockManager.OK) {
+                logger.warn("STUB: WRITE error {} - key locked by another user, deadlock, or changed since the snapshot for fileNum {}.",
+                            lockError, fileNum);
+                file.lastError = lockError;
+                return -1;
+            }
+            version = tmf.beforeChange(tx, file.records, key, true);
+        }
+        byte[] inserted = file.records.insert(buffer, length);
+        if (inserted == null) {
+            if (key != null) tmf.changeFailed(file.records, key, version);
+            logger.error("STUB: WRITE error - duplicate or missing key for fileNum {}.", fileNum);
+            file.lastError = 10; // Record with that primary or unique alternate key already exists
+            return -1;
+        }
+        if (key == null) {
+            key = inserted;
+            // New system key: nobody else should hold its lock yet
+            int lockError = tx != null ? tmf.lock(tx, file.records, key, LockManager.NO_WAIT) : LockManager.OK;
+            if (lockError != LockManager.OK) {
+                file.records.delete(key);
+                logger.warn("STUB: WRITE error {} - cannot lock the new record for fileNum {}.", lockError, fileNum);
+                file.lastError = lockError;
+                return -1;
+            }
+            version = tmf.beforeChange(tx, file.records, key, true);
+        }
+        tmf.afterChange(tx, file.records, key, version); // In a transaction, ABORTTRANSACTION deletes it
         file.lastError = 0;
-        logger.debug("STUB: WRITEUPDATEUNLOCK successful for fileNum {}.", fileNum);
+        logger.debug("STUB: WRITE successful for fileNum {}.", fileNum);
         return 0; // Success
     }
 
-    // Helper to add mock files for testing
-    public static void addMockFile(int fnum, String name, String content) {
-         ByteBuffer buffer = null;
-         if (content != null) {
-              buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1));
+    /**
+     * Restart helper: after the mock files have been added again, rebuilds the audited ones from
+     * the checkpoints and audit trails under tal2j.audit, then checkpoints every recovered volume
+     * so the replayed trail is never needed again. Covers the calling process's open files.
+     * Returns null if transactions are not audited.
+     */
+    public static RecoveryManager.Report recoverAuditedFiles() throws IOException {
+         TransactionCoordinator coordinator = tmf.coordinator();
+         if (coordinator == null) return null;
+         Map<String, EnscribeFile> files = new HashMap<>(); // Recovery's view: each partition by its own name
+         context().openFiles.forEach((file, fnum) -> {
+              if (file.records instanceof PartitionedFile partitioned) {
+                   for (int i = 0; i < partitioned.partitionCount(); i++) {
+                        files.put(partitioned.partition(i).fileName(), partitioned.partition(i));
+                   }
+              } else {
+                   files.put(file.fileName, file.records);
+              }
+         });
+         RecoveryManager.Report report = RecoveryManager.recover(coordinator.root(), files,
+                                                                 Runtime.getRuntime().availableProcessors());
+         tmf.resumeAfter(report.lastTxId());
+         // Register the opened files themselves, as transactions enlist them, not their bare partitions
+         context().openFiles.forEach((file, fnum) -> coordinator.addAuditedFile(file.records));
+         for (String volume : coordinator.volumes()) {
+              tmf.recovery().checkpoint(volume);
          }
-         openFiles.put(fnum, new MockFile(name, buffer));
+         return report;
+    }
+
+    // Helper to add mock files for testing: one record per line, in entry order
+    public static void addMockFile(int fnum, String name, String content) {
+         addMockFile(fnum, name, content, 0, 0);
+    }
+
+    // Helper to add a key-sequenced mock file whose primary key is record bytes [keyOffset, keyOffset + keyLength)
+    public static void addMockFile(int fnum, String name, String content, int keyOffset, int keyLength) {
+         KeyedFile records = new KeyedFile(name, keyOffset, keyLength);
+         loadMockRecords(records, name, content);
+         context().openFiles.put(fnum, new MockFile(name, records));
          logger.info("Added mock file: fnum={}, name='{}', content='{}...'", fnum, name, content == null ? "null" : content.substring(0, Math.min(10, content.length())));
     }
 
+    /**
+     * Opens the entry-ordered mock file name as fnum of the calling process. The first process to
+     * add a name creates the file with content; later ones open that same file and ignore content,
+     * as processes opening one disk file do. The audit trail and recovery know files by name only.
+     */
+    public static void addSharedMockFile(int fnum, String name, String content) {
+         EnscribeFile records = sharedFiles.computeIfAbsent(name, n -> {
+              KeyedFile file = new KeyedFile(n, 0, 0);
+              loadMockRecords(file, n, content);
+              return file;
+         });
+         context().openFiles.put(fnum, new MockFile(name, records));
+         logger.info("Opened shared mock file: fnum={}, name='{}', records={}", fnum, name, records.recordCount());
+    }
+
+    // Inserts the content into records, one record per line
+    private static void loadMockRecords(EnscribeFile records, String name, String content) {
+         if (content != null && !content.isEmpty()) {
+              for (String line : content.split("\n")) {
+                   byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+                   if (records.insert(ByteBuffer.wrap(bytes), bytes.length) == null) {
+                        logger.warn("Skipping mock record with duplicate or missing key in {}: '{}'", name, line);
+                   }
+              }
+         }
+    }
+
+    // Helper to add a mock file partitioned by primary-key range: partition i starts at partitionKeys[i - 1]
+    public static void addPartitionedMockFile(int fnum, String name, String content, int keyOffset, int keyLength,
+                                              String... partitionKeys) {
+         addPartitionedMockFile(fnum, name, content, keyOffset, keyLength, null, partitionKeys);
+    }
+
+    // As above, with partition i on volume partitionVolumes[i - 1] (null: every partition on the file's volume)
+    public static void addPartitionedMockFile(int fnum, String name, String content, int keyOffset, int keyLength,
+                                              String[] partitionVolumes, String... partitionKeys) {
+         byte[][] lowKeys = new byte[partitionKeys.length][];
+         for (int i = 0; i < partitionKeys.length; i++) {
+              lowKeys[i] = partitionKeys[i].getBytes(StandardCharsets.ISO_8859_1);
+         }
+         PartitionedFile records = new PartitionedFile(name, keyOffset, keyLength, partitionVolumes, lowKeys);
+         loadMockRecords(records, name, content);
+         context().openFiles.put(fnum, new MockFile(name, records));
+         logger.info("Added partitioned mock file: fnum={}, name='{}', partitions={}", fnum, name, records.partitionCount());
+    }
+
+    /**
+     * Full-file job helper: applies the mapper to every record in primary-key order and returns
+     * the non-null results in that order. With parallel set, the partitions of a partitioned
+     * file are processed concurrently on the fork-join pool. The mapper must not keep the buffer.
+     * Inside a transaction the scan reads the transaction's snapshot, one record at a time.
+     */
+    public static <R> List<R> scanRecords(int fileNum, Function<ByteBuffer, R> mapper, boolean parallel) {
+         MockFile file = context().openFiles.get(fileNum);
+         if (file == null || !file.isOpen) {
+              logger.error("STUB: scan error - file {} not open.", fileNum);
+              if (file != null) file.lastError = 10;
+              return null;
+         }
+         file.lastError = 0;
+         Transaction tx = tmf.current();
+         if (tx == null) {
+              return file.records.scan(mapper, parallel);
+         }
+         List<R> results = new ArrayList<>();
+         byte[] key = new byte[0]; // Sorts before every key
+         boolean first = true;
+         while (true) {
+              EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+              try {
+                   VersionStore.Visible visible = tmf.versions().next(tx, file.records, key, first);
+                   if (visible == null) return results;
+                   R result = mapper.apply(visible.record());
+                   if (result != null) results.add(result);
+                   key = visible.key();
+                   first = false;
+              } finally {
+                  guard.exit();
+              }
+         }
+    }
+
+    // Helper to declare an alternate key (Enscribe key specifier) on a mock file's records
+    public static boolean addAlternateKey(int fnum, int keySpecifier, int keyOffset, int keyLength, boolean unique) {
+         MockFile file = context().openFiles.get(fnum);
+         if (file == null || !file.records.addAlternateKey(keySpecifier, keyOffset, keyLength, unique)) {
+              logger.error("Cannot add alternate key {} to fnum {}", keySpecifier, fnum);
+              return false;
+         }
+         logger.info("Added alternate key {} (offset={}, length={}, unique={}) to fnum {}", keySpecifier, keyOffset, keyLength, unique, fnum);
+         return true;
+    }
+
      // Custom exception for simulated termination
      public static class SimulatedTerminationException extends RuntimeException {
          public SimulatedTerminationException(String message, int severity, int code) {
@@ -354,30 +881,37 @@ public class Sample8 {
 
     private static final Logger logger = LogManager.getLogger(ConfigSetup.class);
 
-    // --- Global Variables (Simulated as Static Fields) ---
-    // These would typically be initialized elsewhere or passed into the method.
+    // --- Global Variables (Simulated as the Fields of a Global Block) ---
+    // Each process hosted by GuardianProcess gets its own block; run from main, the program has one.
     // Provide default values for simulation.
-    static byte[] paramMsg = "PARAM1=VALUE1;PARAM2=VALUE2".getBytes(StandardCharsets.ISO_8859_1); // Example param message
-    static StringBuffer forTacl = new StringBuffer(100);
-    static int forTaclLength = 0;
-    static int maxOutputIndexGi = 5; // Default value, might be overwritten by params
-    static int[] outputFileItemCntGi = new int[maxOutputIndexGi]; // Initial size
-    static int fileIndexGi = 0; // Used as loop counter
-
-    // Simulate tpsout^file array - needs initialization with file numbers
-    static TpsoutFileRecord[] tpsoutFile = new TpsoutFileRecord[maxOutputIndexGi];
-    static {
-        for (int i = 0; i < tpsoutFile.length; i++) {
-            tpsoutFile[i] = new TpsoutFileRecord();
-            // Assign mock file numbers - these files need to be added to GuardianInterface
-            tpsoutFile[i].fnum = 200 + i;
-            GuardianInterface.addMockFile(200 + i, "TPSOUT" + i + ".DAT",
-                "01DATARECORD1\n00CONTROLREC\n02DATARECORD2\n99CONTROLREC\n03DATARECORD3");
+    static final class Globals {
+        byte[] paramMsg = "PARAM1=VALUE1;PARAM2=VALUE2".getBytes(StandardCharsets.ISO_8859_1); // Example param message
+        StringBuffer forTacl = new StringBuffer(100);
+        int forTaclLength = 0;
+        int maxOutputIndexGi = 5; // Default value, might be overwritten by params
+        int[] outputFileItemCntGi = new int[maxOutputIndexGi]; // Initial size
+        int fileIndexGi = 0; // Used as loop counter
+
+        // Simulate tpsout^file array - needs initialization with file numbers
+        TpsoutFileRecord[] tpsoutFile = new TpsoutFileRecord[maxOutputIndexGi];
+        {
+            for (int i = 0; i < tpsoutFile.length; i++) {
+                tpsoutFile[i] = new TpsoutFileRecord();
+                // Assign mock file numbers - every process opens the same TPSOUTn.DAT files
+                tpsoutFile[i].fnum = 200 + i;
+                GuardianInterface.addSharedMockFile(200 + i, "TPSOUT" + i + ".DAT",
+                    "01DATARECORD1\n00CONTROLREC\n02DATARECORD2\n99CONTROLREC\n03DATARECORD3");
+            }
         }
+
+        // Simulate tps^10 record structure
+        Tps10Record tps10 = new Tps10Record();
     }
 
-    // Simulate tps^10 record structure
-    static Tps10Record tps10 = new Tps10Record();
+    /** The calling process's global block, made (and its files added) on first use. */
+    static Globals globals() {
+        return GuardianProcess.local(Globals.class, Globals::new);
+    }
 
     // Assumed literal/constant for comparison
     static final int MAX_OUTPUT_INDEX_L = 10; // Example limit
@@ -425,6 +959,7 @@ public class Sample8 {
      * Simulates TAL PROC CONFIG^SETUP^P100;
      */
     public static void configSetupP100() {
+        Globals g = globals();
         logger.info("Entering CONFIG^SETUP^P100 simulation...");
 
         // --- Local Variable Declarations ---
@@ -466,7 +1001,7 @@ public class Sample8 {
             len = locRequestStr.length(); // Java string length
 
             // err := process^parameters(param^msg, config^name, len, value^buffer, val_len, 0);
-            err = GuardianInterface.processParameters(paramMsg, configName, len, valueBuffer, valLenWrapper, 0);
+            err = GuardianInterface.processParameters(g.paramMsg, configName, len, valueBuffer, valLenWrapper, 0);
 
             // IF err OR val_len > 26 THEN log^err(...) ELSE begin ... end;
             if (err != 0 || valLenWrapper.value > 26) {
@@ -475,11 +1010,11 @@ public class Sample8 {
             } else {
                 // begin
                 // for^tacl ':=' value^buffer for val_len & "." -> @ptr;
-                assignBytesFor(forTacl, valueBuffer, valLenWrapper.value);
-                forTacl.append(".");
+                assignBytesFor(g.forTacl, valueBuffer, valLenWrapper.value);
+                g.forTacl.append(".");
                 // for^tacl^length := @ptr '-' @for^tacl;
-                forTaclLength = forTacl.length();
-                logger.debug("Processed LOC-REQUEST: forTacl='{}', length={}", forTacl, forTaclLength);
+                g.forTaclLength = g.forTacl.length();
+                logger.debug("Processed LOC-REQUEST: forTacl='{}', length={}", g.forTacl, g.forTaclLength);
                 // end;
             }
 
@@ -490,7 +1025,7 @@ public class Sample8 {
 
             // result^li := PROCESS^PARAMETERS ( param^msg, config^in^ls, , buffer^ls, config^ret^len^li, 1);
             // Pass bufferLiBuffer for output, configRetLenLiWrapper for length
-            resultLi = GuardianInterface.processParameters(paramMsg, configInLs, -1, // length=-1 indicates null terminated source
+            resultLi = GuardianInterface.processParameters(g.paramMsg, configInLs, -1, // length=-1 indicates null terminated source
                                                          bufferLiBuffer.array(), // Pass underlying byte array
                                                          configRetLenLiWrapper,
                                                          1); // integer type
@@ -512,28 +1047,28 @@ public class Sample8 {
             }
 
             // max^output^index^gi := buffer^li;
-            maxOutputIndexGi = bufferValue;
-            logger.info("Set maxOutputIndexGi to {}", maxOutputIndexGi);
+            g.maxOutputIndexGi = bufferValue;
+            logger.info("Set maxOutputIndexGi to {}", g.maxOutputIndexGi);
 
             // Resize global arrays if necessary based on the new maxOutputIndexGi
-            if (outputFileItemCntGi.length < maxOutputIndexGi) {
-                 logger.warn("Resizing outputFileItemCntGi from {} to {}", outputFileItemCntGi.length, maxOutputIndexGi);
-                 outputFileItemCntGi = Arrays.copyOf(outputFileItemCntGi, maxOutputIndexGi);
+            if (g.outputFileItemCntGi.length < g.maxOutputIndexGi) {
+                 logger.warn("Resizing outputFileItemCntGi from {} to {}", g.outputFileItemCntGi.length, g.maxOutputIndexGi);
+                 g.outputFileItemCntGi = Arrays.copyOf(g.outputFileItemCntGi, g.maxOutputIndexGi);
                  // Also resize tpsoutFile array
-                 TpsoutFileRecord[] oldTpsout = tpsoutFile;
-                 tpsoutFile = new TpsoutFileRecord[maxOutputIndexGi];
-                 System.arraycopy(oldTpsout, 0, tpsoutFile, 0, oldTpsout.length);
-                 for(int k=oldTpsout.length; k<maxOutputIndexGi; k++) {
-                     tpsoutFile[k] = new TpsoutFileRecord(); // Initialize new elements
-                     tpsoutFile[k].fnum = 200 + k; // Assign mock fnum
-                     GuardianInterface.addMockFile(200 + k, "TPSOUT" + k + ".DAT", ""); // Add mock file
+                 TpsoutFileRecord[] oldTpsout = g.tpsoutFile;
+                 g.tpsoutFile = new TpsoutFileRecord[g.maxOutputIndexGi];
+                 System.arraycopy(oldTpsout, 0, g.tpsoutFile, 0, oldTpsout.length);
+                 for(int k=oldTpsout.length; k<g.maxOutputIndexGi; k++) {
+                     g.tpsoutFile[k] = new TpsoutFileRecord(); // Initialize new elements
+                     g.tpsoutFile[k].fnum = 200 + k; // Assign mock fnum
+                     GuardianInterface.addSharedMockFile(200 + k, "TPSOUT" + k + ".DAT", ""); // Open (or add) mock file
                  }
             }
 
             // FOR idx^li := 0 TO max^output^index^l - 1 DO ... -> Corrected: Use max^output^index^gi
-            logger.debug("Initializing outputFileItemCntGi array (size={})...", maxOutputIndexGi);
-            for (idxLi = 0; idxLi <= maxOutputIndexGi - 1; idxLi++) {
-                outputFileItemCntGi[idxLi] = 0;
+            logger.debug("Initializing outputFileItemCntGi array (size={})...", g.maxOutputIndexGi);
+            for (idxLi = 0; idxLi <= g.maxOutputIndexGi - 1; idxLi++) {
+                g.outputFileItemCntGi[idxLi] = 0;
             }
 
             // --- Check/Clean Output Files ---
@@ -545,15 +1080,15 @@ public class Sample8 {
             }
 
             // FOR file^index^gi := 0 TO max^output^index^gi - 1 DO ... END;
-            for (fileIndexGi = 0; fileIndexGi <= maxOutputIndexGi - 1; fileIndexGi++) {
-                logger.debug("Processing file index {}", fileIndexGi);
+            for (g.fileIndexGi = 0; g.fileIndexGi <= g.maxOutputIndexGi - 1; g.fileIndexGi++) {
+                logger.debug("Processing file index {}", g.fileIndexGi);
                 // BEGIN (FOR loop)
                 // buffer^li := 0;
                 bufferLiBuffer.putInt(0, 0); // Reset first int in buffer
 
                 // CALL KEYPOSITION (tpsout^file.fnum, buffer^li, buffer^li);
                 int keyposStatus = GuardianInterface.keyposition(
-                    tpsoutFile[fileIndexGi].fnum,
+                    g.tpsoutFile[g.fileIndexGi].fnum,
                     bufferLiBuffer, // Pass buffer for key (using first int)
                     bufferLiBuffer  // Pass buffer for data (not really used here)
                 );
@@ -561,7 +1096,7 @@ public class Sample8 {
                 // IF <> THEN ... END;
                 if (keyposStatus != 0) {
                     // BEGIN (IF <>)
-                    GuardianInterface.fileInfo(tpsoutFile[fileIndexGi].fnum, errorWrapper);
+                    GuardianInterface.fileInfo(g.tpsoutFile[g.fileIndexGi].fnum, errorWrapper);
                     GuardianInterface.logErr(GuardianInterface.ABEND_PROCESS,
                                              "File error # on initial position to TPS OUT FILE", errorWrapper.value);
                     // END;
@@ -573,8 +1108,8 @@ public class Sample8 {
                     // BEGIN (WHILE loop)
                     // CALL READ (tpsout^file.fnum, tps^10, $LEN(tps^10), bytes^read^li);
                     int readStatus = GuardianInterface.read(
-                        tpsoutFile[fileIndexGi].fnum,
-                        tps10.getBuffer(), // Pass the buffer from the tps10 object
+                        g.tpsoutFile[g.fileIndexGi].fnum,
+                        g.tps10.getBuffer(), // Pass the buffer from the tps10 object
                         Tps10Record.BYTE_LENGTH, // Use defined length
                         bytesReadLiWrapper
                     );
@@ -582,9 +1117,9 @@ public class Sample8 {
                     // IF <> THEN ... ELSE ... END; (Check read status)
                     if (readStatus != 0) { // read not successful
                         // BEGIN (IF <> for READ)
-                        GuardianInterface.fileInfo(tpsoutFile[fileIndexGi].fnum, errorWrapper);
+                        GuardianInterface.fileInfo(g.tpsoutFile[g.fileIndexGi].fnum, errorWrapper);
                         if (errorWrapper.value == 11) { // EOF is error code 11 in simulation
-                            logger.debug("EOF reached for file index {}", fileIndexGi);
+                            logger.debug("EOF reached for file index {}", g.fileIndexGi);
                             continueLi = false; // Exit WHILE loop
                         } else {
                             // BEGIN (ELSE for EOF check)
@@ -595,34 +1130,34 @@ public class Sample8 {
                         // END (IF <> for READ)
                     } else { // successful read
                         // BEGIN (ELSE for READ)
-                        tps10.parseBuffer(); // Parse the data read into the buffer
-                        logger.trace("Read record with code: '{}'", tps10.cRec.recordCode);
+                        g.tps10.parseBuffer(); // Parse the data read into the buffer
+                        logger.trace("Read record with code: '{}'", g.tps10.cRec.recordCode);
 
                         // IF (tps^10.c^rec.record^code = "00") OR (...) THEN ... ELSE ... END;
-                        if (Objects.equals(tps10.cRec.recordCode, "00") ||
-                            Objects.equals(tps10.cRec.recordCode, "99")) {
+                        if (Objects.equals(g.tps10.cRec.recordCode, "00") ||
+                            Objects.equals(g.tps10.cRec.recordCode, "99")) {
                             // BEGIN (Control Record Found)
-                            logger.debug("Found control record ('{}'), deleting...", tps10.cRec.recordCode);
+                            logger.debug("Found control record ('{}'), deleting...", g.tps10.cRec.recordCode);
                             // CALL LOCKREC (tpsout^file.fnum);
-                            int lockStatus = GuardianInterface.lockrec(tpsoutFile[fileIndexGi].fnum);
+                            int lockStatus = GuardianInterface.lockrec(g.tpsoutFile[g.fileIndexGi].fnum);
                             // IF <> THEN ... END;
                             if (lockStatus != 0) {
                                 // BEGIN (IF <> for LOCKREC)
-                                GuardianInterface.fileInfo(tpsoutFile[fileIndexGi].fnum, errorWrapper);
+                                GuardianInterface.fileInfo(g.tpsoutFile[g.fileIndexGi].fnum, errorWrapper);
                                 GuardianInterface.logErr(GuardianInterface.ABEND_PROCESS,
                                                          "File error # on lockrec of TPS OUT FILE", errorWrapper.value);
                                 // END;
                             }
                             // CALL WRITEUPDATEUNLOCK (tpsout^file.fnum, tps^10, 0);
                             int writeStatus = GuardianInterface.writeUpdateUnlock(
-                                tpsoutFile[fileIndexGi].fnum,
-                                tps10.getBuffer(), // Pass buffer (though content ignored for delete)
+                                g.tpsoutFile[g.fileIndexGi].fnum,
+                                g.tps10.getBuffer(), // Pass buffer (though content ignored for delete)
                                 0 // writeCount = 0 implies delete
                             );
                             // IF <> THEN ... END;
                             if (writeStatus != 0) {
                                 // BEGIN (IF <> for WRITEUPDATEUNLOCK)
-                                GuardianInterface.fileInfo(tpsoutFile[fileIndexGi].fnum, errorWrapper);
+                                GuardianInterface.fileInfo(g.tpsoutFile[g.fileIndexGi].fnum, errorWrapper);
                                 GuardianInterface.logErr(GuardianInterface.ABEND_PROCESS,
                                                          "WRITE error # on file TPS OUT, init ", errorWrapper.value);
                                 // END;
@@ -630,8 +1165,8 @@ public class Sample8 {
                             // END (Control Record Found)
                         } else { // successful read of non control record
                             // output^file^item^cnt^gi[file^index^gi] := ... + 1;
-                            outputFileItemCntGi[fileIndexGi]++;
-                            logger.trace("Incremented count for file index {}: {}", fileIndexGi, outputFileItemCntGi[fileIndexGi]);
+                            g.outputFileItemCntGi[g.fileIndexGi]++;
+                            logger.trace("Incremented count for file index {}: {}", g.fileIndexGi, g.outputFileItemCntGi[g.fileIndexGi]);
                         }
                         // END (ELSE for READ)
                     }
@@ -660,9 +1195,9 @@ public class Sample8 {
             }
         } finally {
              // Ensure transaction is ended if it was started and an error occurred before the explicit end
-             if (GuardianInterface.transactionActive) {
-                  logger.warn("Transaction was still active in finally block, attempting to end.");
-                  GuardianInterface.endTransaction();
+             if (GuardianInterface.transactionActive()) {
+                  logger.warn("Transaction was still active in finally block, aborting it.");
+                  GuardianInterface.abortTransaction();
              }
         }
 
@@ -673,7 +1208,7 @@ public class Sample8 {
     public static void main(String[] args) {
         configSetupP100();
         System.out.println("Simulation Complete.");
-        System.out.println("Final Item Counts: " + Arrays.toString(outputFileItemCntGi));
+        System.out.println("Final Item Counts: " + Arrays.toString(globals().outputFileItemCntGi));
     }
 }
 
@@ -0,0 +1,133 @@
+package converted;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Simulates Enscribe sequential block buffering for a file read front to back.
+ *
+ * Large blocks are fetched asynchronously, up to readAheadDepth blocks ahead of
+ * the reader, and successive READs are served from the current block without
+ * calling into the file layer. Used by OPEN when a sequential block buffer is
+ * requested.
+ */
+class SequentialBlockReader {
+
+    /** Reads up to dest.remaining() bytes at the absolute position; returns -1 at end of file. */
+    interface BlockSource {
+        int read(long position, ByteBuffer dest) throws IOException;
+    }
+
+    private final BlockSource source;
+    private final int blockSize;
+    private final int readAheadDepth;
+    private final Executor executor;
+    private final ArrayDeque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+    private long nextFetchPosition = 0;
+    private boolean sourceExhausted = false;
+    private ByteBuffer current = ByteBuffer.allocate(0);
+
+    // Statistics reported when the file is closed
+    private long blocksFetched = 0;
+    private long bytesDelivered = 0;
+    private long readerStalls = 0; // READs that had to wait for a block still in flight
+    private long stallNanos = 0;
+
+    SequentialBlockReader(BlockSource source, int blockSize, int readAheadDepth, Executor executor) {
+        if (blockSize <= 0) throw new IllegalArgumentException("blockSize must be positive");
+        this.source = source;
+        this.blockSize = blockSize;
+        this.readAheadDepth = Math.max(1, readAheadDepth);
+        this.executor = executor;
+        fillPipeline();
+    }
+
+    /** Copies up to length bytes into dest; returns the count, or 0 at end of file. */
+    public int read(byte[] dest, int offset, int length) throws IOException {
+        int done = 0;
+        while (done < length) {
+            if (!current.hasRemaining() && !nextBlock()) {
+                break;
+            }
+            int n = Math.min(length - done, current.remaining());
+            current.get(dest, offset + done, n);
+            done += n;
+        }
+        bytesDelivered += done;
+        return done;
+    }
+
+    public long blocksFetched() { return blocksFetched; }
+    public long bytesDelivered() { return bytesDelivered; }
+    public long readerStalls() { return readerStalls; }
+    public long stallNanos() { return stallNanos; }
+
+    /** Abandons any blocks still being prefetched. */
+    public void close() {
+        for (CompletableFuture<ByteBuffer> block : pending) {
+            block.cancel(false);
+        }
+        pending.clear();
+        current = ByteBuffer.allocate(0);
+    }
+
+    // Switch to the next prefetched block; false once the source is exhausted
+    private boolean nextBlock() throws IOException {
+        CompletableFuture<ByteBuffer> next = pending.pollFirst();
+        if (next == null) {
+            return false;
+        }
+        if (!next.isDone()) {
+            readerStalls++;
+            long start = System.nanoTime();
+            current = await(next);
+            stallNanos += System.nanoTime() - start;
+        } else {
+            current = await(next);
+        }
+        fillPipeline();
+        return current.hasRemaining();
+    }
+
+    private void fillPipeline() {
+        while (!sourceExhausted && pending.size() < readAheadDepth) {
+            long position = nextFetchPosition;
+            nextFetchPosition += blockSize;
+            pending.addLast(CompletableFuture.supplyAsync(() -> fetch(position), executor));
+            blocksFetched++;
+        }
+    }
+
+    private ByteBuffer fetch(long position) {
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        try {
+            while (block.hasRemaining()) {
+                int n = source.read(position + block.position(), block);
+                if (n < 0) break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return block.flip();
+    }
+
+    private ByteBuffer await(CompletableFuture<ByteBuffer> block) throws IOException {
+        ByteBuffer data;
+        try {
+            data = block.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) throw io.getCause();
+            throw e;
+        }
+        if (data.remaining() < blockSize) {
+            // Short block: nothing beyond it, so stop issuing fetches (later ones are simply empty)
+            sourceExhausted = true;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,422 @@
+package converted;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A Pathway server class: copies of one server program, each a process with its own
+ * $RECEIVE, and a link manager that spreads requesters' SERVERCLASS_SEND_s across them.
+ *
+ * Each instance runs on a virtual thread as the process "class-n". A send needs a link: a
+ * place on an instance with fewer than maxLinks sends in progress, taken from the least
+ * busy instance. With every link busy the send queues with the link manager, and the link
+ * a finishing send frees is handed straight to the first one queued, so sends are served
+ * in the order they came.
+ *
+ * A monitor looks at the class every MONITOR_INTERVAL_MILLIS. While sends are queued for a
+ * link, or the mean response time of the last interval was above the target and sends had
+ * to queue in it, it starts another instance, up to maxServers. An instance idle for
+ * idleTimeoutMillis is stopped while more than minServers run; STOP reaches it at its next
+ * READUPDATE (see ReceiveQueue.stop), so instances should read $RECEIVE waited. An instance
+ * that ends on its own is replaced to keep minServers running. Stopping the class waits up
+ * to STOP_TIMEOUT_MILLIS for its instances; one that has not ended by then (busy in the
+ * program, or reading $RECEIVE nowait) is interrupted, its $RECEIVE is closed and it is
+ * no longer waited for.
+ *
+ * Server classes are registered by name, for SERVERCLASS_SEND_.
+ */
+class ServerClass {
+    private static final Logger logger = LogManager.getLogger(ServerClass.class);
+
+    public static final int OK = 0;
+    public static final int NO_SUCH_CLASS = 14; // Guardian: device does not exist
+    public static final int PATH_DOWN = ReceiveQueue.PATH_DOWN; // The class was stopped, or the instance ended mid-send
+
+    private static final long MONITOR_INTERVAL_MILLIS = 50;
+    private static final long READY_TIMEOUT_MILLIS = 5_000;
+    private static final long STOP_TIMEOUT_MILLIS = 5_000;
+    private static final Map<String, ServerClass> classes = new ConcurrentHashMap<>();
+
+    // One copy of the server program
+    private static final class Instance {
+        final String processName;
+        Thread thread;
+        ReceiveQueue queue; // Its $RECEIVE, once the program has opened it
+        int active = 0; // Links in use
+        long idleSince = System.nanoTime();
+        boolean stopping = false;
+
+        Instance(String processName) {
+            this.processName = processName;
+        }
+    }
+
+    // A send queued for a link
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        volatile Instance granted;
+        volatile boolean refused = false; // The class stopped first
+    }
+
+    private final String name;
+    private final Consumer<String> program; // Runs one instance, given its process name, until it ends
+    private final int minServers;
+    private final int maxServers;
+    private final int maxLinks;
+    private final long targetLatencyNanos;
+    private final long idleTimeoutNanos;
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Instance> instances = new ArrayList<>();
+    private final ArrayDeque<Waiter> waiting = new ArrayDeque<>(); // The link manager's queue
+    private int nextNumber = 1;
+    private int maxQueued = 0;
+    private boolean stopped = false;
+    private Thread monitor;
+
+    private final LongAdder sends = new LongAdder();
+    private final LongAdder queuedSends = new LongAdder();
+    private final LongAdder failedSends = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder stoppedIdle = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+    private final LongAdder intervalSends = new LongAdder(); // Since the monitor last looked
+    private final LongAdder intervalQueued = new LongAdder();
+    private final LongAdder intervalNanos = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * @param name               class name requesters send to
+     * @param program            the server program; runs one instance, given its process name
+     * @param minServers         instances kept running
+     * @param maxServers         most instances started
+     * @param maxLinks           sends an instance works on at once; above 1 it needs that receive depth
+     * @param targetLatencyMillis mean response time above which, with sends queueing, an instance is added
+     * @param idleTimeoutMillis  idle time after which an instance above minServers is stopped
+     */
+    private ServerClass(String name, Consumer<String> program, int minServers, int maxServers, int maxLinks,
+                        long targetLatencyMillis, long idleTimeoutMillis) {
+        this.name = name;
+        this.program = program;
+        this.minServers = Math.max(1, minServers);
+        this.maxServers = Math.max(this.minServers, maxServers);
+        this.maxLinks = Math.max(1, maxLinks);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * Starts a server class with minServers instances and waits until they have $RECEIVE
+     * open. Returns null if a class of that name is already running.
+     */
+    static ServerClass start(String name, Consumer<String> program, int minServers, int maxServers, int maxLinks,
+                             long targetLatencyMillis, long idleTimeoutMillis) {
+        ServerClass serverClass = new ServerClass(name, program, minServers, maxServers, maxLinks,
+                                                  targetLatencyMillis, idleTimeoutMillis);
+        if (classes.putIfAbsent(name, serverClass) != null) return null;
+        serverClass.lock.lock();
+        try {
+            for (int i = 0; i < serverClass.minServers; i++) serverClass.startInstance();
+        } finally {
+            serverClass.lock.unlock();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READY_TIMEOUT_MILLIS);
+        while (serverClass.readyCount() < serverClass.minServers && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        serverClass.monitor = Thread.ofVirtual().name(name + "-monitor").start(serverClass::monitor);
+        logger.info("Server class {} started: {} to {} instances, {} links each", name, serverClass.minServers,
+                    serverClass.maxServers, serverClass.maxLinks);
+        return serverClass;
+    }
+
+    /** The running server class of that name, or null. */
+    static ServerClass named(String name) {
+        return classes.get(name);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * SERVERCLASS_SEND_: takes a link, queueing for one if all are busy, sends the request to
+     * that instance's $RECEIVE and waits for its reply. Returns the message, replied; its
+     * replyError is PATH_DOWN if the class stopped or the instance ended first.
+     */
+    public ReceiveQueue.Message send(byte[] request, int replyMax, String senderName) {
+        long start = System.nanoTime();
+        Instance instance = null;
+        Waiter waiter = null;
+        lock.lock();
+        try {
+            if (!stopped) {
+                instance = waiting.isEmpty() ? freeLink() : null; // Nobody jumps the queue
+                if (instance != null) {
+                    instance.active++;
+                } else {
+                    waiter = new Waiter();
+                    waiting.add(waiter);
+                    maxQueued = Math.max(maxQueued, waiting.size());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (waiter != null) {
+            queuedSends.increment();
+            intervalQueued.increment();
+            while ((instance = waiter.granted) == null && !waiter.refused) {
+                LockSupport.park(this);
+            }
+        }
+        long linked = System.nanoTime();
+        queueWait.record(linked - start);
+        if (instance == null) {
+            sends.increment();
+            failedSends.increment();
+            ReceiveQueue.Message refused = new ReceiveQueue.Message(request, replyMax, senderName, -1);
+            refused.replyError = PATH_DOWN;
+            refused.replied = true;
+            return refused;
+        }
+        // No file number: the send goes through the link manager, not an open of the instance
+        ReceiveQueue.Message message = instance.queue.send(request, replyMax, senderName, -1);
+        long elapsed = System.nanoTime() - start;
+        release(instance);
+        sends.increment();
+        if (message.replyError == PATH_DOWN) failedSends.increment();
+        responseTime.record(elapsed);
+        intervalSends.increment();
+        intervalNanos.add(elapsed);
+        return message;
+    }
+
+    /**
+     * Stops the class: queued sends fail with PATH_DOWN and every instance is stopped and
+     * waited for, up to STOP_TIMEOUT_MILLIS; instances still running then are abandoned.
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            if (stopped) return;
+            stopped = true;
+            for (Waiter waiter; (waiter = waiting.poll()) != null; ) {
+                waiter.refused = true;
+                LockSupport.unpark(waiter.thread);
+            }
+            for (Instance instance : instances) instance.stopping = true;
+        } finally {
+            lock.unlock();
+        }
+        classes.remove(name, this);
+        if (monitor != null) {
+            monitor.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+        while (true) {
+            List<Instance> left;
+            lock.lock();
+            try {
+                left = new ArrayList<>(instances);
+            } finally {
+                lock.unlock();
+            }
+            if (left.isEmpty()) break;
+            if (System.nanoTime() - deadline > 0) {
+                abandon(left);
+                break;
+            }
+            for (Instance instance : left) {
+                ReceiveQueue queue = instance.queue != null ? instance.queue : ReceiveQueue.server(instance.processName);
+                if (queue != null) queue.stop(); // Not yet open: stopped once it is, on the next pass
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        logger.info("Server class {} stopped: {}", name, stats());
+    }
+
+    // Instances that did not stop in time: interrupted, their requesters failed with PATH_DOWN, and no longer waited for
+    private void abandon(List<Instance> left) {
+        lock.lock();
+        try {
+            instances.removeAll(left);
+        } finally {
+            lock.unlock();
+        }
+        for (Instance instance : left) {
+            logger.warn("Server class {}: {} did not stop within {} ms; abandoning it", name, instance.processName,
+                        STOP_TIMEOUT_MILLIS);
+            instance.thread.interrupt();
+            ReceiveQueue queue = instance.queue != null ? instance.queue : ReceiveQueue.server(instance.processName);
+            if (queue != null) queue.close();
+        }
+    }
+
+    public int instanceCount() {
+        lock.lock();
+        try {
+            return instances.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long sendCount() { return sends.sum(); }
+    public long queuedCount() { return queuedSends.sum(); }
+
+    public String stats() {
+        int running;
+        int queuedNow;
+        int maxQueuedSoFar;
+        lock.lock();
+        try {
+            running = instances.size();
+            queuedNow = waiting.size();
+            maxQueuedSoFar = maxQueued;
+        } finally {
+            lock.unlock();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return String.format("%d instances (%d started, %d stopped idle), %d sends (%.0f/s, %d failed), "
+                             + "%d queued for a link (%d now, at most %d; wait mean %.2f ms, p99 %.2f ms), "
+                             + "response mean %.2f ms, p99 %.2f ms",
+                             running, started.sum(), stoppedIdle.sum(), sends.sum(), sends.sum() / seconds,
+                             failedSends.sum(), queuedSends.sum(), queuedNow, maxQueuedSoFar,
+                             queueWait.meanNanos() / 1e6, queueWait.percentileNanos(99) / 1e6,
+                             responseTime.meanNanos() / 1e6, responseTime.percentileNanos(99) / 1e6);
+    }
+
+    // Caller holds lock: the least busy instance with a free link, or null
+    private Instance freeLink() {
+        Instance best = null;
+        for (Instance instance : instances) {
+            if (instance.stopping || instance.queue == null || instance.active >= maxLinks || instance.queue.isClosed()) continue;
+            if (best == null || instance.active < best.active) best = instance;
+        }
+        return best;
+    }
+
+    // Caller holds lock: hands free links to queued sends, first come first served
+    private void dispatch() {
+        while (!waiting.isEmpty()) {
+            Instance instance = freeLink();
+            if (instance == null) return;
+            instance.active++;
+            Waiter waiter = waiting.poll();
+            waiter.granted = instance;
+            LockSupport.unpark(waiter.thread);
+        }
+    }
+
+    private void release(Instance instance) {
+        lock.lock();
+        try {
+            instance.active--;
+            if (instance.active == 0) instance.idleSince = System.nanoTime();
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds lock
+    private void startInstance() {
+        Instance instance = new Instance(name + "-" + nextNumber++);
+        instances.add(instance);
+        started.increment();
+        instance.thread = Thread.ofVirtual().name(instance.processName).start(() -> run(instance));
+        logger.info("Server class {}: started {} ({} instances)", name, instance.processName, instances.size());
+    }
+
+    private void run(Instance instance) {
+        try {
+            program.accept(instance.processName);
+        } catch (ReceiveQueue.ProcessStopped e) {
+            logger.debug("{} stopped", instance.processName);
+        } catch (RuntimeException e) {
+            logger.error("Server class {}: {} failed", name, instance.processName, e);
+        } finally {
+            lock.lock();
+            try {
+                instances.remove(instance);
+                if (!instance.stopping) {
+                    logger.warn("Server class {}: {} ended on its own", name, instance.processName);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private int readyCount() {
+        lock.lock();
+        try {
+            int ready = 0;
+            for (Instance instance : instances) {
+                if (instance.queue == null) instance.queue = ReceiveQueue.server(instance.processName);
+                if (instance.queue != null) ready++;
+            }
+            return ready;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Every interval: pick up instances that have opened $RECEIVE, then scale by queueing and latency
+    private void monitor() {
+        while (true) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(MONITOR_INTERVAL_MILLIS));
+            if (Thread.interrupted()) return;
+            long count = intervalSends.sumThenReset();
+            long nanos = intervalNanos.sumThenReset();
+            long queued = intervalQueued.sumThenReset();
+            long meanNanos = count == 0 ? 0 : nanos / count;
+            int ready = readyCount();
+            lock.lock();
+            try {
+                if (stopped) return;
+                dispatch();
+                boolean starting = ready < instances.size();
+                boolean slow = queued > 0 && meanNanos > targetLatencyNanos;
+                if (instances.size() < minServers || (!starting && instances.size() < maxServers && (!waiting.isEmpty() || slow))) {
+                    startInstance();
+                } else if (instances.size() > minServers) {
+                    stopIdleInstance();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Caller holds lock: stops the instance idle longest, if past the idle timeout
+    private void stopIdleInstance() {
+        long now = System.nanoTime();
+        Instance idlest = null;
+        for (Instance instance : instances) {
+            if (instance.stopping || instance.queue == null || instance.active > 0) continue;
+            if (now - instance.idleSince < idleTimeoutNanos) continue;
+            if (idlest == null || instance.idleSince < idlest.idleSince) idlest = instance;
+        }
+        if (idlest == null) return;
+        idlest.stopping = true;
+        idlest.queue.stop();
+        stoppedIdle.increment();
+        logger.info("Server class {}: stopping {}, idle {} ms", name, idlest.processName,
+                    TimeUnit.NANOSECONDS.toMillis(now - idlest.idleSince));
+    }
+}
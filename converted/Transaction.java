@@ -0,0 +1,44 @@
+package converted;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One TMF transaction: its identifier and snapshot, the before-images of the records it
+ * changed and the record locks it holds until ENDTRANSACTION or ABORTTRANSACTION.
+ *
+ * A transaction is current for the thread that began it and is only touched by that thread.
+ * One aborted as a deadlock victim stays current, ABORTED, until the thread ends it.
+ */
+class Transaction {
+    enum State { ACTIVE, COMMITTED, ABORTED }
+
+    /** Image of a record before the transaction changed it, kept as the record's pending version. */
+    record UndoRecord(EnscribeFile file, byte[] key, VersionStore.Version version) {
+        /** Null if the record did not exist. */
+        byte[] beforeImage() {
+            return version.image;
+        }
+    }
+
+    final long id; // Transaction identifier, returned as the BEGINTRANSACTION tag
+    State state = State.ACTIVE;
+    long snapshot; // Timestamp of the last commit before the transaction began; it reads as of then
+    final List<UndoRecord> undoLog = new ArrayList<>(); // In the order the changes were made
+    final Set<LockManager.LockKey> locks = new LinkedHashSet<>();
+    final Set<AuditTrail> participants = new LinkedHashSet<>(); // Trails of the volumes it changed files on
+    IOException auditFailure; // First failed audit append; the transaction can no longer commit
+    long lockTimeoutMillis = LockManager.WAIT_FOREVER; // Longest lock wait; the open's timeout applies too
+
+    Transaction(long id) {
+        this.id = id;
+    }
+
+    @Override
+    public String toString() {
+        return "Transaction " + id + " (" + state + ")";
+    }
+}
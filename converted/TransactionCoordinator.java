@@ -0,0 +1,235 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Atomic commit of transactions whose changes span volumes, each with its own audit trail.
+ *
+ * A file's volume is the leading "$NAME" of its file name ($SYSTEM for names without one);
+ * every volume's trail lives in its own directory under the audit root, next to the
+ * coordinator's master trail MAT. A transaction enlists the trail of each file it changes,
+ * or for a partitioned file, of each partition it changes.
+ * At ENDTRANSACTION:
+ *
+ *   no participant (read-only)  nothing is logged
+ *   one participant             one-phase: COMMIT forced on that trail
+ *   several                     two-phase: PREPARE forced on every trail at once; then the
+ *                               decision, COMMIT with the participant list, forced on MAT;
+ *                               then COMMIT on each participant and END on MAT, unforced
+ *
+ * Presumed abort: an abort forces nothing and MAT records only commits, so a participant
+ * that recovers with a PREPARE but no outcome commits if MAT has the COMMIT, else aborts.
+ */
+class TransactionCoordinator implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(TransactionCoordinator.class);
+
+    static final String DEFAULT_VOLUME = "$SYSTEM";
+    static final String MASTER_TRAIL = "MAT";
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final Path root;
+    private final long segmentBytes;
+    private final AuditTrail master;
+    private final Map<String, AuditTrail> volumes = new ConcurrentHashMap<>();
+    private final Map<String, Set<AuditedFile>> audited = new ConcurrentHashMap<>(); // Files changed under a transaction, by volume
+
+    private final LongAdder readOnly = new LongAdder();
+    private final LongAdder onePhase = new LongAdder();
+    private final LongAdder twoPhase = new LongAdder();
+    private final LongAdder prepareFailures = new LongAdder();
+
+    /**
+     * What one volume audits and checkpoints: a whole file, or the key range partition of a
+     * partitioned file holds (partition WHOLE for an unpartitioned file).
+     */
+    record AuditedFile(EnscribeFile file, int partition) {
+        static final int WHOLE = -1;
+
+        /** The part of the file that holds the record with this key. */
+        static AuditedFile of(EnscribeFile file, byte[] key) {
+            return new AuditedFile(file, file instanceof PartitionedFile partitioned ? partitioned.partitionOf(key) : WHOLE);
+        }
+
+        /** Name its changes are logged and checkpointed under. */
+        String name() {
+            return file instanceof PartitionedFile partitioned ? partitioned.partition(partition).fileName() : file.fileName();
+        }
+
+        /** Lowest key it can hold. */
+        byte[] firstKey() {
+            return file instanceof PartitionedFile partitioned ? partitioned.lowKey(partition) : new byte[0];
+        }
+
+        boolean holds(byte[] key) {
+            return !(file instanceof PartitionedFile partitioned) || partitioned.partitionOf(key) == partition;
+        }
+    }
+
+    TransactionCoordinator(Path root, long segmentBytes) throws IOException {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.master = new AuditTrail(root.resolve(MASTER_TRAIL), segmentBytes);
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public AuditTrail master() {
+        return master;
+    }
+
+    /** Volume of a Guardian file name: "$DATA1.SUB.FILE" is on $DATA1. */
+    static String volumeOf(String fileName) {
+        if (!fileName.startsWith("$")) return DEFAULT_VOLUME;
+        int dot = fileName.indexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+
+    /** The trail of the volume holding the file or partition, opened on first use, enlisted as a participant of the transaction. */
+    public AuditTrail enlist(Transaction tx, AuditedFile file) throws IOException {
+        String volume = volumeOf(file.name());
+        AuditTrail trail = trail(volume);
+        tx.participants.add(trail);
+        audited.computeIfAbsent(volume, v -> ConcurrentHashMap.newKeySet()).add(file);
+        return trail;
+    }
+
+    /** Volumes with audited files. */
+    public Set<String> volumes() {
+        return audited.keySet();
+    }
+
+    /** Files on the volume that transactions have changed, the ones its checkpoints hold. */
+    public Set<AuditedFile> auditedFiles(String volume) {
+        return audited.getOrDefault(volume, Set.of());
+    }
+
+    /** The volume's trail, opened on first use. */
+    public AuditTrail trail(String volume) throws IOException {
+        AuditTrail trail = volumes.get(volume);
+        if (trail != null) return trail;
+        synchronized (volumes) {
+            trail = volumes.get(volume);
+            if (trail == null) {
+                trail = new AuditTrail(root.resolve(volume), segmentBytes);
+                volumes.put(volume, trail);
+            }
+            return trail;
+        }
+    }
+
+    /** Makes the transaction's commit durable on every participant; on an exception it must be rolled back. */
+    public void commit(Transaction tx) throws IOException {
+        List<AuditTrail> participants = List.copyOf(tx.participants);
+        if (participants.isEmpty()) {
+            readOnly.increment();
+            return;
+        }
+        if (participants.size() == 1) {
+            participants.get(0).commit(tx.id);
+            onePhase.increment();
+            return;
+        }
+        // Phase 1: every trail's writer forces its PREPARE concurrently
+        long[] prepared = new long[participants.size()];
+        try {
+            for (int i = 0; i < prepared.length; i++) {
+                prepared[i] = participants.get(i).append(AuditTrail.PREPARE, tx.id, NO_PAYLOAD, true);
+            }
+            for (int i = 0; i < prepared.length; i++) {
+                participants.get(i).awaitDurable(prepared[i]);
+            }
+        } catch (IOException e) {
+            prepareFailures.increment();
+            abort(tx); // No decision was logged, so the transaction is presumed aborted everywhere
+            throw e;
+        }
+        // The decision: once this COMMIT is on disk the transaction is committed
+        master.awaitDurable(master.append(AuditTrail.COMMIT, tx.id, volumeList(participants), true));
+        // Phase 2: recovery finds the decision on MAT, so the outcome records need not be forced
+        for (AuditTrail participant : participants) {
+            try {
+                participant.append(AuditTrail.COMMIT, tx.id, NO_PAYLOAD, false);
+            } catch (IOException e) {
+                logger.warn("Cannot log the commit of transaction {} in {}; recovery resolves it from MAT",
+                            tx.id, participant.directory(), e);
+            }
+        }
+        master.append(AuditTrail.END, tx.id, NO_PAYLOAD, false);
+        twoPhase.increment();
+    }
+
+    /** The committed transaction's versions are stamped: checkpoints from now on see its changes. */
+    public void committed(Transaction tx) {
+        for (AuditTrail participant : tx.participants) {
+            participant.forget(tx.id);
+        }
+    }
+
+    /** Registers a file as audited without a transaction, e.g. after recovery, so checkpoints hold it. */
+    public void addAuditedFile(EnscribeFile file) {
+        int partitions = file instanceof PartitionedFile partitioned ? partitioned.partitionCount() : 0;
+        for (int i = partitions == 0 ? AuditedFile.WHOLE : 0; i < partitions; i++) {
+            AuditedFile part = new AuditedFile(file, i);
+            audited.computeIfAbsent(volumeOf(part.name()), v -> ConcurrentHashMap.newKeySet()).add(part);
+        }
+    }
+
+    /** Logs the abort on every participant, unforced; nothing at all goes to MAT. */
+    public void abort(Transaction tx) {
+        for (AuditTrail participant : tx.participants) {
+            try {
+                participant.abort(tx.id);
+            } catch (IOException e) {
+                logger.warn("Cannot log the abort of transaction {} in {}; it is presumed aborted",
+                            tx.id, participant.directory(), e);
+            }
+        }
+    }
+
+    public long readOnlyCount() { return readOnly.sum(); }
+    public long onePhaseCount() { return onePhase.sum(); }
+    public long twoPhaseCount() { return twoPhase.sum(); }
+
+    public String stats() {
+        return String.format("%d read-only, %d one-phase, %d two-phase commits, %d failed prepares, %d volumes; MAT: %s",
+                             readOnly.sum(), onePhase.sum(), twoPhase.sum(), prepareFailures.sum(), volumes.size(),
+                             master.stats());
+    }
+
+    /** Closes every trail, forcing what they still hold. */
+    @Override
+    public void close() throws IOException {
+        for (AuditTrail trail : volumes.values()) {
+            trail.close();
+        }
+        master.close();
+    }
+
+    // COMMIT payload on MAT: [count 2] then per participant [length 2][volume]
+    private byte[] volumeList(List<AuditTrail> participants) {
+        int length = 2;
+        byte[][] names = new byte[participants.size()][];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = participants.get(i).directory().getFileName().toString().getBytes(StandardCharsets.ISO_8859_1);
+            length += 2 + names[i].length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length).putShort((short) names.length);
+        for (byte[] name : names) {
+            payload.putShort((short) name.length).put(name);
+        }
+        return payload.array();
+    }
+}
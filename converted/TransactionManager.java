@@ -0,0 +1,278 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Simulates TMF: BEGINTRANSACTION, ENDTRANSACTION and ABORTTRANSACTION.
+ *
+ * Each thread has at most one current transaction. Changes made under it are applied to
+ * the file at once, with the record's before-image kept in the transaction's undo log;
+ * ABORTTRANSACTION puts the before-images back in reverse order. Every record changed or
+ * locked stays locked until the transaction ends, so other transactions cannot see or
+ * overwrite uncommitted changes through WRITEUPDATE or LOCKREC. No global lock is taken,
+ * so many short transactions can run at once.
+ *
+ * With a TransactionCoordinator, every change is also logged with its before- and after-image
+ * on the audit trail of the file's volume, and ENDTRANSACTION returns only once the commit
+ * is durable on every volume involved; concurrent commits share the trails' fsyncs. Locks
+ * are released after that, so nobody sees a change whose commit could still be lost.
+ * Without one, commit only releases the locks and drops the undo log.
+ *
+ * Reads inside a transaction come from its snapshot (see VersionStore): each before-image
+ * doubles as the record's pending version, so readers never wait for or see uncommitted
+ * changes, and a read-only transaction takes no locks at all. A transaction that goes to
+ * lock a record changed by a commit after its snapshot gets SNAPSHOT_CONFLICT rather than
+ * overwrite a change it never saw.
+ *
+ * A lock request waits while another owner holds the record (see LockManager). A
+ * transaction picked as a deadlock victim is rolled back and its locks released at once;
+ * it stays current, and its ENDTRANSACTION then fails with TRANSACTION_ABORTED.
+ */
+class TransactionManager {
+    private static final Logger logger = LogManager.getLogger(TransactionManager.class);
+
+    // TMF error codes
+    public static final int OK = 0;
+    public static final int NO_TRANSACTION = 75; // Caller has no current transaction
+    public static final int TRANSACTION_ACTIVE = 83; // BEGINTRANSACTION while one is already current
+    public static final int TRANSACTION_ABORTED = 97; // Rolled back: the commit could not be made durable, or a deadlock victim
+    public static final int SNAPSHOT_CONFLICT = 99; // Record changed by a commit after the snapshot; abort and retry
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ThreadLocal<Transaction> current = new ThreadLocal<>();
+    private final LockManager locks;
+    private final TransactionCoordinator coordinator; // Null: transactions are not audited
+    private final RecoveryManager recovery; // Checkpoints of audited files; null when not audited
+    private final VersionStore versions = new VersionStore();
+
+    private final LongAdder begun = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+
+    TransactionManager(LockManager locks) {
+        this(locks, null);
+    }
+
+    TransactionManager(LockManager locks, TransactionCoordinator coordinator) {
+        this.locks = locks;
+        this.coordinator = coordinator;
+        this.recovery = coordinator == null ? null
+                : new RecoveryManager(coordinator, versions, Long.getLong("tal2j.audit.checkpointBytes", 16L << 20));
+    }
+
+    /** The commit coordinator, or null if transactions are not audited. */
+    public TransactionCoordinator coordinator() {
+        return coordinator;
+    }
+
+    /** Checkpoints of audited files, or null if transactions are not audited. */
+    public RecoveryManager recovery() {
+        return recovery;
+    }
+
+    public LockManager locks() {
+        return locks;
+    }
+
+    public VersionStore versions() {
+        return versions;
+    }
+
+    /** The caller's current transaction, or null. */
+    public Transaction current() {
+        return current.get();
+    }
+
+    /** After recovery: new transactions get ids above every id the audit trails still hold. */
+    public void resumeAfter(long txId) {
+        nextId.accumulateAndGet(txId + 1, Math::max);
+    }
+
+    /** Starts a transaction for the caller; null if it already has one. */
+    public Transaction begin() {
+        if (current.get() != null) return null;
+        Transaction tx = new Transaction(nextId.getAndIncrement());
+        versions.openSnapshot(tx);
+        current.set(tx);
+        begun.increment();
+        return tx;
+    }
+
+    /** Commits the caller's transaction: makes it durable, releases its locks and forgets its before-images. */
+    public int commit() {
+        Transaction tx = current.get();
+        if (tx == null) return NO_TRANSACTION;
+        if (tx.state == Transaction.State.ABORTED) { // Deadlock victim, already rolled back
+            current.remove();
+            return TRANSACTION_ABORTED;
+        }
+        if (coordinator != null) {
+            try {
+                if (tx.auditFailure != null) throw tx.auditFailure;
+                coordinator.commit(tx);
+            } catch (IOException e) {
+                logger.error("Cannot make {} durable; rolling it back", tx, e);
+                rollback(tx);
+                tx.state = Transaction.State.ABORTED;
+                finish(tx);
+                aborted.increment();
+                return TRANSACTION_ABORTED;
+            }
+        }
+        if (!tx.undoLog.isEmpty()) {
+            List<VersionStore.Version> changed = new ArrayList<>(tx.undoLog.size());
+            for (Transaction.UndoRecord u : tx.undoLog) changed.add(u.version());
+            versions.commit(changed); // Before the locks go, so the next writer sees the commit
+        }
+        if (coordinator != null) {
+            coordinator.committed(tx);
+            recovery.maybeCheckpoint(tx);
+        }
+        tx.state = Transaction.State.COMMITTED;
+        finish(tx);
+        committed.increment();
+        return OK;
+    }
+
+    /** Rolls back the caller's transaction from its before-images, then releases its locks. */
+    public int abort() {
+        Transaction tx = current.get();
+        if (tx == null) return NO_TRANSACTION;
+        if (tx.state == Transaction.State.ABORTED) {
+            current.remove();
+            return OK;
+        }
+        rollback(tx);
+        if (coordinator != null) {
+            coordinator.abort(tx);
+        }
+        tx.state = Transaction.State.ABORTED;
+        finish(tx);
+        aborted.increment();
+        return OK;
+    }
+
+    /**
+     * Locks the record for the transaction until it ends, waiting up to the shorter of
+     * timeoutMillis and the transaction's own lock timeout. Returns OK, a LockManager error,
+     * SNAPSHOT_CONFLICT if a commit after the transaction's snapshot changed the record, or
+     * TRANSACTION_ABORTED if the transaction was (or now is, as a deadlock victim) rolled back.
+     */
+    public int lock(Transaction tx, EnscribeFile file, byte[] key, long timeoutMillis) {
+        if (tx.state == Transaction.State.ABORTED) return TRANSACTION_ABORTED;
+        LockManager.LockKey record = new LockManager.LockKey(file, key);
+        int error = locks.lock(tx, record, LockManager.shorter(timeoutMillis, tx.lockTimeoutMillis));
+        if (error == LockManager.OK) {
+            tx.locks.add(record);
+            if (versions.changedSince(tx, file, key)) return SNAPSHOT_CONFLICT;
+        } else if (error == LockManager.DEADLOCK) {
+            logger.warn("{} is a deadlock victim; rolling it back", tx);
+            rollback(tx);
+            if (coordinator != null) {
+                coordinator.abort(tx);
+            }
+            tx.state = Transaction.State.ABORTED;
+            release(tx); // Stays current until the caller ends it
+            aborted.increment();
+            return TRANSACTION_ABORTED;
+        }
+        return error;
+    }
+
+    /**
+     * Call before changing a record (tx null outside a transaction): keeps its current image as
+     * a pending version so snapshots go on seeing it. inserting skips reading an image that
+     * cannot exist. Returns null when nothing needs keeping; pass the result to afterChange or
+     * changeFailed.
+     */
+    public VersionStore.Version beforeChange(Transaction tx, EnscribeFile file, byte[] key, boolean inserting) {
+        if (tx == null && !versions.snapshotsOpen()) return null; // Commits at once and nobody can need the old image
+        return versions.prepare(file, key, inserting ? null : imageOf(file, key), tx);
+    }
+
+    /** The change prepared by beforeChange was not made. */
+    public void changeFailed(EnscribeFile file, byte[] key, VersionStore.Version version) {
+        if (version != null) versions.discard(file, key, version);
+    }
+
+    /**
+     * Records a change made after beforeChange. Outside a transaction it commits at once.
+     * Inside one, the before-image goes to the undo log for ABORTTRANSACTION and, when audited,
+     * an UPDATE record with both images to the trail; a failed audit append is remembered and
+     * turns the commit into an abort.
+     */
+    public void afterChange(Transaction tx, EnscribeFile file, byte[] key, VersionStore.Version version) {
+        if (tx == null) {
+            if (version != null) versions.commit(List.of(version));
+            return;
+        }
+        tx.undoLog.add(new Transaction.UndoRecord(file, key, version));
+        if (coordinator != null && tx.auditFailure == null) {
+            TransactionCoordinator.AuditedFile audited = TransactionCoordinator.AuditedFile.of(file, key);
+            try {
+                coordinator.enlist(tx, audited).appendUpdate(tx.id, audited.name(), key, version.image, imageOf(file, key));
+            } catch (IOException e) {
+                tx.auditFailure = e;
+            }
+        }
+    }
+
+    /** Copy of the current image of a record, or null if it does not exist. */
+    public static byte[] imageOf(EnscribeFile file, byte[] key) {
+        EpochReclaimer.Guard guard = EpochReclaimer.shared().enter();
+        try {
+            KeyedFile.Entry entry = file.get(key);
+            if (entry == null) return null;
+            ByteBuffer record = entry.slot.record();
+            byte[] image = new byte[record.remaining()];
+            record.get(image);
+            return image;
+        } finally {
+            guard.exit();
+        }
+    }
+
+    public long begunCount() { return begun.sum(); }
+    public long committedCount() { return committed.sum(); }
+    public long abortedCount() { return aborted.sum(); }
+
+    private void rollback(Transaction tx) {
+        List<Transaction.UndoRecord> undo = tx.undoLog;
+        for (int i = undo.size() - 1; i >= 0; i--) {
+            Transaction.UndoRecord u = undo.get(i);
+            if (u.beforeImage() == null) {
+                u.file().delete(u.key()); // Inserted by the transaction
+            } else {
+                // Under its own key, so a deleted record of an entry-sequenced file comes back where it was
+                if (u.file().put(u.key(), ByteBuffer.wrap(u.beforeImage()), u.beforeImage().length) != KeyedFile.OK) {
+                    // The record is still locked by this transaction, so nobody else should have changed it
+                    logger.error("Cannot restore before-image of a record in {} while aborting {}", u.file(), tx);
+                }
+            }
+            versions.discard(u.file(), u.key(), u.version()); // Restored: the file's image is current again
+        }
+    }
+
+    private void finish(Transaction tx) {
+        release(tx);
+        current.remove();
+    }
+
+    private void release(Transaction tx) {
+        for (LockManager.LockKey record : tx.locks) {
+            locks.unlock(tx, record);
+        }
+        tx.locks.clear();
+        tx.undoLog.clear();
+        tx.participants.clear();
+        versions.closeSnapshot(tx);
+    }
+}
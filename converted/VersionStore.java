@@ -0,0 +1,250 @@
+package converted;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Older record versions for snapshot reads (multi-version concurrency control).
+ *
+ * Files hold only the newest image of each record, changed in place. Before a record is
+ * changed, its current image is pushed onto the record's version chain, pending until
+ * the change commits; commit stamps it with the commit timestamp, the point from which
+ * it is no longer current. A transaction reads as of its snapshot, the timestamp of the
+ * last commit before it began: for each record it takes the file's image unless a chain
+ * version ended after the snapshot (or is still pending), in which case the oldest such
+ * version is what the snapshot saw. Records deleted since the snapshot are found through
+ * the chains, records inserted since have a null version and are skipped.
+ *
+ * Versions that ended at or before the oldest open snapshot are unreachable and are
+ * dropped every COLLECT_INTERVAL commits. Changes outside a transaction commit at once
+ * and only need a version while some snapshot is open.
+ */
+class VersionStore {
+    static final long PENDING = Long.MAX_VALUE; // End timestamp of a version whose change has not committed
+    private static final int COLLECT_INTERVAL = 256;
+
+    /** An image a record had until the change stamped into endTs; null image means it did not exist. */
+    static final class Version {
+        final byte[] image;
+        final Transaction writer; // Null for a change outside a transaction
+        volatile long endTs = PENDING;
+        volatile Version older;
+
+        Version(byte[] image, Transaction writer) {
+            this.image = image;
+            this.writer = writer;
+        }
+    }
+
+    /** A record as a snapshot sees it. */
+    record Visible(byte[] key, ByteBuffer record) {}
+
+    // A reader whose snapshot is later than every commit so far, so only pending versions hide the file's image
+    private static final Transaction LATEST_COMMITTED = new Transaction(-1);
+    static {
+        LATEST_COMMITTED.snapshot = PENDING - 1;
+    }
+
+    private final Map<EnscribeFile, ConcurrentSkipListMap<byte[], Version>> chains = new ConcurrentHashMap<>();
+    // Open snapshots, oldest first
+    private final ConcurrentSkipListSet<Transaction> snapshots = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong((Transaction tx) -> tx.snapshot).thenComparingLong(tx -> tx.id));
+    private final ReentrantLock commitLock = new ReentrantLock(); // Orders commits, snapshot starts and collection
+    private volatile long clock = 0; // Timestamp of the last commit
+    private final AtomicInteger commitsSinceCollect = new AtomicInteger();
+
+    private final LongAdder versionsCreated = new LongAdder();
+    private final LongAdder versionsCollected = new LongAdder();
+    private final LongAdder snapshotReads = new LongAdder();
+
+    /** Starts the transaction's snapshot at the last commit. */
+    public void openSnapshot(Transaction tx) {
+        commitLock.lock();
+        try {
+            tx.snapshot = clock;
+            snapshots.add(tx);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    public void closeSnapshot(Transaction tx) {
+        snapshots.remove(tx);
+    }
+
+    /** True if a change outside a transaction must keep a version. */
+    public boolean snapshotsOpen() {
+        return !snapshots.isEmpty();
+    }
+
+    /** Pushes the record's current image as a pending version, before the record is changed. */
+    public Version prepare(EnscribeFile file, byte[] key, byte[] image, Transaction writer) {
+        Version version = new Version(image, writer);
+        chains.computeIfAbsent(file, f -> new ConcurrentSkipListMap<>(Arrays::compareUnsigned))
+              .compute(key, (k, head) -> {
+                  version.older = head;
+                  return version;
+              });
+        versionsCreated.increment();
+        return version;
+    }
+
+    /** Removes a pending version whose change failed or was rolled back. */
+    public void discard(EnscribeFile file, byte[] key, Version version) {
+        ConcurrentSkipListMap<byte[], Version> fileChains = chains.get(file);
+        if (fileChains == null) return;
+        fileChains.computeIfPresent(key, (k, head) -> {
+            if (head == version) return version.older;
+            for (Version v = head; v.older != null; v = v.older) {
+                if (v.older == version) {
+                    v.older = version.older;
+                    break;
+                }
+            }
+            return head;
+        });
+    }
+
+    /** Commits the pending versions under one new timestamp; returns it. */
+    public long commit(List<Version> versions) {
+        long ts;
+        commitLock.lock();
+        try {
+            ts = clock + 1;
+            for (Version v : versions) {
+                v.endTs = ts;
+            }
+            clock = ts; // Published after the stamps, so a snapshot at ts sees all of them
+        } finally {
+            commitLock.unlock();
+        }
+        if (commitsSinceCollect.incrementAndGet() >= COLLECT_INTERVAL) {
+            commitsSinceCollect.set(0);
+            collect();
+        }
+        return ts;
+    }
+
+    /** True if the record was changed by a commit after the transaction's snapshot (first updater wins). */
+    public boolean changedSince(Transaction tx, EnscribeFile file, byte[] key) {
+        Version v = head(file, key);
+        while (v != null && v.writer == tx && v.endTs == PENDING) {
+            v = v.older; // The transaction's own changes
+        }
+        return v != null && v.endTs != PENDING && v.endTs > tx.snapshot;
+    }
+
+    /** The record as the transaction's snapshot sees it, or null. The caller holds an EpochReclaimer guard. */
+    public Visible get(Transaction tx, EnscribeFile file, byte[] key) {
+        snapshotReads.increment();
+        return resolve(tx, file, key, file.get(key));
+    }
+
+    /**
+     * First record the snapshot sees at or after the key (strictly after unless inclusive),
+     * in primary-key order, or null. The caller holds an EpochReclaimer guard.
+     */
+    public Visible next(Transaction tx, EnscribeFile file, byte[] from, boolean inclusive) {
+        snapshotReads.increment();
+        ConcurrentSkipListMap<byte[], Version> fileChains = chains.get(file);
+        byte[] position = from;
+        while (true) {
+            KeyedFile.Entry entry = inclusive ? file.ceiling(position) : file.higher(position);
+            byte[] versioned = fileChains == null ? null
+                    : inclusive ? fileChains.ceilingKey(position) : fileChains.higherKey(position);
+            if (entry == null && versioned == null) return null;
+            byte[] key = entry == null || (versioned != null && Arrays.compareUnsigned(versioned, entry.key) < 0)
+                    ? versioned : entry.key;
+            Visible visible = resolve(tx, file, key, entry != null && entry.key == key ? entry : file.get(key));
+            if (visible != null) return visible;
+            position = key; // Not in the snapshot: inserted after it, or deleted before it
+            inclusive = false;
+        }
+    }
+
+    /** Like next, but sees the latest committed image of every record, for checkpoints. */
+    public Visible nextCommitted(EnscribeFile file, byte[] from, boolean inclusive) {
+        return next(LATEST_COMMITTED, file, from, inclusive);
+    }
+
+    // Slots are never changed in place, so the entry fixes the current image. It is looked up
+    // before the chain, and a change pushes its version before touching the file, so a change
+    // the entry already shows always has its version on the chain. A rollback restores the file
+    // before it discards the version, so an entry showing an aborted change whose version is
+    // already gone no longer matches the file: the entry is read again and the chain rechecked.
+    private Visible resolve(Transaction tx, EnscribeFile file, byte[] key, KeyedFile.Entry current) {
+        while (true) {
+            Version v = head(file, key);
+            if (v != null && v.writer == tx && v.endTs == PENDING) {
+                v = null; // Own change: the transaction sees its latest write
+            }
+            Version seen = null;
+            for (; v != null && v.endTs > tx.snapshot; v = v.older) {
+                seen = v; // Ended after the snapshot, so the snapshot saw it (or an older one)
+            }
+            if (seen != null) {
+                return seen.image == null ? null : new Visible(key, ByteBuffer.wrap(seen.image).asReadOnlyBuffer());
+            }
+            KeyedFile.Entry now = file.get(key);
+            if (now == null ? current == null : current != null && now.slot == current.slot) {
+                return current == null ? null : new Visible(key, current.slot.record());
+            }
+            current = now;
+        }
+    }
+
+    /** Drops versions no open or future snapshot can see. */
+    public void collect() {
+        if (!commitLock.tryLock()) return; // Another thread is committing or collecting; try next time
+        long horizon;
+        try {
+            horizon = snapshots.isEmpty() ? clock : snapshots.first().snapshot;
+        } finally {
+            commitLock.unlock();
+        }
+        for (ConcurrentSkipListMap<byte[], Version> fileChains : chains.values()) {
+            for (Map.Entry<byte[], Version> e : fileChains.entrySet()) {
+                Version head = e.getValue();
+                if (head.endTs <= horizon) {
+                    if (fileChains.remove(e.getKey(), head)) versionsCollected.add(length(head));
+                    continue;
+                }
+                for (Version v = head; v.older != null; v = v.older) {
+                    if (v.older.endTs <= horizon) {
+                        versionsCollected.add(length(v.older));
+                        v.older = null;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public long versionsCreated() { return versionsCreated.sum(); }
+    public long versionsCollected() { return versionsCollected.sum(); }
+
+    public String stats() {
+        return String.format("%d versions created, %d collected, %d open snapshots, %d snapshot reads, clock %d",
+                             versionsCreated.sum(), versionsCollected.sum(), snapshots.size(), snapshotReads.sum(), clock);
+    }
+
+    private Version head(EnscribeFile file, byte[] key) {
+        ConcurrentSkipListMap<byte[], Version> fileChains = chains.get(file);
+        return fileChains == null ? null : fileChains.get(key);
+    }
+
+    private static int length(Version v) {
+        int n = 0;
+        for (; v != null; v = v.older) n++;
+        return n;
+    }
+}
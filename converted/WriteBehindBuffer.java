@@ -0,0 +1,230 @@
+package converted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind buffer for a disk-backed output file.
+ *
+ * Consecutive WRITEs are coalesced into a staging buffer that is written to the
+ * channel in one call when it fills, when the flush delay passes, or at CLOSE.
+ * With group commit enabled each WRITE returns only once its data has been
+ * forced to disk, but all writers waiting at the same time share one fsync:
+ * whoever finds no flush in progress writes and forces everything staged so
+ * far, and the rest wait for that batch.
+ */
+class WriteBehindBuffer {
+    private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().daemon().name("write-behind-flush").factory());
+
+    private final FileChannel channel;
+    private final boolean groupCommit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final ScheduledFuture<?> timerTask;
+
+    // Guarded by lock
+    private ByteBuffer staging;
+    private ByteBuffer spare;
+    private long position; // Channel offset of the next batch
+    private long appendedSeq = 0; // WRITEs accepted so far
+    private long flushedSeq = 0; // WRITEs written (and forced, with group commit)
+    private boolean flushInProgress = false;
+    private IOException failure;
+
+    // Statistics reported at CLOSE; guarded by lock
+    private long writes = 0;
+    private long channelWrites = 0;
+    private long forces = 0;
+
+    /**
+     * @param channel file channel to write to
+     * @param startPosition offset of the first byte written
+     * @param flushBytes staging buffer size; a full buffer is flushed immediately
+     * @param flushDelayMillis longest time data stays staged (0 = flush only on size or CLOSE)
+     * @param groupCommit make each WRITE durable before returning, sharing fsyncs between writers
+     */
+    WriteBehindBuffer(FileChannel channel, long startPosition, int flushBytes, long flushDelayMillis, boolean groupCommit) {
+        if (flushBytes <= 0) throw new IllegalArgumentException("flushBytes must be positive");
+        this.channel = channel;
+        this.position = startPosition;
+        this.groupCommit = groupCommit;
+        this.staging = ByteBuffer.allocate(flushBytes);
+        this.spare = ByteBuffer.allocate(flushBytes);
+        this.timerTask = flushDelayMillis > 0
+                ? flushTimer.scheduleWithFixedDelay(this::timedFlush, flushDelayMillis, flushDelayMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    /**
+     * Stages the bytes as one record, never split across batches, so concurrent WRITEs do not
+     * interleave on disk; a record larger than the buffer is written directly. With group
+     * commit, returns only after it is on disk.
+     */
+    public void write(byte[] src, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            long mySeq;
+            if (length > staging.capacity()) {
+                mySeq = writeDirect(src, offset, length);
+            } else {
+                while (staging.remaining() < length) {
+                    flushLocked(); // Also waits out a flush that holds the other buffer
+                }
+                staging.put(src, offset, length);
+                mySeq = ++appendedSeq;
+                writes++;
+                if (!staging.hasRemaining()) {
+                    flushLocked();
+                }
+            }
+            if (groupCommit) {
+                while (flushedSeq < mySeq) {
+                    if (flushInProgress) {
+                        flushed.await(); // Ride along with the batch after the one being written
+                    } else {
+                        flushLocked();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for write-behind flush", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes everything staged so far (forcing it with group commit) and waits for it. */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = appendedSeq;
+            while (flushedSeq < target) {
+                if (flushInProgress) {
+                    flushed.await();
+                } else {
+                    flushLocked();
+                }
+            }
+            checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for write-behind flush", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flushes and forces remaining data and stops the flush timer; the channel stays open. */
+    public void close() throws IOException {
+        if (timerTask != null) timerTask.cancel(false);
+        flush();
+        if (!groupCommit) {
+            channel.force(false); // CLOSE is the durability point without group commit
+            lock.lock();
+            try { forces++; } finally { lock.unlock(); }
+        }
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return String.format("%d WRITEs in %d channel writes, %d fsyncs", writes, channelWrites, forces);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void timedFlush() {
+        lock.lock();
+        try {
+            if (!flushInProgress && staging.position() > 0 && failure == null) {
+                flushLocked();
+            }
+        } catch (IOException e) {
+            // Recorded in failure and reported to the next WRITE or CLOSE
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // The timer is shutting down
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Write the staged batch
+    private void flushLocked() throws IOException, InterruptedException {
+        while (flushInProgress) {
+            flushed.await();
+        }
+        checkFailure();
+        if (staging.position() == 0) {
+            flushedSeq = appendedSeq;
+            return;
+        }
+        ByteBuffer batch = staging.flip();
+        staging = spare;
+        writeBatch(batch, appendedSeq);
+        spare = batch.clear();
+        checkFailure();
+    }
+
+    // Write a record too big to stage, once everything staged before it is written and no flush is running
+    private long writeDirect(byte[] src, int offset, int length) throws IOException, InterruptedException {
+        while (flushInProgress || staging.position() > 0) {
+            flushLocked();
+        }
+        long mySeq = ++appendedSeq;
+        writes++;
+        writeBatch(ByteBuffer.wrap(src, offset, length), mySeq);
+        checkFailure();
+        return mySeq;
+    }
+
+    // Write a batch at the end of the file, up to WRITE batchSeq; the lock is released during the
+    // channel calls so writers can keep staging, and failures are left in failure
+    private void writeBatch(ByteBuffer batch, long batchSeq) {
+        flushInProgress = true;
+        long batchPosition = position;
+        position += batch.remaining();
+        lock.unlock();
+        IOException error = null;
+        int calls = 0;
+        try {
+            long at = batchPosition;
+            while (batch.hasRemaining()) {
+                at += channel.write(batch, at);
+                calls++;
+            }
+            if (groupCommit) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            flushInProgress = false;
+            channelWrites += calls;
+            if (groupCommit && error == null) forces++;
+            if (error != null) {
+                failure = error;
+            } else {
+                flushedSeq = batchSeq;
+            }
+            flushed.signalAll();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Earlier write-behind flush failed", failure);
+        }
+    }
+}